@@ -0,0 +1,553 @@
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/** A BlockCompiler compiles the code of a Hack program into JVM bytecode, so that a HackCpu can run
+ *  its hot loops without decoding and dispatching every instruction.
+ *
+ *  The program is first split into basic blocks. A block starts at every entry, i.e. every address
+ *  some A instruction loads (the only addresses a jump can go to, except for computed jumps such as
+ *  returns, whose addresses are loaded by A instructions too), after every jump, and at least every
+ *  MAX_BLOCK instructions. The blocks are grouped into regions of consecutive code small enough for
+ *  HotSpot to compile each one as a method.
+ *
+ *  Once a region has been entered HOT times, it is compiled into a hidden class implementing Region.
+ *  Its run method starts with a switch from the entries of the region to their blocks. Each block
+ *  first checks that the budget of instructions left covers the whole block, and otherwise returns to
+ *  the HackCpu, which interprets the rest. A and D are kept in locals, and A is known while it holds
+ *  the constant loaded by an A instruction of the block, so that M is accessed at a constant index and
+ *  a jump to a block of the region is a goto. A computed jump goes back to the switch, and a jump out
+ *  of the region returns the address to the HackCpu, which runs the region there next.
+ *
+ *  The code runs every instruction the way the interpreter does: arithmetic is on sign extended 16 bit
+ *  values, M is written at the address in A before the instruction, writes to KBD are ignored, and
+ *  HALT addresses (see HackCpu) are never compiled, so the HackCpu interprets them and halts.
+ */
+public class BlockCompiler {
+
+    /** The compiled code of a region. */
+    public interface Region {
+        /** Run the code of the region from PC with the registers in STATE (A, then D), running at most
+         *  BUDGET instructions, and return the address of the next instruction. Updates A and D in STATE,
+         *  and sets STATE[2] to the number of instructions of the budget left. If PC is not an entry of
+         *  the region, or the budget is less than its block, nothing is run. */
+        int run(short[] ram, int[] state, int pc, int budget);
+    }
+
+    /** The number of times a region is entered before it is compiled. */
+    private static final int HOT = 16;
+    private static final int MAX_BLOCK = 100;
+    /** The estimated bytecode size at which a region is ended, and the sizes the estimate is made of.
+     *  HotSpot does not compile methods larger than MAX_METHOD_SIZE. */
+    private static final int REGION_SIZE = 6000;
+    private static final int INSTRUCTION_SIZE = 30;
+    private static final int BLOCK_SIZE = 20;
+    private static final int ENTRY_SIZE = 8;
+    private static final int MAX_METHOD_SIZE = 8000;
+
+    private static final int ADDRESS_MASK = 0x7FFF;
+    /** The branch on the result for each combination of jump bits. */
+    private static final int[] BRANCHES = {0, BytecodeWriter.IFGT, BytecodeWriter.IFEQ, BytecodeWriter.IFGE,
+            BytecodeWriter.IFLT, BytecodeWriter.IFNE, BytecodeWriter.IFLE};
+    private static final int JUMP_LT = 4;
+    private static final int JUMP_EQ = 2;
+    private static final int JUMP_GT = 1;
+
+    /** The locals of the run method. */
+    private static final int RAM = 1;
+    private static final int STATE = 2;
+    private static final int PC = 3;
+    private static final int LEFT = 4;
+    private static final int A = 5;
+    private static final int D = 6;
+    private static final int OUT = 7;
+    private static final int ADDRESS = 8;
+    private static final int OLD_A = 9;
+    private static final int LOCALS = 10;
+    private static final int MAX_STACK = 4;
+    private static final String REGION_CLASS = "HackRegion";
+    private static final String RUN_DESCRIPTOR = "([S[III)I";
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+
+    private short[] words;
+    private int size;
+    private boolean[] halts;
+    private boolean[] entries;
+    private boolean[] leaders;
+    /** The first address of each region, followed by the size of the program. */
+    private int[] regionStarts;
+    private int[] regionOf;
+    private Region[] regions;
+    private int[] heat;
+    private int compiled;
+    private int tooLarge;
+
+    /** The region being compiled, and the labels of its blocks and of the exits to each address. */
+    private BytecodeWriter out;
+    private int start;
+    private int end;
+    private Map<Integer, BytecodeWriter.Label> blockLabels;
+    private Map<Integer, BytecodeWriter.Label> exitLabels;
+    private BytecodeWriter.Label dispatch;
+    private BytecodeWriter.Label exit;
+    private BytecodeWriter.Label jumpToA;
+    private BytecodeWriter.Label jumpToOldA;
+    /** True if A holds the constant aValue, and if the A local has not been set to it yet. */
+    private boolean aKnown;
+    private boolean aPending;
+    private int aValue;
+
+    /** Split the program WORDS into blocks and regions. Nothing is compiled yet. */
+    public BlockCompiler(short[] words) {
+        this.words = words;
+        size = words.length;
+        halts = new boolean[size + 1];
+        entries = new boolean[size + 1];
+        leaders = new boolean[size + 1];
+        for (int address = 0; address < size; address++) {
+            halts[address] = HackCpu.halts(words, address);
+        }
+        entries[0] = true;
+        for (int address = 0; address < size; address++) {
+            int word = words[address] & 0xFFFF;
+            if ((word & 0x8000) == 0 && word < size) {
+                entries[word] = true;
+            } else if ((word & 0x8000) != 0 && (word & 7) != 0) {
+                leaders[address + 1] = true;
+            }
+            if (halts[address]) {
+                leaders[address] = true;
+                leaders[address + 1] = true;
+            }
+        }
+        List<Integer> starts = new ArrayList<>();
+        int estimate = REGION_SIZE;
+        int blockLength = 0;
+        for (int address = 0; address < size; address++) {
+            if (entries[address] || leaders[address] || blockLength == MAX_BLOCK) {
+                if (estimate >= REGION_SIZE) {
+                    starts.add(address);
+                    entries[address] = true;
+                    estimate = 0;
+                }
+                leaders[address] = true;
+                blockLength = 0;
+                estimate += BLOCK_SIZE + (entries[address] ? ENTRY_SIZE : 0);
+            }
+            blockLength += 1;
+            estimate += words[address] < 0 ? INSTRUCTION_SIZE : 0;
+        }
+        for (int address = 0; address < size; address++) {
+            entries[address] &= ! halts[address];
+        }
+        starts.add(size);
+        regionStarts = new int[starts.size()];
+        regionOf = new int[size];
+        for (int i = 0; i < regionStarts.length; i++) {
+            regionStarts[i] = starts.get(i);
+        }
+        for (int i = 0; i + 1 < regionStarts.length; i++) {
+            for (int address = regionStarts[i]; address < regionStarts[i + 1]; address++) {
+                regionOf[address] = i;
+            }
+        }
+        regions = new Region[regionStarts.length - 1];
+        heat = new int[regions.length];
+        compiled = 0;
+        tooLarge = 0;
+    }
+
+    /** Return the compiled region to run from PC, compiling it if it has become hot, or null if the
+     *  instruction at PC is to be interpreted. */
+    public Region regionAt(int pc) {
+        if (pc >= size || ! entries[pc]) {
+            return null;
+        }
+        int region = regionOf[pc];
+        if (regions[region] == null && heat[region] >= 0) {
+            heat[region] += 1;
+            if (heat[region] == HOT) {
+                regions[region] = compile(region);
+                // a region too large to be compiled is interpreted from now on
+                heat[region] = -1;
+            }
+        }
+        return regions[region];
+    }
+
+    /** The number of regions the program is split into. */
+    public int regions() {
+        return regions.length;
+    }
+
+    /** The number of regions compiled so far. */
+    public int compiledRegions() {
+        return compiled;
+    }
+
+    /** The number of hot regions that were too large to compile. */
+    public int regionsTooLarge() {
+        return tooLarge;
+    }
+
+    /** Compile the region numbered REGION, or return null if its code is too large. */
+    private Region compile(int region) {
+        start = regionStarts[region];
+        end = regionStarts[region + 1];
+        out = new BytecodeWriter();
+        out.local(BytecodeWriter.ALOAD, 0);
+        out.invoke(BytecodeWriter.INVOKESPECIAL, "java/lang/Object", "<init>", "()V");
+        out.op(BytecodeWriter.RETURN);
+        out.endMethod("<init>", "()V", 1, 1);
+
+        blockLabels = new HashMap<>();
+        exitLabels = new TreeMap<>();
+        dispatch = out.newLabel();
+        exit = out.newLabel();
+        jumpToA = out.newLabel();
+        jumpToOldA = out.newLabel();
+        List<Integer> keys = new ArrayList<>();
+        for (int address = start; address < end; address++) {
+            if (leaders[address]) {
+                blockLabels.put(address, out.newLabel());
+            }
+            if (entries[address]) {
+                keys.add(address);
+            }
+        }
+        writePrologue(keys);
+        for (int address = start; address < end; address++) {
+            if (leaders[address] && ! halts[address]) {
+                int blockEnd = address + 1;
+                while (blockEnd < end && ! leaders[blockEnd]) {
+                    blockEnd += 1;
+                }
+                writeBlock(address, blockEnd);
+            }
+        }
+        writeExits();
+        if (out.length() > MAX_METHOD_SIZE) {
+            tooLarge += 1;
+            return null;
+        }
+        out.endMethod("run", RUN_DESCRIPTOR, MAX_STACK, LOCALS);
+        byte[] classFile = out.toClassFile(REGION_CLASS, "java/lang/Object", "BlockCompiler$Region");
+        out = null;
+        try {
+            Class<?> type = LOOKUP.defineHiddenClass(classFile, true).lookupClass();
+            compiled += 1;
+            return (Region) type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new RuntimeException("Unable to load the code compiled for region " + region, ex);
+        }
+    }
+
+    /** Load the registers, and switch to the block of the entry in PC. */
+    private void writePrologue(List<Integer> keys) {
+        loadState(0);
+        out.local(BytecodeWriter.ISTORE, A);
+        loadState(1);
+        out.local(BytecodeWriter.ISTORE, D);
+        // every local must be set before the verifier lets it be read
+        out.pushInt(0);
+        out.local(BytecodeWriter.ISTORE, OUT);
+        out.pushInt(0);
+        out.local(BytecodeWriter.ISTORE, ADDRESS);
+        out.pushInt(0);
+        out.local(BytecodeWriter.ISTORE, OLD_A);
+        out.bind(dispatch);
+        out.local(BytecodeWriter.ILOAD, PC);
+        int[] addresses = new int[keys.size()];
+        BytecodeWriter.Label[] labels = new BytecodeWriter.Label[keys.size()];
+        for (int i = 0; i < addresses.length; i++) {
+            addresses[i] = keys.get(i);
+            labels[i] = blockLabels.get(addresses[i]);
+        }
+        out.lookupSwitch(addresses, labels, exit);
+    }
+
+    private void loadState(int index) {
+        out.local(BytecodeWriter.ALOAD, STATE);
+        out.pushInt(index);
+        out.op(BytecodeWriter.IALOAD);
+    }
+
+    /** Write the block of the instructions from FIRST up to LAST (exclusive). */
+    private void writeBlock(int first, int last) {
+        out.bind(blockLabels.get(first));
+        int length = last - first;
+        out.local(BytecodeWriter.ILOAD, LEFT);
+        out.pushInt(length);
+        out.jump(BytecodeWriter.IF_ICMPLT, exitTo(first));
+        out.iinc(LEFT, -length);
+        aKnown = false;
+        aPending = false;
+        boolean fallsThrough = true;
+        for (int address = first; address < last; address++) {
+            fallsThrough = writeInstruction(address);
+        }
+        if (fallsThrough) {
+            storeA();
+            if (last == end || halts[last]) {
+                out.jump(BytecodeWriter.GOTO, exitTo(last));
+            }
+        }
+    }
+
+    /** Write the instruction at ADDRESS. Returns false if it always jumps. */
+    private boolean writeInstruction(int address) {
+        int word = words[address] & 0xFFFF;
+        if ((word & 0x8000) == 0) {
+            aKnown = true;
+            aPending = true;
+            aValue = word;
+            return true;
+        }
+        int comp = (word >> 6) & 0x7F;
+        boolean writesA = (word & 0x20) != 0;
+        boolean writesD = (word & 0x10) != 0;
+        boolean writesM = (word & 0x08) != 0;
+        int jump = word & 7;
+        // the computation is a constant if it reads neither D nor M, and A is known or not read either
+        boolean readsD = (comp & 0x20) == 0;
+        boolean readsY = (comp & 0x08) == 0;
+        boolean readsM = readsY && (comp & 0x40) != 0;
+        boolean constant = ! readsD && ! readsM && (aKnown || ! readsY);
+        int value = constant ? HackCpu.alu(comp, 0, aValue, 0) : 0;
+        if (! constant) {
+            writeComputation(comp);
+            int uses = (writesA ? 1 : 0) + (writesD ? 1 : 0) + (writesM ? 1 : 0) + (jump != 0 ? 1 : 0);
+            if (uses == 0) {
+                out.op(BytecodeWriter.POP);
+                return true;
+            } else if (uses == 1 && writesD) {
+                out.local(BytecodeWriter.ISTORE, D);
+                return true;
+            } else if (uses == 1 && writesA) {
+                out.local(BytecodeWriter.ISTORE, A);
+                aKnown = false;
+                aPending = false;
+                return true;
+            }
+            out.local(BytecodeWriter.ISTORE, OUT);
+        }
+        boolean targetKnown = aKnown;
+        int target = aValue & ADDRESS_MASK;
+        if (writesM) {
+            writeStoreM(constant, value);
+        }
+        if (jump != 0 && writesA && ! aKnown) {
+            out.local(BytecodeWriter.ILOAD, A);
+            out.local(BytecodeWriter.ISTORE, OLD_A);
+        }
+        if (writesD) {
+            pushResult(constant, value);
+            out.local(BytecodeWriter.ISTORE, D);
+        }
+        if (writesA && constant) {
+            aKnown = true;
+            aPending = true;
+            aValue = value;
+        } else if (writesA) {
+            pushResult(false, 0);
+            out.local(BytecodeWriter.ISTORE, A);
+            aKnown = false;
+            aPending = false;
+        }
+        if (jump == 0) {
+            return true;
+        }
+        storeA();
+        BytecodeWriter.Label label;
+        if (targetKnown) {
+            label = target >= start && target < end && leaders[target] && ! halts[target]
+                    ? blockLabels.get(target) : exitTo(target);
+        } else {
+            label = writesA ? jumpToOldA : jumpToA;
+        }
+        if (constant) {
+            int sign = value < 0 ? JUMP_LT : value == 0 ? JUMP_EQ : JUMP_GT;
+            if ((jump & sign) == 0) {
+                return true;
+            }
+            out.jump(BytecodeWriter.GOTO, label);
+            return false;
+        } else if (jump == 7) {
+            out.jump(BytecodeWriter.GOTO, label);
+            return false;
+        }
+        pushResult(false, 0);
+        out.jump(BRANCHES[jump], label);
+        return true;
+    }
+
+    /** Push the result of the computation: VALUE if it is CONSTANT, or else the OUT local. */
+    private void pushResult(boolean constant, int value) {
+        if (constant) {
+            out.pushInt(value);
+        } else {
+            out.local(BytecodeWriter.ILOAD, OUT);
+        }
+    }
+
+    /** Store the result of the computation at the address in A, unless that is KBD. */
+    private void writeStoreM(boolean constant, int value) {
+        if (aKnown) {
+            if ((aValue & ADDRESS_MASK) != HackCpu.KBD) {
+                out.local(BytecodeWriter.ALOAD, RAM);
+                out.pushInt(aValue & ADDRESS_MASK);
+                pushResult(constant, value);
+                out.op(BytecodeWriter.SASTORE);
+            }
+            return;
+        }
+        BytecodeWriter.Label skip = out.newLabel();
+        out.local(BytecodeWriter.ILOAD, A);
+        out.pushInt(ADDRESS_MASK);
+        out.op(BytecodeWriter.IAND);
+        out.op(BytecodeWriter.DUP);
+        out.local(BytecodeWriter.ISTORE, ADDRESS);
+        out.pushInt(HackCpu.KBD);
+        out.jump(BytecodeWriter.IF_ICMPEQ, skip);
+        out.local(BytecodeWriter.ALOAD, RAM);
+        out.local(BytecodeWriter.ILOAD, ADDRESS);
+        pushResult(constant, value);
+        out.op(BytecodeWriter.SASTORE);
+        out.bind(skip);
+    }
+
+    /** Write the computation COMP (a c1 ... c6), leaving its value on the stack. The computations of
+     *  the machine language are written directly, and any other one the way the ALU computes it. */
+    private void writeComputation(int comp) {
+        boolean m = (comp & 0x40) != 0;
+        switch (comp & 0x3F) {
+            case 0b001100: pushD(); return;
+            case 0b110000: pushY(m); return;
+            case 0b001101: pushD(); not(); return;
+            case 0b110001: pushY(m); not(); return;
+            case 0b001111: pushD(); arithmetic(BytecodeWriter.INEG); return;
+            case 0b110011: pushY(m); arithmetic(BytecodeWriter.INEG); return;
+            case 0b011111: pushD(); out.pushInt(1); arithmetic(BytecodeWriter.IADD); return;
+            case 0b110111: pushY(m); out.pushInt(1); arithmetic(BytecodeWriter.IADD); return;
+            case 0b001110: pushD(); out.pushInt(1); arithmetic(BytecodeWriter.ISUB); return;
+            case 0b110010: pushY(m); out.pushInt(1); arithmetic(BytecodeWriter.ISUB); return;
+            case 0b000010: pushD(); pushY(m); arithmetic(BytecodeWriter.IADD); return;
+            case 0b010011: pushD(); pushY(m); arithmetic(BytecodeWriter.ISUB); return;
+            case 0b000111: pushY(m); pushD(); arithmetic(BytecodeWriter.ISUB); return;
+            case 0b000000: pushD(); pushY(m); out.op(BytecodeWriter.IAND); return;
+            case 0b010101: pushD(); pushY(m); out.op(BytecodeWriter.IOR); return;
+            default: break;
+        }
+        if ((comp & 0x20) != 0) {
+            out.pushInt(0);
+        } else {
+            pushD();
+        }
+        if ((comp & 0x10) != 0) {
+            not();
+        }
+        if ((comp & 0x08) != 0) {
+            out.pushInt(0);
+        } else {
+            pushY(m);
+        }
+        if ((comp & 0x04) != 0) {
+            not();
+        }
+        out.op((comp & 0x02) != 0 ? BytecodeWriter.IADD : BytecodeWriter.IAND);
+        if ((comp & 0x01) != 0) {
+            not();
+        }
+        out.op(BytecodeWriter.I2S);
+    }
+
+    private void pushD() {
+        out.local(BytecodeWriter.ILOAD, D);
+    }
+
+    /** Push M if M is set, or else A. */
+    private void pushY(boolean m) {
+        if (m) {
+            out.local(BytecodeWriter.ALOAD, RAM);
+        }
+        if (aKnown) {
+            out.pushInt(m ? aValue & ADDRESS_MASK : aValue);
+        } else {
+            out.local(BytecodeWriter.ILOAD, A);
+            if (m) {
+                out.pushInt(ADDRESS_MASK);
+                out.op(BytecodeWriter.IAND);
+            }
+        }
+        if (m) {
+            out.op(BytecodeWriter.SALOAD);
+        }
+    }
+
+    private void not() {
+        out.pushInt(-1);
+        out.op(BytecodeWriter.IXOR);
+    }
+
+    /** Write the arithmetic OPCODE, and truncate its result to 16 bits. */
+    private void arithmetic(int opcode) {
+        out.op(opcode);
+        out.op(BytecodeWriter.I2S);
+    }
+
+    /** Set the A local to the constant A holds, if it has not been yet. */
+    private void storeA() {
+        if (aPending) {
+            out.pushInt(aValue);
+            out.local(BytecodeWriter.ISTORE, A);
+            aPending = false;
+        }
+    }
+
+    /** Return the label of the code that leaves the region for ADDRESS. */
+    private BytecodeWriter.Label exitTo(int address) {
+        return exitLabels.computeIfAbsent(address, a -> out.newLabel());
+    }
+
+    /** Write the exits to each address, the computed jumps, and the exit that saves the registers and
+     *  returns the address in the PC local. */
+    private void writeExits() {
+        for (Map.Entry<Integer, BytecodeWriter.Label> exitTo : exitLabels.entrySet()) {
+            out.bind(exitTo.getValue());
+            out.pushInt(exitTo.getKey());
+            out.local(BytecodeWriter.ISTORE, PC);
+            out.jump(BytecodeWriter.GOTO, exit);
+        }
+        out.bind(jumpToA);
+        out.local(BytecodeWriter.ILOAD, A);
+        writeComputedJump();
+        out.bind(jumpToOldA);
+        out.local(BytecodeWriter.ILOAD, OLD_A);
+        writeComputedJump();
+        out.bind(exit);
+        storeState(0, A);
+        storeState(1, D);
+        storeState(2, LEFT);
+        out.local(BytecodeWriter.ILOAD, PC);
+        out.op(BytecodeWriter.IRETURN);
+    }
+
+    /** Switch to the block of the address on the stack. */
+    private void writeComputedJump() {
+        out.pushInt(ADDRESS_MASK);
+        out.op(BytecodeWriter.IAND);
+        out.local(BytecodeWriter.ISTORE, PC);
+        out.jump(BytecodeWriter.GOTO, dispatch);
+    }
+
+    private void storeState(int index, int local) {
+        out.local(BytecodeWriter.ALOAD, STATE);
+        out.pushInt(index);
+        out.local(BytecodeWriter.ILOAD, local);
+        out.op(BytecodeWriter.IASTORE);
+    }
+}
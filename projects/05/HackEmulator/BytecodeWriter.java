@@ -0,0 +1,347 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A BytecodeWriter builds a class file, with just what the BlockCompiler needs: a constant pool of
+ *  names and method references, and methods made of instructions and branches to labels.
+ *
+ *  Classes are written as version 49 (Java 5) class files, the last version whose methods do not
+ *  need stack map frames: the verifier works out the types of the locals and the stack itself. Every
+ *  current JVM still loads them. Branch offsets are 16 bits, so a method must be less than 32K bytes.
+ */
+public class BytecodeWriter {
+    private static final int MAGIC = 0xCAFEBABE;
+    private static final int VERSION = 49;
+    private static final int ACC_PUBLIC = 0x0001;
+    private static final int ACC_FINAL = 0x0010;
+    private static final int ACC_SUPER = 0x0020;
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    /** The opcodes used by the BlockCompiler. */
+    public static final int ICONST_0 = 0x03;
+    public static final int BIPUSH = 0x10;
+    public static final int SIPUSH = 0x11;
+    public static final int ILOAD = 0x15;
+    public static final int ALOAD = 0x19;
+    public static final int IALOAD = 0x2E;
+    public static final int SALOAD = 0x35;
+    public static final int ISTORE = 0x36;
+    public static final int IASTORE = 0x4F;
+    public static final int SASTORE = 0x56;
+    public static final int POP = 0x57;
+    public static final int DUP = 0x59;
+    public static final int IADD = 0x60;
+    public static final int ISUB = 0x64;
+    public static final int INEG = 0x74;
+    public static final int IAND = 0x7E;
+    public static final int IOR = 0x80;
+    public static final int IXOR = 0x82;
+    public static final int IINC = 0x84;
+    public static final int I2S = 0x93;
+    public static final int IFEQ = 0x99;
+    public static final int IFNE = 0x9A;
+    public static final int IFLT = 0x9B;
+    public static final int IFGE = 0x9C;
+    public static final int IFGT = 0x9D;
+    public static final int IFLE = 0x9E;
+    public static final int IF_ICMPEQ = 0x9F;
+    public static final int IF_ICMPLT = 0xA1;
+    public static final int GOTO = 0xA7;
+    public static final int LOOKUPSWITCH = 0xAB;
+    public static final int IRETURN = 0xAC;
+    public static final int RETURN = 0xB1;
+    public static final int INVOKESPECIAL = 0xB7;
+    /** The one byte forms of iload, aload and istore on locals 0 to 3. */
+    private static final int ILOAD_0 = 0x1A;
+    private static final int ALOAD_0 = 0x2A;
+    private static final int ISTORE_0 = 0x3B;
+
+    /** A position in the code of a method, which can be branched to before it is bound. */
+    public static class Label {
+        private int position = -1;
+        /** For each branch to the label before it was bound: the position of the branch instruction,
+         *  the position of its offset, and the size of the offset. */
+        private List<int[]> uses = new ArrayList<>();
+    }
+
+    private ByteArrayOutputStream pool;
+    private DataOutputStream poolData;
+    private int poolCount;
+    private Map<String, Integer> poolIndexes;
+    private ByteArrayOutputStream methods;
+    private int methodCount;
+
+    /** The code of the method being written. */
+    private byte[] code;
+    private int length;
+
+    public BytecodeWriter() {
+        pool = new ByteArrayOutputStream();
+        poolData = new DataOutputStream(pool);
+        poolCount = 1;
+        poolIndexes = new HashMap<>();
+        methods = new ByteArrayOutputStream();
+        methodCount = 0;
+        code = new byte[1024];
+        length = 0;
+    }
+
+    /** The number of bytes of code written so far for the current method. */
+    public int length() {
+        return length;
+    }
+
+    public void op(int opcode) {
+        put(opcode);
+    }
+
+    /** Push the int constant VALUE, which must fit in 16 bits. */
+    public void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            put(ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            put(BIPUSH);
+            put(value);
+        } else {
+            put(SIPUSH);
+            putShort(value);
+        }
+    }
+
+    /** Write the instruction OPCODE (a load or store) on LOCAL, which must be less than 256. */
+    public void local(int opcode, int local) {
+        int shortForm = opcode == ILOAD ? ILOAD_0 : opcode == ALOAD ? ALOAD_0 : opcode == ISTORE ? ISTORE_0 : -1;
+        if (shortForm >= 0 && local <= 3) {
+            put(shortForm + local);
+            return;
+        }
+        put(opcode);
+        put(local);
+    }
+
+    /** Add AMOUNT, which must fit in a byte, to LOCAL. */
+    public void iinc(int local, int amount) {
+        put(IINC);
+        put(local);
+        put(amount);
+    }
+
+    public Label newLabel() {
+        return new Label();
+    }
+
+    /** Bind LABEL to the current position, and fix up the branches to it. */
+    public void bind(Label label) {
+        label.position = length;
+        for (int[] use : label.uses) {
+            int offset = length - use[0];
+            if (use[2] == 2) {
+                setShort(use[1], offset);
+            } else {
+                setInt(use[1], offset);
+            }
+        }
+        label.uses.clear();
+    }
+
+    /** Write the branch instruction OPCODE to LABEL. */
+    public void jump(int opcode, Label label) {
+        int start = length;
+        put(opcode);
+        offset(start, label, 2);
+    }
+
+    /** Write a lookupswitch on the int on the stack, going to LABELS[i] for KEYS[i] (which must be in
+     *  ascending order), and to DEFAULTLABEL for any other value. */
+    public void lookupSwitch(int[] keys, Label[] labels, Label defaultLabel) {
+        int start = length;
+        put(LOOKUPSWITCH);
+        while (length % 4 != 0) {
+            put(0);
+        }
+        offset(start, defaultLabel, 4);
+        putInt(keys.length);
+        for (int i = 0; i < keys.length; i++) {
+            putInt(keys[i]);
+            offset(start, labels[i], 4);
+        }
+    }
+
+    /** Write a call of the method NAME with DESCRIPTOR of the class OWNER with the instruction OPCODE. */
+    public void invoke(int opcode, String owner, String name, String descriptor) {
+        put(opcode);
+        putShort(methodRef(owner, name, descriptor));
+    }
+
+    /** End the current method, a public method called NAME with DESCRIPTOR, and start the next one. */
+    public void endMethod(String name, String descriptor, int maxStack, int maxLocals) {
+        DataOutputStream out = new DataOutputStream(methods);
+        try {
+            out.writeShort(ACC_PUBLIC);
+            out.writeShort(utf8(name));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            // no exception table, and no attributes
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        methodCount += 1;
+        length = 0;
+    }
+
+    /** Return the class file of the final class NAME, extending SUPERNAME and implementing INTERFACES,
+     *  with the methods written so far. */
+    public byte[] toClassFile(String name, String superName, String... interfaces) {
+        int thisClass = classRef(name);
+        int superClass = classRef(superName);
+        int[] interfaceClasses = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceClasses[i] = classRef(interfaces[i]);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(0);
+            out.writeShort(VERSION);
+            out.writeShort(poolCount);
+            poolData.flush();
+            pool.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceClasses.length);
+            for (int interfaceClass : interfaceClasses) {
+                out.writeShort(interfaceClass);
+            }
+            // no fields
+            out.writeShort(0);
+            out.writeShort(methodCount);
+            methods.writeTo(out);
+            // no attributes
+            out.writeShort(0);
+            out.flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int utf8(String s) {
+        Integer index = poolIndexes.get("U" + s);
+        if (index == null) {
+            try {
+                poolData.writeByte(CONSTANT_UTF8);
+                poolData.writeUTF(s);
+            } catch (IOException ex) {
+                throw new UncheckedIOException(ex);
+            }
+            index = addConstant("U" + s);
+        }
+        return index;
+    }
+
+    private int classRef(String name) {
+        Integer index = poolIndexes.get("C" + name);
+        if (index == null) {
+            int nameIndex = utf8(name);
+            writeConstant(CONSTANT_CLASS, nameIndex);
+            index = addConstant("C" + name);
+        }
+        return index;
+    }
+
+    private int methodRef(String owner, String name, String descriptor) {
+        String key = "M" + owner + "." + name + descriptor;
+        Integer index = poolIndexes.get(key);
+        if (index == null) {
+            int ownerIndex = classRef(owner);
+            int nameIndex = utf8(name);
+            int descriptorIndex = utf8(descriptor);
+            writeConstant(CONSTANT_NAME_AND_TYPE, nameIndex, descriptorIndex);
+            int nameAndType = addConstant("N" + name + descriptor);
+            writeConstant(CONSTANT_METHODREF, ownerIndex, nameAndType);
+            index = addConstant(key);
+        }
+        return index;
+    }
+
+    private void writeConstant(int tag, int... indexes) {
+        try {
+            poolData.writeByte(tag);
+            for (int index : indexes) {
+                poolData.writeShort(index);
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private int addConstant(String key) {
+        int index = poolCount;
+        poolCount += 1;
+        poolIndexes.put(key, index);
+        return index;
+    }
+
+    /** Write the offset of LABEL from the instruction at START, in SIZE bytes. */
+    private void offset(int start, Label label, int size) {
+        if (label.position >= 0) {
+            int offset = label.position - start;
+            if (size == 2) {
+                putShort(offset);
+            } else {
+                putInt(offset);
+            }
+            return;
+        }
+        label.uses.add(new int[] {start, length, size});
+        for (int i = 0; i < size; i++) {
+            put(0);
+        }
+    }
+
+    private void put(int b) {
+        if (length == code.length) {
+            code = Arrays.copyOf(code, code.length * 2);
+        }
+        code[length++] = (byte) b;
+    }
+
+    private void putShort(int value) {
+        put(value >> 8);
+        put(value);
+    }
+
+    private void putInt(int value) {
+        putShort(value >> 16);
+        putShort(value);
+    }
+
+    private void setShort(int position, int value) {
+        code[position] = (byte) (value >> 8);
+        code[position + 1] = (byte) value;
+    }
+
+    private void setInt(int position, int value) {
+        setShort(position, value >> 16);
+        setShort(position + 2, value);
+    }
+}
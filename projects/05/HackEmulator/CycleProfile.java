@@ -0,0 +1,103 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A CycleProfile adds up the instructions a profiled HackCpu has run by the VM command and the
+ *  function they were translated from, as given by the SourceMap the VMTranslator wrote with the
+ *  program (--map). Instructions at addresses the map does not cover are counted as UNMAPPED.
+ *
+ *  print() prints the totals of each kind of command and of each function. writeStacks() writes the
+ *  count of each command in each function as collapsed stacks, one 'FUNCTION;COMMAND COUNT' line
+ *  each, which flame graph tools such as flamegraph.pl read as is.
+ */
+public class CycleProfile {
+    private static final String UNMAPPED = "(unmapped)";
+
+    private Map<String, Long> commands;
+    private Map<String, Long> functions;
+    private Map<String, Long> stacks;
+    private long total;
+
+    /** Add up COUNTS, the number of times the instruction at each address was run, by the ranges of
+     *  MAP. */
+    public CycleProfile(SourceMap map, long[] counts) {
+        commands = new HashMap<>();
+        functions = new HashMap<>();
+        stacks = new HashMap<>();
+        total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        long mapped = 0;
+        for (int i = 0; i < map.size(); i++) {
+            long count = 0;
+            for (int address = map.first(i); address <= map.last(i) && address < counts.length; address++) {
+                count += counts[address];
+            }
+            if (count > 0) {
+                add(map.command(i), map.function(i), count);
+                mapped += count;
+            }
+        }
+        if (total > mapped) {
+            add(UNMAPPED, UNMAPPED, total - mapped);
+        }
+    }
+
+    private void add(String command, String function, long count) {
+        commands.merge(command, count, Long::sum);
+        functions.merge(function, count, Long::sum);
+        stacks.merge(function + ';' + command, count, Long::sum);
+    }
+
+    /** The number of instructions counted. */
+    public long total() {
+        return total;
+    }
+
+    /** Print the instructions run by each kind of command and by each function to OUT, most first. */
+    public void print(PrintStream out) {
+        out.println("Instructions by command:");
+        printCounts(commands, out);
+        out.println("Instructions by function:");
+        printCounts(functions, out);
+    }
+
+    private void printCounts(Map<String, Long> counts, PrintStream out) {
+        for (Map.Entry<String, Long> entry : sorted(counts).entrySet()) {
+            out.printf("    %-32s %14d %6.2f%%%n", entry.getKey(), entry.getValue(),
+                    entry.getValue() * 100.0 / Math.max(1, total));
+        }
+    }
+
+    /** Write the instructions run by each command of each function, as collapsed stacks, to the file
+     *  named FILENAME. */
+    public void writeStacks(String fileName) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            for (Map.Entry<String, Long> entry : sorted(stacks).entrySet()) {
+                out.write(entry.getKey() + " " + entry.getValue());
+                out.newLine();
+            }
+        }
+    }
+
+    /** Return COUNTS in order of count, most first, and then of name. */
+    private static Map<String, Long> sorted(Map<String, Long> counts) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((x, y) -> x.getValue().equals(y.getValue()) ? x.getKey().compareTo(y.getKey())
+                : Long.compare(y.getValue(), x.getValue()));
+        Map<String, Long> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : entries) {
+            result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+}
@@ -0,0 +1,392 @@
+/** A HackCpu runs a Hack program, without any display or keyboard attached.
+ *
+ *  Every ROM word is decoded once, when the program is loaded, into an int holding what the interpreter
+ *  needs to run it:
+ *
+ *      bits 0-4:    the operation: one of the 28 computations of the machine language, ALU for any other
+ *                   computation (run through the ALU's control bits), LOAD for an A instruction, or HALT.
+ *      bits 5-7:    the dest bits (A, D, M).
+ *      bits 8-10:   the jump bits (lt, eq, gt).
+ *      bits 16-31:  the value of an A instruction.
+ *
+ *  The interpreter is a single loop that switches on the operation, the only branch that depends on
+ *  the instruction besides storing to M and jumping: the dest bits pick the new values of A and D
+ *  without a branch. It runs a slice of SLICE instructions at a time, so that the JIT compiles it as a
+ *  whole method rather than only the loop. The registers are kept in locals as sign extended 16 bit
+ *  values, and RAM is a short[] of the whole 15 bit address space, so no address is ever out of
+ *  range. The screen (SCREEN up to KBD) is plain RAM. KBD holds the code of the
+ *  key set with setKeyboard(), and writes to it are ignored, as they are by the keyboard.
+ *
+ *  Hack programs have no halt instruction, and end in an infinite loop instead, e.g.
+ *
+ *      (END)
+ *      @END
+ *      0;JMP
+ *
+ *  Any A instruction loading its own address, followed by '0;JMP', is decoded as HALT. The words past
+ *  the end of the program are HALT too, so the program halts when it runs off its end.
+ *
+ *  With setCompiling(true), the hot regions of the program are compiled to JVM bytecode by a
+ *  BlockCompiler, and the interpreter only runs the rest. Both give the same results.
+ */
+public class HackCpu {
+    public static final int SCREEN = 0x4000;
+    public static final int KBD = 0x6000;
+    public static final int SCREEN_WIDTH = 512;
+    public static final int SCREEN_HEIGHT = 256;
+    private static final int MEMORY_SIZE = 1 << 15;
+    private static final int ADDRESS_MASK = MEMORY_SIZE - 1;
+    /** The encoding of '0;JMP'. */
+    private static final int UNCONDITIONAL_JUMP = 0xEA87;
+    /** The number of instructions run by each call of the interpreter. */
+    private static final int SLICE = 1 << 20;
+
+    /** The operations. The 28 computations come first, in the order of their comp bits in COMPUTATIONS. */
+    private static final int ZERO = 0;
+    private static final int ONE = 1;
+    private static final int MINUS_ONE = 2;
+    private static final int D = 3;
+    private static final int A = 4;
+    private static final int NOT_D = 5;
+    private static final int NOT_A = 6;
+    private static final int NEG_D = 7;
+    private static final int NEG_A = 8;
+    private static final int D_PLUS_ONE = 9;
+    private static final int A_PLUS_ONE = 10;
+    private static final int D_MINUS_ONE = 11;
+    private static final int A_MINUS_ONE = 12;
+    private static final int D_PLUS_A = 13;
+    private static final int D_MINUS_A = 14;
+    private static final int A_MINUS_D = 15;
+    private static final int D_AND_A = 16;
+    private static final int D_OR_A = 17;
+    private static final int M = 18;
+    private static final int NOT_M = 19;
+    private static final int NEG_M = 20;
+    private static final int M_PLUS_ONE = 21;
+    private static final int M_MINUS_ONE = 22;
+    private static final int D_PLUS_M = 23;
+    private static final int D_MINUS_M = 24;
+    private static final int M_MINUS_D = 25;
+    private static final int D_AND_M = 26;
+    private static final int D_OR_M = 27;
+    private static final int ALU = 28;
+    private static final int LOAD = 29;
+    private static final int HALT = 30;
+    /** The comp bits (a c1 ... c6) of each computation. */
+    private static final int[] COMPUTATIONS = {
+            0b0101010, 0b0111111, 0b0111010, 0b0001100, 0b0110000, 0b0001101, 0b0110001, 0b0001111,
+            0b0110011, 0b0011111, 0b0110111, 0b0001110, 0b0110010, 0b0000010, 0b0010011, 0b0000111,
+            0b0000000, 0b0010101, 0b1110000, 0b1110001, 0b1110011, 0b1110111, 0b1110010, 0b1000010,
+            0b1010011, 0b1000111, 0b1000000, 0b1010101};
+    private static final int OPERATION_MASK = 0x1F;
+    private static final int DEST_SHIFT = 5;
+    private static final int JUMP_SHIFT = 8;
+    private static final int JUMP_MASK = 7 << JUMP_SHIFT;
+    private static final int VALUE_SHIFT = 16;
+    /** The dest bits. */
+    private static final int DEST_A = 4;
+    private static final int DEST_D = 2;
+    private static final int DEST_M = 1;
+    /** The jump bit that tests each sign of the result. */
+    private static final int JUMP_LT = 4;
+    private static final int JUMP_EQ = 2;
+    private static final int JUMP_GT = 1;
+
+    /** The decoded program, followed by HALT up to the end of the ROM, and once more for the address
+     *  after it. */
+    private int[] code;
+    /** The words of the program, for the comp bits of ALU computations. */
+    private short[] words;
+    private int programSize;
+    private short[] ram;
+    private int a;
+    private int d;
+    private int pc;
+    private long instructions;
+    /** The compiler of the program's hot regions, or null if it is only interpreted. */
+    private BlockCompiler compiler;
+    /** A, D and the budget left, passed to and from the compiled code. */
+    private int[] state;
+    /** The number of times the instruction at each address has been run, or null if they are not
+     *  counted. */
+    private long[] counts;
+
+    /** Load the program in IMAGE. */
+    public HackCpu(RomImage image) {
+        programSize = image.size();
+        words = new short[programSize];
+        for (int address = 0; address < programSize; address++) {
+            words[address] = image.word(address);
+        }
+        code = new int[MEMORY_SIZE + 1];
+        for (int address = 0; address < code.length; address++) {
+            code[address] = address < programSize ? decode(words, address) : HALT;
+        }
+        ram = new short[MEMORY_SIZE];
+        state = new int[3];
+        reset();
+    }
+
+    /** Compile the hot regions of the program to JVM bytecode if COMPILING is true (see BlockCompiler),
+     *  or else only interpret it, which is the default. */
+    public void setCompiling(boolean compiling) {
+        if (! compiling) {
+            compiler = null;
+        } else if (compiler == null) {
+            compiler = new BlockCompiler(words);
+        }
+    }
+
+    /** Count the times the instruction at each address is run, from 0, if PROFILING is true, or else
+     *  stop counting. The counts are kept by the interpreter, so a program is not compiled while it is
+     *  profiled. */
+    public void setProfiling(boolean profiling) {
+        counts = profiling ? new long[MEMORY_SIZE] : null;
+    }
+
+    /** The number of times the instruction at each address has been run since profiling started, or
+     *  null if the program is not profiled. */
+    public long[] counts() {
+        return counts;
+    }
+
+    /** The compiler of the program, or null if it is not being compiled. */
+    public BlockCompiler compiler() {
+        return compiler;
+    }
+
+    /** Decode the word at ADDRESS of the program WORDS. */
+    private static int decode(short[] words, int address) {
+        int word = words[address] & 0xFFFF;
+        if ((word & 0x8000) == 0) {
+            return halts(words, address) ? HALT : LOAD | word << VALUE_SHIFT;
+        }
+        int comp = (word >> 6) & 0x7F;
+        int operation = ALU;
+        for (int i = 0; i < COMPUTATIONS.length; i++) {
+            if (COMPUTATIONS[i] == comp) {
+                operation = i;
+            }
+        }
+        int dest = (word >> 3) & 7;
+        int jump = word & 7;
+        return operation | dest << DEST_SHIFT | jump << JUMP_SHIFT;
+    }
+
+    /** Return true if the instruction at ADDRESS of the program WORDS is decoded as HALT. */
+    static boolean halts(short[] words, int address) {
+        return (words[address] & 0xFFFF) == address && address + 1 < words.length
+                && (words[address + 1] & 0xFFFF) == UNCONDITIONAL_JUMP;
+    }
+
+    /** Set the registers, the program counter and the count of instructions to 0. RAM is unchanged. */
+    public void reset() {
+        a = 0;
+        d = 0;
+        pc = 0;
+        instructions = 0;
+    }
+
+    /** Run until the program halts, or until LIMIT more instructions have been run. Returns true if the
+     *  program halted. */
+    public boolean run(long limit) {
+        long left = limit;
+        while (left > 0) {
+            int slice = (int) Math.min(left, SLICE);
+            long before = instructions;
+            if (compiler != null && counts == null ? runCompiled(slice) : interpret(slice)) {
+                return true;
+            }
+            left -= instructions - before;
+        }
+        return false;
+    }
+
+    /** Run until the program halts, or until LIMIT more instructions have been run. Returns true if the
+     *  program halted. */
+    private boolean interpret(int limit) {
+        int[] code = this.code;
+        short[] ram = this.ram;
+        long[] counts = this.counts;
+        int a = this.a;
+        int d = this.d;
+        int pc = this.pc;
+        int count = 0;
+        boolean halted = false;
+        interpret:
+        while (count < limit) {
+            int op = code[pc];
+            int out;
+            switch (op & OPERATION_MASK) {
+                case LOAD:
+                    a = op >>> VALUE_SHIFT;
+                    if (counts != null) {
+                        counts[pc] += 1;
+                    }
+                    pc += 1;
+                    count += 1;
+                    continue;
+                case HALT:
+                    halted = true;
+                    break interpret;
+                case ZERO:        out = 0; break;
+                case ONE:         out = 1; break;
+                case MINUS_ONE:   out = -1; break;
+                case D:           out = d; break;
+                case A:           out = a; break;
+                case NOT_D:       out = ~d; break;
+                case NOT_A:       out = ~a; break;
+                case NEG_D:       out = (short) -d; break;
+                case NEG_A:       out = (short) -a; break;
+                case D_PLUS_ONE:  out = (short) (d + 1); break;
+                case A_PLUS_ONE:  out = (short) (a + 1); break;
+                case D_MINUS_ONE: out = (short) (d - 1); break;
+                case A_MINUS_ONE: out = (short) (a - 1); break;
+                case D_PLUS_A:    out = (short) (d + a); break;
+                case D_MINUS_A:   out = (short) (d - a); break;
+                case A_MINUS_D:   out = (short) (a - d); break;
+                case D_AND_A:     out = d & a; break;
+                case D_OR_A:      out = d | a; break;
+                case M:           out = ram[a & ADDRESS_MASK]; break;
+                case NOT_M:       out = ~ram[a & ADDRESS_MASK]; break;
+                case NEG_M:       out = (short) -ram[a & ADDRESS_MASK]; break;
+                case M_PLUS_ONE:  out = (short) (ram[a & ADDRESS_MASK] + 1); break;
+                case M_MINUS_ONE: out = (short) (ram[a & ADDRESS_MASK] - 1); break;
+                case D_PLUS_M:    out = (short) (d + ram[a & ADDRESS_MASK]); break;
+                case D_MINUS_M:   out = (short) (d - ram[a & ADDRESS_MASK]); break;
+                case M_MINUS_D:   out = (short) (ram[a & ADDRESS_MASK] - d); break;
+                case D_AND_M:     out = d & ram[a & ADDRESS_MASK]; break;
+                case D_OR_M:      out = d | ram[a & ADDRESS_MASK]; break;
+                default:          out = alu((words[pc] >> 6) & 0x7F, d, a, ram[a & ADDRESS_MASK]); break;
+            }
+            // M is written at the address in A before the instruction, and the jump goes there too
+            int address = a;
+            if ((op & DEST_M << DEST_SHIFT) != 0) {
+                store(ram, address, out);
+            }
+            d = (op & DEST_D << DEST_SHIFT) != 0 ? out : d;
+            a = (op & DEST_A << DEST_SHIFT) != 0 ? out : a;
+            if (counts != null) {
+                counts[pc] += 1;
+            }
+            pc += 1;
+            if ((op & JUMP_MASK) != 0) {
+                int sign = out < 0 ? JUMP_LT : out == 0 ? JUMP_EQ : JUMP_GT;
+                pc = ((op >> JUMP_SHIFT) & sign) != 0 ? address & ADDRESS_MASK : pc;
+            }
+            count += 1;
+        }
+        this.a = a;
+        this.d = d;
+        this.pc = pc;
+        instructions += count;
+        return halted;
+    }
+
+    /** Run until the program halts, or until LIMIT more instructions have been run, in the compiled
+     *  code of each region where there is some. Returns true if the program halted. The code from an
+     *  address that is not the entry of a compiled region is interpreted one instruction at a time, as
+     *  is the code when the budget left is less than the block at PC. */
+    private boolean runCompiled(int limit) {
+        int left = limit;
+        while (left > 0) {
+            BlockCompiler.Region region = compiler.regionAt(pc);
+            int run = 0;
+            if (region != null) {
+                state[0] = a;
+                state[1] = d;
+                int next = region.run(ram, state, pc, left);
+                run = left - state[2];
+                a = state[0];
+                d = state[1];
+                pc = next;
+                instructions += run;
+                left -= run;
+            }
+            if (run == 0) {
+                if (interpret(1)) {
+                    return true;
+                }
+                left -= 1;
+            }
+        }
+        return false;
+    }
+
+    private static void store(short[] ram, int address, int value) {
+        int masked = address & ADDRESS_MASK;
+        if (masked != KBD) {
+            ram[masked] = (short) value;
+        }
+    }
+
+    /** Compute the comp bits COMP (a c1 ... c6) the way the ALU does, for computations that are not
+     *  part of the machine language. */
+    static int alu(int comp, int d, int a, int m) {
+        int x = d;
+        int y = (comp & 0x40) != 0 ? m : a;
+        if ((comp & 0x20) != 0) {
+            x = 0;
+        }
+        if ((comp & 0x10) != 0) {
+            x = ~x;
+        }
+        if ((comp & 0x8) != 0) {
+            y = 0;
+        }
+        if ((comp & 0x4) != 0) {
+            y = ~y;
+        }
+        int out = (comp & 0x2) != 0 ? x + y : x & y;
+        if ((comp & 0x1) != 0) {
+            out = ~out;
+        }
+        return (short) out;
+    }
+
+    /** Return the value at ADDRESS of RAM. */
+    public int peek(int address) {
+        return ram[address & ADDRESS_MASK];
+    }
+
+    /** Set ADDRESS of RAM to VALUE. */
+    public void poke(int address, int value) {
+        ram[address & ADDRESS_MASK] = (short) value;
+    }
+
+    /** Set the code of the key being pressed, or 0 for none. */
+    public void setKeyboard(int key) {
+        ram[KBD] = (short) key;
+    }
+
+    public int a() {
+        return a;
+    }
+
+    public int d() {
+        return d;
+    }
+
+    public int pc() {
+        return pc;
+    }
+
+    /** The number of instructions run since the last reset. */
+    public long instructions() {
+        return instructions;
+    }
+
+    /** Return true if the program counter is past the end of the program. */
+    public boolean pastEnd() {
+        return pc >= programSize;
+    }
+
+    /** Return the row Y of the screen as SCREEN_WIDTH / 16 words. Bit 0 of each word is its leftmost
+     *  pixel. */
+    public short[] screenRow(int y) {
+        short[] row = new short[SCREEN_WIDTH / 16];
+        System.arraycopy(ram, SCREEN + y * row.length, row, 0, row.length);
+        return row;
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** The HackEmulator runs a .hack program (a text or binary ROM image, as written by the HackAssembler
+ *  and the VMTranslator) on a HackCpu, without a display, and reports how fast it ran. It is compiled
+ *  with the shared directory on the source path:
+ *
+ *      javac -sourcepath ../../shared *.java
+ *
+ *  By default the program runs until it halts, i.e. until it reaches the infinite loop Hack programs
+ *  end with, or runs off the end of its code. With --cycles=N it stops after N instructions if it has
+ *  not halted by then. With --jit the hot loops of the program are compiled to JVM bytecode rather
+ *  than interpreted (see BlockCompiler).
+ *
+ *  With --profile=FILE.map, the instructions run are counted at each address, and added up by the VM
+ *  command and the function they come from, by the source map the VMTranslator wrote for the program
+ *  with --map (see CycleProfile). With --stacks=FILE, the counts are also written to FILE as collapsed
+ *  stacks for a flame graph. A program is only interpreted while it is profiled.
+ */
+public class HackEmulator {
+
+    private static final String CYCLES_OPTION = "--cycles=";
+    private static final String RAM_OPTION = "--ram=";
+    private static final String KEY_OPTION = "--key=";
+    private static final String SCREEN_OPTION = "--screen=";
+    private static final String JIT_OPTION = "--jit";
+    private static final String PROFILE_OPTION = "--profile=";
+    private static final String STACKS_OPTION = "--stacks=";
+
+    private static void usageError(String message) {
+        System.out.println("Error: " + message);
+        System.out.println("Usage: HackEmulator [--cycles=N] [--ram=FROM[-TO]] [--key=CODE] [--screen=FILE.pbm] [--jit]\n"
+                + "                   [--profile=FILE.map] [--stacks=FILE] program.hack");
+        System.exit(-4);
+    }
+
+    /** Parse the number after the option PREFIX in ARG, which must be at least MIN. */
+    private static long parseNumber(String arg, String prefix, long min) {
+        long value;
+        try {
+            value = Long.parseLong(arg.substring(prefix.length()));
+        } catch (NumberFormatException ex) {
+            value = min - 1;
+        }
+        if (value < min) {
+            usageError("Invalid number in '" + arg + "'");
+        }
+        return value;
+    }
+
+    public static void main(String[] args) {
+        long cycles = Long.MAX_VALUE;
+        int ramFrom = 0;
+        int ramTo = -1;
+        int key = 0;
+        String screenFile = null;
+        boolean compiling = false;
+        String mapFile = null;
+        String stacksFile = null;
+        String fileName = null;
+        for (String arg : args) {
+            if (arg.startsWith(CYCLES_OPTION)) {
+                cycles = parseNumber(arg, CYCLES_OPTION, 1);
+            } else if (arg.startsWith(RAM_OPTION)) {
+                String range = arg.substring(RAM_OPTION.length());
+                int dash = range.indexOf('-');
+                String from = dash < 0 ? range : range.substring(0, dash);
+                String to = dash < 0 ? range : range.substring(dash + 1);
+                ramFrom = (int) parseNumber(RAM_OPTION + from, RAM_OPTION, 0);
+                ramTo = (int) parseNumber(RAM_OPTION + to, RAM_OPTION, ramFrom);
+                if (ramTo > HackCpu.KBD) {
+                    usageError("RAM address out of range in '" + arg + "'");
+                }
+            } else if (arg.startsWith(KEY_OPTION)) {
+                key = (int) parseNumber(arg, KEY_OPTION, 0);
+            } else if (arg.startsWith(SCREEN_OPTION)) {
+                screenFile = arg.substring(SCREEN_OPTION.length());
+            } else if (arg.equals(JIT_OPTION)) {
+                compiling = true;
+            } else if (arg.startsWith(PROFILE_OPTION)) {
+                mapFile = arg.substring(PROFILE_OPTION.length());
+            } else if (arg.startsWith(STACKS_OPTION)) {
+                stacksFile = arg.substring(STACKS_OPTION.length());
+            } else if (arg.startsWith("--")) {
+                usageError("Unknown option '" + arg + "'");
+            } else if (fileName == null) {
+                fileName = arg;
+            } else {
+                usageError("Only one program can be run");
+            }
+        }
+        if (fileName == null) {
+            usageError("Program file argument required");
+        }
+        if (stacksFile != null && mapFile == null) {
+            usageError("--stacks can only be used with --profile");
+        }
+        if (compiling && mapFile != null) {
+            usageError("--jit cannot be used with --profile");
+        }
+        HackCpu cpu = null;
+        SourceMap map = null;
+        String reading = fileName;
+        try {
+            cpu = new HackCpu(RomImage.read(fileName));
+            if (mapFile != null) {
+                reading = mapFile;
+                map = SourceMap.read(mapFile);
+            }
+        } catch (RuntimeException ex) {
+            System.out.println(ex.getMessage());
+            System.exit(-7);
+        } catch (IOException ex) {
+            System.out.println("Unable to read file '" + reading + "'");
+            System.exit(-1);
+        }
+        cpu.setKeyboard(key);
+        cpu.setCompiling(compiling);
+        cpu.setProfiling(map != null);
+        long start = System.nanoTime();
+        boolean halted = cpu.run(cycles);
+        long elapsed = Math.max(1, System.nanoTime() - start);
+        if (! halted) {
+            System.out.println("Stopped after " + cpu.instructions() + " instructions at PC " + cpu.pc());
+        } else if (cpu.pastEnd()) {
+            System.out.println("Halted after " + cpu.instructions() + " instructions, at the end of the program");
+        } else {
+            System.out.println("Halted after " + cpu.instructions() + " instructions, in the infinite loop at PC "
+                    + cpu.pc());
+        }
+        System.out.printf("Ran in %.3f seconds, %.1f million instructions per second%n", elapsed / 1e9,
+                cpu.instructions() * 1e3 / elapsed);
+        BlockCompiler compiler = cpu.compiler();
+        if (compiler != null) {
+            System.out.println("Compiled " + compiler.compiledRegions() + " of " + compiler.regions() + " regions"
+                    + (compiler.regionsTooLarge() > 0 ? ", " + compiler.regionsTooLarge() + " too large" : ""));
+        }
+        if (map != null) {
+            CycleProfile profile = new CycleProfile(map, cpu.counts());
+            profile.print(System.out);
+            if (stacksFile != null) {
+                try {
+                    profile.writeStacks(stacksFile);
+                } catch (IOException ex) {
+                    System.out.println("Failed to write to '" + stacksFile + "'");
+                    System.exit(-6);
+                }
+            }
+        }
+        for (int address = ramFrom; address <= ramTo; address++) {
+            System.out.println("RAM[" + address + "] = " + cpu.peek(address));
+        }
+        if (screenFile != null) {
+            try {
+                writeScreen(cpu, screenFile);
+            } catch (IOException ex) {
+                System.out.println("Failed to write to '" + screenFile + "'");
+                System.exit(-6);
+            }
+        }
+    }
+
+    /** Write the screen of CPU to the file named FILENAME as a binary PBM image, in which a 1 bit is
+     *  black, as it is on the Hack screen. */
+    private static void writeScreen(HackCpu cpu, String fileName) throws IOException {
+        byte[] header = ("P4\n" + HackCpu.SCREEN_WIDTH + " " + HackCpu.SCREEN_HEIGHT + "\n").getBytes();
+        ByteBuffer image = ByteBuffer.allocate(header.length + HackCpu.SCREEN_WIDTH / 8 * HackCpu.SCREEN_HEIGHT);
+        image.put(header);
+        for (int y = 0; y < HackCpu.SCREEN_HEIGHT; y++) {
+            for (short word : cpu.screenRow(y)) {
+                // the leftmost pixel is bit 0 of a screen word, and the most significant bit of a PBM byte
+                image.putShort((short) (Integer.reverse(word) >>> 16));
+            }
+        }
+        image.flip();
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (image.hasRemaining()) {
+                channel.write(image);
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.Random;
+
+/** The JitFuzzer checks the HackCpu's compiled code (--jit) against its interpreter. It makes random
+ *  ROMs, runs each one from the same random RAM both interpreted and compiled, for the same random
+ *  number of instructions, and compares the registers, the count of instructions and the whole of
+ *  RAM. It is compiled with the emulator:
+ *
+ *      javac -sourcepath ../../shared *.java
+ *      java JitFuzzer [--seed=N] [--programs=N]
+ *
+ *  By default 300 ROMs are made, from seed 1. ROM i is made from seed + i.
+ *
+ *  The ROMs are not written by an assembler, and use what an assembler would not: A instructions load
+ *  mostly addresses within the ROM, so computed jumps land all over it, and also KBD and any
+ *  other value. C instructions use any of the 128 comp bit patterns, not only the 28 computations, and
+ *  any destination and jump. Some ROMs are long enough to hold several regions, and a few halting
+ *  loops are mixed in, so programs also halt part of the way through a compiled region.
+ */
+public class JitFuzzer {
+    private static final String SEED_OPTION = "--seed=";
+    private static final String PROGRAMS_OPTION = "--programs=";
+    /** The most instructions a ROM is run for. */
+    private static final int MAX_INSTRUCTIONS = 300_000;
+    private static final int RAM_SIZE = 1 << 15;
+    private static final int KEY = 77;
+    /** The comp bits of the 28 computations of the machine language. */
+    private static final int[] COMPUTATIONS = {
+            0b0101010, 0b0111111, 0b0111010, 0b0001100, 0b0110000, 0b0001101, 0b0110001, 0b0001111,
+            0b0110011, 0b0011111, 0b0110111, 0b0001110, 0b0110010, 0b0000010, 0b0010011, 0b0000111,
+            0b0000000, 0b0010101, 0b1110000, 0b1110001, 0b1110011, 0b1110111, 0b1110010, 0b1000010,
+            0b1010011, 0b1000111, 0b1000000, 0b1010101};
+    private static final int C_INSTRUCTION = 0xE000;
+    private static final int UNCONDITIONAL_JUMP = 0xEA87;
+
+    private static void usageError(String message) {
+        System.out.println("Error: " + message);
+        System.out.println("Usage: JitFuzzer [--seed=N] [--programs=N]");
+        System.exit(-4);
+    }
+
+    /** Parse the number in an option of the form NAME=N, which must be at least MIN. */
+    private static long parseNumber(String arg, String name, long min) {
+        long value;
+        try {
+            value = Long.parseLong(arg.substring(name.length()));
+        } catch (NumberFormatException ex) {
+            value = min - 1;
+        }
+        if (value < min) {
+            usageError("Invalid number in '" + arg + "'");
+        }
+        return value;
+    }
+
+    public static void main(String[] args) {
+        long seed = 1;
+        long programs = 300;
+        for (String arg : args) {
+            if (arg.startsWith(SEED_OPTION)) {
+                seed = parseNumber(arg, SEED_OPTION, Long.MIN_VALUE + 1);
+            } else if (arg.startsWith(PROGRAMS_OPTION)) {
+                programs = parseNumber(arg, PROGRAMS_OPTION, 1);
+            } else {
+                usageError("Unknown argument '" + arg + "'");
+            }
+        }
+
+        long start = System.nanoTime();
+        long compiled = 0;
+        int failures = 0;
+        for (long i = 0; i < programs; i++) {
+            Random random = new Random(seed + i);
+            RomImage image = new RomImage(rom(random, i % 10 == 0 ? 3000 : 200));
+            HackCpu interpreted = new HackCpu(image);
+            HackCpu jit = new HackCpu(image);
+            jit.setCompiling(true);
+            for (int address = 0; address < RAM_SIZE; address++) {
+                int value = random.nextInt(1 << 16);
+                interpreted.poke(address, value);
+                jit.poke(address, value);
+            }
+            interpreted.setKeyboard(KEY);
+            jit.setKeyboard(KEY);
+            long limit = 1 + random.nextInt(MAX_INSTRUCTIONS);
+            String failure = compare(interpreted.run(limit), interpreted, jit.run(limit), jit);
+            compiled += jit.compiler().compiledRegions();
+            if (failure != null) {
+                System.out.println("FAIL seed " + (seed + i) + " after " + limit + " instructions: " + failure);
+                failures += 1;
+            }
+        }
+        System.out.printf("Passed %d of %d ROMs in %.1f ms, compiling %d regions%n", programs - failures, programs,
+                (System.nanoTime() - start) / 1e6, compiled);
+        if (failures > 0) {
+            System.exit(-7);
+        }
+    }
+
+    /** Compare the state the interpreter EXPECTED and the compiled code ACTUAL are in, after returning
+     *  EXPECTEDHALTED and ACTUALHALTED from run(). Returns a description of the first difference, or
+     *  null if there is none. */
+    private static String compare(boolean expectedHalted, HackCpu expected, boolean actualHalted, HackCpu actual) {
+        if (actualHalted != expectedHalted) {
+            return actualHalted ? "halted, the interpreter did not" : "did not halt, the interpreter did";
+        }
+        if (actual.pc() != expected.pc()) {
+            return "PC is " + actual.pc() + ", expected " + expected.pc();
+        }
+        if (actual.instructions() != expected.instructions()) {
+            return "ran " + actual.instructions() + " instructions, expected " + expected.instructions();
+        }
+        if (actual.a() != expected.a() || actual.d() != expected.d()) {
+            return "A and D are " + actual.a() + " and " + actual.d() + ", expected " + expected.a() + " and "
+                    + expected.d();
+        }
+        for (int address = 0; address < RAM_SIZE; address++) {
+            if (actual.peek(address) != expected.peek(address)) {
+                return "RAM[" + address + "] is " + actual.peek(address) + ", expected " + expected.peek(address);
+            }
+        }
+        return null;
+    }
+
+    /** Return a random ROM of about SIZE words, made with RANDOM. */
+    private static short[] rom(Random random, int size) {
+        int length = 20 + random.nextInt(size);
+        short[] words = new short[length];
+        for (int i = 0; i < length; i++) {
+            if (random.nextInt(200) == 0 && i + 1 < length) {
+                // a loop that halts the program
+                words[i] = (short) i;
+                words[i + 1] = (short) UNCONDITIONAL_JUMP;
+                i += 1;
+                continue;
+            }
+            int word;
+            if (random.nextInt(10) < 4) {
+                if (random.nextInt(8) == 0) {
+                    word = random.nextBoolean() ? HackCpu.KBD : random.nextInt(1 << 15);
+                } else {
+                    word = random.nextInt(length + 2);
+                }
+            } else {
+                int comp = random.nextInt(3) == 0 ? random.nextInt(1 << 7)
+                        : COMPUTATIONS[random.nextInt(COMPUTATIONS.length)];
+                int jump = random.nextInt(3) == 0 ? random.nextInt(8) : 0;
+                word = C_INSTRUCTION | comp << 6 | random.nextInt(8) << 3 | jump;
+            }
+            words[i] = (short) word;
+        }
+        return words;
+    }
+}
@@ -0,0 +1,162 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** An Assembler translates a stream of Instructions into Hack machine code in a single pass.
+ *
+ *  Every A or C instruction is encoded as soon as it is read and handed to a RomBuilder, which
+ *  stores it as a 16 bit word. A instructions that refer to symbols that have not been defined yet
+ *  are backpatched by the builder when the matching label is found, or when the end of the input is
+ *  reached. Symbols that are never defined as labels are variables, given memory addresses
+ *  (starting at 16) in the order in which they were first used. See RomBuilder for the details.
+ *
+ *  For very large programs, assembleParallel() encodes the words on a ForkJoinPool instead. A cheap
+ *  sequential prepass gives the labels and then the variables their addresses, in the same order as
+ *  the single pass does, after which every word can be encoded on its own.
+ */
+public class Assembler {
+    /** The number of words a parallel task encodes without splitting further. */
+    private static final int PARALLEL_CHUNK_SIZE = 1 << 14;
+
+    private CodeGenerator codeGen;
+    private RomBuilder rom;
+
+    public Assembler(SymbolTable symbols) {
+        codeGen = new CodeGenerator();
+        rom = new RomBuilder(symbols);
+    }
+
+    /** Read every instruction from BUILDER, then resolve the remaining symbols. */
+    public void assemble(InstructionBuilder builder) {
+        Instruction instr;
+        while ((instr = builder.buildNextInstruction()) != null) {
+            add(instr);
+        }
+        finish();
+    }
+
+    /** Add a single instruction to the program. L instructions define a label at the address of the
+     *  next word and do not generate any code. */
+    public void add(Instruction i) {
+        if (rom.isFinished()) {
+            throw new RuntimeException("Attempt to add an instruction to a finished program -> " + i);
+        }
+        if (i.isLInstruction()) {
+            if (! rom.defineLabel(i.label())) {
+                throw new RuntimeException("Duplicate label: " + i.details());
+            }
+        } else if (i.isAInstruction()) {
+            addAInstruction(i);
+        } else if (i.isCInstruction()) {
+            rom.addWord(codeGen.encodeCInstruction(i));
+        } else {
+            throw new RuntimeException("Invalid instruction passed to add -> " + i);
+        }
+    }
+
+    /** Allocate addresses for every symbol that was never defined as a label, in order of first
+     *  use, and patch the words that refer to them. */
+    public void finish() {
+        rom.finish();
+    }
+
+    /** The number of machine code words in the program. */
+    public int size() {
+        return rom.size();
+    }
+
+    /** Return the machine code word at ADDRESS. */
+    public short word(int address) {
+        return rom.word(address);
+    }
+
+    /** Return the encoded program as a ROM image. The image shares the assembler's word array. */
+    public RomImage image() {
+        return rom.image();
+    }
+
+    /** Assemble PROGRAM with SYMBOLS, encoding its words in parallel on POOL. The result is the same as
+     *  adding each instruction to an Assembler, and so are the errors: if the program has any, it is
+     *  assembled again in order, to throw the first one.
+     */
+    public static RomImage assembleParallel(List<Instruction> program, SymbolTable symbols, ForkJoinPool pool) {
+        try {
+            // Labels first, then variables in order of first use, as the single pass gives them
+            List<Instruction> code = new ArrayList<>();
+            for (Instruction i : program) {
+                if (! i.isLInstruction()) {
+                    code.add(i);
+                } else if (symbols.contains(i.label())) {
+                    throw new RuntimeException("Duplicate label: " + i.details());
+                } else {
+                    symbols.addSymbol(i.label(), code.size());
+                }
+            }
+            for (Instruction i : code) {
+                if (i.isAInstruction() && i.address() == Instruction.NOT_CONSTANT) {
+                    symbols.getValue(i.symbol());
+                }
+            }
+            short[] words = new short[code.size()];
+            pool.invoke(new EncodeTask(code, symbols, words, 0, words.length));
+            return new RomImage(words);
+        } catch (RuntimeException ex) {
+            Assembler assembler = new Assembler(new SymbolTable());
+            for (Instruction i : program) {
+                assembler.add(i);
+            }
+            throw ex;
+        }
+    }
+
+    /** Encodes the instructions of CODE from index FROM to index TO (exclusive) into the same range of
+     *  WORDS, splitting the range in half until it is no larger than PARALLEL_CHUNK_SIZE. Every symbol
+     *  already has a value, so SYMBOLS is only read. */
+    private static class EncodeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private List<Instruction> code;
+        private SymbolTable symbols;
+        private short[] words;
+        private int from;
+        private int to;
+
+        EncodeTask(List<Instruction> code, SymbolTable symbols, short[] words, int from, int to) {
+            this.code = code;
+            this.symbols = symbols;
+            this.words = words;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_CHUNK_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new EncodeTask(code, symbols, words, from, middle),
+                        new EncodeTask(code, symbols, words, middle, to));
+                return;
+            }
+            CodeGenerator codeGen = new CodeGenerator();
+            for (int n = from; n < to; n++) {
+                Instruction i = code.get(n);
+                if (i.isCInstruction()) {
+                    words[n] = (short) codeGen.encodeCInstruction(i);
+                } else {
+                    int value = i.address();
+                    words[n] = (short) (value != Instruction.NOT_CONSTANT ? value : symbols.getValue(i.symbol()));
+                }
+            }
+        }
+    }
+
+    private void addAInstruction(Instruction i) {
+        int value = i.address();
+        if (value != Instruction.NOT_CONSTANT) {
+            rom.addWord(value);
+        } else {
+            rom.addSymbol(i.symbol());
+        }
+    }
+}
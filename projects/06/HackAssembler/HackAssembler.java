@@ -1,60 +1,325 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.util.LinkedList;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 public class HackAssembler {
 
-    private static final String NEWLINE = "\n";
+    private static final String FORMAT_OPTION = "--format=";
+    private static final String HEADER_OPTION = "--header";
+    private static final String PARALLEL_OPTION = "--parallel";
+    private static final String JOBS_OPTION = "--jobs";
+    private static final String WATCH_OPTION = "--watch";
+    private static final String OPTIMIZE_OPTION = "-O";
+    /** How long to wait after a change before reassembling, so that a burst of writes from an editor
+     *  only causes one rebuild. */
+    private static final long WATCH_DELAY_MILLIS = 50;
+    private static final String ASM_EXTENSION = ".asm";
+    private static final String TEXT_EXTENSION = ".hack";
+    private static final String BINARY_EXTENSION = ".bin";
+
+    private static void usageError(String message) {
+        System.out.println("Error: " + message);
+        System.out.println("Usage: HackAssembler [--format=text|bin] [--header] [--parallel[=N]] input.asm [output]");
+        System.out.println("       HackAssembler [--format=text|bin] [--header] --watch input.asm [output]");
+        System.out.println("       HackAssembler [--format=text|bin] [--header] [--jobs[=N]] (file.asm | directory)...");
+        System.exit(-4);
+    }
+
+    /** Parse a thread count option of the form NAME or NAME=N. NAME on its own uses one thread per core. */
+    private static int parseThreadCount(String arg, String name) {
+        if (arg.equals(name)) {
+            return Runtime.getRuntime().availableProcessors();
+        }
+        int threads;
+        try {
+            threads = Integer.parseInt(arg.substring(name.length() + 1));
+        } catch (NumberFormatException ex) {
+            threads = 0;
+        }
+        if (threads < 1) {
+            usageError("Invalid thread count in '" + arg + "'");
+        }
+        return threads;
+    }
+
+    /** Return the name of the output file for INPUT when none is given. */
+    private static String defaultOutput(String input, RomImage.Format format) {
+        String extension = format == RomImage.Format.BINARY ? BINARY_EXTENSION : TEXT_EXTENSION;
+        return input.substring(0, input.length()-ASM_EXTENSION.length()) + extension;
+    }
+
+    /** Add every input named in INPUTS to a list of assembly files. Directories are replaced by the
+     *  .asm files they contain, in name order. */
+    private static List<String> buildFileList(List<String> inputs) {
+        List<String> files = new ArrayList<>();
+        for (String input : inputs) {
+            File file = new File(input);
+            if (file.isDirectory()) {
+                String[] names = file.list();
+                Arrays.sort(names);
+                for (String name : names) {
+                    if (name.endsWith(ASM_EXTENSION)) {
+                        files.add(new File(file, name).getPath());
+                    }
+                }
+            } else {
+                files.add(input);
+            }
+        }
+        return files;
+    }
+
+    /** Assemble the file named INPUT and write the machine code to OUTPUT. If OPTIMIZE is true, the
+     *  program is run through the peephole optimizer first and the size reduction is printed. If POOL
+     *  is not null, the words are encoded and the output is formatted in parallel on it. Errors in the
+     *  assembly code are thrown as RuntimeExceptions, failures to write the output as IOExceptions.
+     */
+    private static void assembleFile(String input, String output, RomImage.Format format, boolean header,
+                                     boolean optimize, ForkJoinPool pool) throws IOException {
+        /** Create an instruction builder to parse the assembly code and feed each instruction
+         *  into the assembler, which encodes it and resolves labels as they are found. Each file gets
+         *  its own symbol table, built on the shared predefined symbols. The optimizer and the parallel
+         *  encoder need the whole program, so in those cases the instructions are collected first.
+         */
+        InstructionBuilder builder = new InstructionBuilder(input);
+        RomImage image;
+        if (optimize || pool != null) {
+            List<Instruction> program = new ArrayList<>();
+            Instruction instr;
+            while ((instr = builder.buildNextInstruction()) != null) {
+                program.add(instr);
+            }
+            if (optimize) {
+                PeepholeOptimizer optimizer = new PeepholeOptimizer();
+                program = optimizer.optimize(program);
+                System.out.println(input + ": " + optimizer.report());
+            }
+            if (pool != null) {
+                image = Assembler.assembleParallel(program, new SymbolTable(), pool);
+            } else {
+                Assembler assembler = new Assembler(new SymbolTable());
+                for (Instruction i : program) {
+                    assembler.add(i);
+                }
+                assembler.finish();
+                image = assembler.image();
+            }
+        } else {
+            Assembler assembler = new Assembler(new SymbolTable());
+            assembler.assemble(builder);
+            image = assembler.image();
+        }
+        if (pool != null) {
+            image.writeParallel(output, format, header, pool);
+        } else {
+            image.write(output, format, header);
+        }
+    }
+
+    /** Assemble every file in FILES on a pool of JOBS threads. Failures are reported for each file
+     *  without stopping the others. Returns the number of files that failed. */
+    private static int assembleBatch(List<String> files, RomImage.Format format, boolean header,
+                                     boolean optimize, int jobs, ForkJoinPool pool) {
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        List<Future<?>> results = new ArrayList<>();
+        for (String input : files) {
+            String output = defaultOutput(input, format);
+            results.add(executor.submit(() -> {
+                assembleFile(input, output, format, header, optimize, pool);
+                return null;
+            }));
+        }
+        int failures = 0;
+        for (int i = 0; i < files.size(); i++) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    System.out.println(files.get(i) + ": Failed to write to '" + defaultOutput(files.get(i), format) + "'");
+                } else {
+                    System.out.println(files.get(i) + ": " + cause.getMessage());
+                }
+                failures += 1;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failures += 1;
+            }
+        }
+        executor.shutdown();
+        System.out.println("Assembled " + (files.size() - failures) + " of " + files.size() + " files");
+        return failures;
+    }
+
+    /** Assemble the file named INPUT, then keep watching it and reassemble it every time it changes.
+     *  Only the lines that changed are lexed and encoded again. Errors in the assembly code are
+     *  printed and the last good output is kept, so that watching continues until the process is
+     *  stopped.
+     */
+    private static void watchFile(String input, String output, RomImage.Format format, boolean header)
+            throws IOException {
+        Path path = Paths.get(input).toAbsolutePath();
+        IncrementalAssembler assembler = new IncrementalAssembler(input);
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        rebuild(path, assembler, output, format, header);
+        while (true) {
+            WatchKey key;
+            try {
+                key = watcher.take();
+                Thread.sleep(WATCH_DELAY_MILLIS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+            boolean changed = false;
+            for (WatchEvent<?> event : key.pollEvents()) {
+                Object context = event.context();
+                changed = changed || path.getFileName().equals(context);
+            }
+            key.reset();
+            if (changed && Files.exists(path)) {
+                rebuild(path, assembler, output, format, header);
+            }
+        }
+    }
+
+    /** Bring ASSEMBLER up to date with the file at PATH and write its image to OUTPUT. */
+    private static void rebuild(Path path, IncrementalAssembler assembler, String output,
+                                RomImage.Format format, boolean header) throws IOException {
+        long start = System.nanoTime();
+        try {
+            assembler.update(Files.readAllBytes(path));
+        } catch (RuntimeException ex) {
+            System.out.println(ex.getMessage());
+            return;
+        }
+        assembler.image().write(output, format, header);
+        long micros = (System.nanoTime() - start) / 1000;
+        System.out.println(assembler.report() + " (" + micros + " us)");
+    }
 
     public static void main(String[] args) {
+        /** Separate the options from the input and output file arguments. */
+        RomImage.Format format = RomImage.Format.TEXT;
+        boolean header = false;
+        int threads = 0;
+        int jobs = 0;
+        boolean watch = false;
+        boolean optimize = false;
+        List<String> files = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith(FORMAT_OPTION)) {
+                String name = arg.substring(FORMAT_OPTION.length());
+                if (name.equals("text")) {
+                    format = RomImage.Format.TEXT;
+                } else if (name.equals("bin")) {
+                    format = RomImage.Format.BINARY;
+                } else {
+                    usageError("Unknown output format '" + name + "'");
+                }
+            } else if (arg.equals(HEADER_OPTION)) {
+                header = true;
+            } else if (arg.equals(PARALLEL_OPTION) || arg.startsWith(PARALLEL_OPTION + "=")) {
+                threads = parseThreadCount(arg, PARALLEL_OPTION);
+            } else if (arg.equals(JOBS_OPTION) || arg.startsWith(JOBS_OPTION + "=")) {
+                jobs = parseThreadCount(arg, JOBS_OPTION);
+            } else if (arg.equals(WATCH_OPTION)) {
+                watch = true;
+            } else if (arg.equals(OPTIMIZE_OPTION)) {
+                optimize = true;
+            } else if (arg.startsWith("-")) {
+                usageError("Unknown option '" + arg + "'");
+            } else {
+                files.add(arg);
+            }
+        }
+        if (header && format != RomImage.Format.BINARY) {
+            usageError("--header can only be used with --format=bin");
+        }
+
         /** Check inputs and determine what the output file should be named. */
-        if (args.length < 1) {
+        if (files.size() < 1) {
             System.out.println("Error: Input file argument required");
             System.out.println();
             System.exit(-4);
         }
-        String fileName = args[0];
-        String output;
-        if (args.length > 1) {
-            output = args[1]; 
-        } else {
-            output = fileName.substring(0, fileName.length()-4) + ".hack";
+        if (watch && (jobs > 0 || threads > 0 || files.size() > 2 || new File(files.get(0)).isDirectory())) {
+            usageError("--watch can only be used with a single input file");
         }
+        if (watch && optimize) {
+            usageError("-O cannot be used with --watch");
+        }
+        ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : null;
 
-        SymbolTable symbols = new SymbolTable();
-
-        /** Create an instruction builder to parse the assembly code and generate
-         *  Hack machine code instructions.
+        /** Batch mode: every argument is an input, and each output is named after its input. It is used
+         *  when a job count or a directory is given, or when more than two files are named.
          */
-        InstructionBuilder builder = new InstructionBuilder(fileName);
-        LinkedList<Instruction> instructions = new LinkedList<>();
-        Instruction instr;
-        /** Generate each instruction one at a time and append to the StringBuilder object. */
-        do {
-            instr = builder.buildNextInstruction();
-            instructions.add(instr);
+        boolean batch = jobs > 0 || files.size() > 2;
+        for (String input : files) {
+            batch = batch || new File(input).isDirectory();
+        }
+        if (batch) {
+            if (jobs == 0) {
+                jobs = Runtime.getRuntime().availableProcessors();
+            }
+            int failures = assembleBatch(buildFileList(files), format, header, optimize, jobs, pool);
+            if (pool != null) {
+                pool.shutdown();
+            }
+            if (failures > 0) {
+                System.exit(-7);
+            }
+            return;
         }
-        while (instr != null);
 
-        CodeGenerator codeGen = new CodeGenerator();
-        codeGen.buildLabels(instructions, symbols);
-        StringBuilder outputBuilder = new StringBuilder();
+        String fileName = files.get(0);
+        String output;
+        if (files.size() > 1) {
+            output = files.get(1);
+        } else {
+            output = defaultOutput(fileName, format);
+        }
 
-        for (Instruction i : instructions) {
-            String generated = codeGen.generateInstruction(i, symbols);
-            outputBuilder.append(generated);
-            outputBuilder.append(NEWLINE);
+        if (watch) {
+            try {
+                watchFile(fileName, output, format, header);
+            } catch (IOException ex) {
+                System.out.println("Failed to write to '" + output + "'");
+                System.exit(-6);
+            }
+            return;
         }
 
-        /** Attempt to write to the output file. If this fails, just print an error message and allow the
-         *  program to end.
+        /** Attempt to assemble the file and write the output. If writing fails, print an error message
+         *  and exit with a non-zero status so that build scripts notice the failure.
          */
         try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(output));
-            writer.write(outputBuilder.toString());
-            writer.close();
-        } catch (Exception ex) {
+            assembleFile(fileName, output, format, header, optimize, pool);
+        } catch (RuntimeException ex) {
+            System.out.println(ex.getMessage());
+            System.exit(-7);
+        } catch (IOException ex) {
             System.out.println("Failed to write to '" + output + "'");
+            System.exit(-6);
+        }
+        if (pool != null) {
+            pool.shutdown();
         }
     }
 }
@@ -0,0 +1,567 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** An IncrementalAssembler keeps an assembled program in memory and updates it when its source code
+ *  changes, doing work in proportion to the edit rather than to the program.
+ *
+ *  The program is stored per source line (the offset of its start, the address of its first word and
+ *  the labels it defines) and per word (the encoded word and, for A instructions that use a symbol,
+ *  the symbol). Every symbol knows the addresses of the words that use it. When new source code is
+ *  given to update(), the bytes that are the same at the start and at the end of the file are skipped,
+ *  and only the lines in between are lexed, parsed and encoded. Their lines and words are spliced in
+ *  place of the old ones in the same arrays, and the lines, labels and uses after them move by the
+ *  difference in size. Then only the A instructions whose symbol has a new value are encoded again:
+ *  those that use a label that moved, or a variable whose address changed because a first use was
+ *  added or removed. C instructions and constant A instructions outside the edited lines are never
+ *  re-encoded.
+ *
+ *  The result is always the same as assembling the whole file with an Assembler, including the order
+ *  in which variables are given addresses.
+ */
+public class IncrementalAssembler {
+    private static final byte NEWLINE = '\n';
+    /** The address of the first variable. */
+    private static final int FIRST_VARIABLE = 16;
+    /** The number of bytes compared at a time when looking for the common end of two sources. */
+    private static final int COMPARE_BLOCK = 4096;
+
+    /** A symbol used or defined by the program. */
+    private static class Symbol {
+        private String name;
+        /** The value of a predefined symbol, or -1. */
+        private int predefined;
+        /** The address of the label, or -1 if no line defines it. */
+        private int label;
+        /** The address of the variable, or -1 if the symbol is not a variable. */
+        private int variable;
+        /** The value the words that use the symbol are encoded with. */
+        private int value;
+        /** The addresses of the words that use the symbol, in increasing order. */
+        private int[] uses;
+        private int numUses;
+        /** Whether the symbol may have a new value or new uses in the current update. */
+        private boolean dirty;
+
+        Symbol(String name, int predefined) {
+            this.name = name;
+            this.predefined = predefined;
+            label = -1;
+            variable = -1;
+            value = -1;
+            uses = new int[4];
+            numUses = 0;
+        }
+
+        int value() {
+            return label >= 0 ? label : predefined >= 0 ? predefined : variable;
+        }
+
+        /** Symbols that are neither labels nor predefined are variables, as long as they are used. */
+        boolean isVariable() {
+            return label < 0 && predefined < 0 && numUses > 0;
+        }
+
+        /** Return the index of the first use at ADDRESS or after it. */
+        int firstUseFrom(int address) {
+            int low = 0;
+            int high = numUses;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (uses[middle] < address) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        void addUse(int address) {
+            int i = firstUseFrom(address);
+            if (numUses == uses.length) {
+                uses = Arrays.copyOf(uses, numUses * 2);
+            }
+            System.arraycopy(uses, i, uses, i + 1, numUses - i);
+            uses[i] = address;
+            numUses++;
+        }
+
+        /** Remove the uses from address FROM up to address TO (exclusive). */
+        void removeUses(int from, int to) {
+            int i = firstUseFrom(from);
+            int j = firstUseFrom(to);
+            System.arraycopy(uses, j, uses, i, numUses - j);
+            numUses -= j - i;
+        }
+
+        /** Move the uses at address FROM and after by DELTA. */
+        void moveUses(int from, int delta) {
+            for (int i = firstUseFrom(from); i < numUses; i++) {
+                uses[i] += delta;
+            }
+        }
+    }
+
+    /** The words and labels generated by a range of lines. */
+    private static class Section {
+        int numLines;
+        int[] lineStarts;
+        /** The offset of the first word of each line from the first word of the section. */
+        int[] lineOffsets;
+        String[][] lineLabels;
+        short[] words;
+        String[] symbols;
+        int numWords;
+    }
+
+    private String fileName;
+    /** The predefined symbols, which cannot be defined as labels. */
+    private SymbolTable predefined;
+
+    /** The source code of the current program. */
+    private byte[] source;
+    /** For each line, the offset of its start in the source, the address of its first word and the
+     *  labels it defines (or null). There is one extra entry after the last line, holding one past the
+     *  end of the source and the number of words, so that every line ends where the next one starts.
+     *  The arrays may be longer than numLines + 1. */
+    private int[] lineStarts;
+    private int[] lineAddresses;
+    private String[][] lineLabels;
+    private int numLines;
+
+    /** The encoded words, and the symbol used by each word (null for C and constant A instructions).
+     *  The arrays may be longer than numWords. */
+    private short[] words;
+    private Symbol[] wordSymbols;
+    private int numWords;
+
+    /** Every symbol that is used or defined as a label. */
+    private Map<String, Symbol> symbols;
+    /** The variables in order of first use: variable i has the address FIRST_VARIABLE + i. */
+    private List<Symbol> variables;
+    /** The symbols marked dirty by the current update. */
+    private List<Symbol> dirty;
+
+    /** What the last call to update() did, for reporting. */
+    private int firstChangedLine;
+    private int linesLexed;
+    private int wordsChanged;
+
+    public IncrementalAssembler(String fileName) {
+        this.fileName = fileName;
+        predefined = new SymbolTable();
+        source = new byte[0];
+        lineStarts = new int[] {0, 1};
+        lineAddresses = new int[2];
+        lineLabels = new String[2][];
+        numLines = 1;
+        words = new short[16];
+        wordSymbols = new Symbol[16];
+        numWords = 0;
+        symbols = new HashMap<>();
+        variables = new ArrayList<>();
+        dirty = new ArrayList<>();
+    }
+
+    /** Replace the source code of the program with NEWSOURCE and reassemble the lines that changed.
+     *  If the new code has errors, an exception is thrown and the program is left as it was. */
+    public void update(byte[] newSource) {
+        int firstByte = Arrays.mismatch(source, newSource);
+        if (firstByte < 0) {
+            firstChangedLine = 0;
+            linesLexed = 0;
+            wordsChanged = 0;
+            return;
+        }
+        // The edited lines run from the line of the first byte that differs to the first line that
+        // starts, newline before it included, in the bytes that are the same at the end.
+        int first = lineOf(firstByte);
+        int common = commonEnd(newSource, Math.min(source.length, newSource.length) - firstByte);
+        int oldEnd = firstLineFrom(source.length - common + 1, first + 1);
+        int tailBytes = source.length - lineStarts[oldEnd];
+        int from = lineStarts[first];
+        int to = newSource.length - tailBytes;
+
+        // Lex and encode the edited lines, and check their labels, before changing anything.
+        Section section = assembleLines(newSource, from, to, first);
+        checkLabels(section, first, oldEnd);
+
+        int newEnd = first + section.numLines;
+        int firstWord = lineAddresses[first];
+        int oldEndWord = lineAddresses[oldEnd];
+        int newEndWord = firstWord + section.numWords;
+        int wordDelta = newEndWord - oldEndWord;
+
+        // Forget the uses and labels of the old lines.
+        for (int i = firstWord; i < oldEndWord; i++) {
+            Symbol symbol = wordSymbols[i];
+            if (symbol != null && ! symbol.dirty) {
+                symbol.removeUses(firstWord, oldEndWord);
+                markDirty(symbol);
+            }
+        }
+        for (int i = first; i < oldEnd; i++) {
+            if (lineLabels[i] != null) {
+                for (String label : lineLabels[i]) {
+                    Symbol symbol = symbols.get(label);
+                    symbol.label = -1;
+                    markDirty(symbol);
+                }
+            }
+        }
+
+        spliceLines(section, first, oldEnd, newEnd, newSource.length - source.length, wordDelta);
+        spliceWords(section, firstWord, oldEndWord, newEndWord);
+        source = newSource;
+
+        // Add the labels of the new lines, then give the variables whose first use changed their place.
+        for (int i = 0; i < section.numLines; i++) {
+            if (section.lineLabels[i] != null) {
+                for (String label : section.lineLabels[i]) {
+                    Symbol symbol = symbol(label);
+                    symbol.label = lineAddresses[first + i];
+                    markDirty(symbol);
+                }
+            }
+        }
+        placeVariables();
+
+        // Encode the new words, and the uses of every symbol whose value changed.
+        int changed = 0;
+        for (Symbol symbol : dirty) {
+            int value = symbol.value();
+            if (value != symbol.value) {
+                for (int i = 0; i < symbol.numUses; i++) {
+                    int address = symbol.uses[i];
+                    boolean isNew = address >= firstWord && address < newEndWord;
+                    if (! isNew && words[address] != (short) value) {
+                        changed++;
+                    }
+                    words[address] = (short) value;
+                }
+                symbol.value = value;
+            } else {
+                for (int i = symbol.firstUseFrom(firstWord); i < symbol.numUses && symbol.uses[i] < newEndWord; i++) {
+                    words[symbol.uses[i]] = (short) value;
+                }
+            }
+            symbol.dirty = false;
+            if (symbol.numUses == 0 && symbol.label < 0) {
+                symbols.remove(symbol.name);
+            }
+        }
+        dirty.clear();
+
+        firstChangedLine = first;
+        linesLexed = section.numLines;
+        wordsChanged = changed + section.numWords;
+    }
+
+    /** Return the current program as a ROM image. The image shares the word array, which the next update
+     *  changes in place, so it must be used before then. */
+    public RomImage image() {
+        return new RomImage(words, numWords);
+    }
+
+    public int size() {
+        return numWords;
+    }
+
+    /** Describe what the last update did. */
+    public String report() {
+        if (linesLexed == 0 && wordsChanged == 0) {
+            return "No changes, " + numWords + " words";
+        }
+        return "Relexed " + linesLexed + " lines from line " + (firstChangedLine + 1) + ", " + wordsChanged
+                + " words re-encoded, " + numWords + " words";
+    }
+
+    /** Lex, parse and encode the lines of SOURCE that start from offset FROM and end before offset TO,
+     *  the first of which is line FIRST (from 0). Like the extra entry after the last line, TO is one
+     *  past the end of the source if the lines run to the end. */
+    private Section assembleLines(byte[] source, int from, int to, int first) {
+        Section section = new Section();
+        int newlines = 0;
+        for (int i = from; i < to - 1; i++) {
+            if (source[i] == NEWLINE) {
+                newlines++;
+            }
+        }
+        section.numLines = newlines + 1;
+        section.lineStarts = new int[section.numLines];
+        section.lineOffsets = new int[section.numLines];
+        section.lineLabels = new String[section.numLines][];
+        section.lineStarts[0] = from;
+        int line = 1;
+        for (int i = from; i < to - 1; i++) {
+            if (source[i] == NEWLINE) {
+                section.lineStarts[line++] = i + 1;
+            }
+        }
+        section.words = new short[16];
+        section.symbols = new String[16];
+        section.numWords = 0;
+        int[] lineWords = new int[section.numLines];
+        int end = Math.min(to, source.length);
+        InstructionBuilder builder = new InstructionBuilder(fileName, ByteBuffer.wrap(source, from, end - from), first + 1);
+        CodeGenerator codeGen = new CodeGenerator();
+        Instruction instr;
+        while ((instr = builder.buildNextInstruction()) != null) {
+            if (instr.isLInstruction()) {
+                int i = instr.lineNumber() - 1 - first;
+                String[] labels = section.lineLabels[i];
+                if (labels == null) {
+                    labels = new String[] {instr.label()};
+                } else {
+                    labels = Arrays.copyOf(labels, labels.length + 1);
+                    labels[labels.length - 1] = instr.label();
+                }
+                section.lineLabels[i] = labels;
+                continue;
+            }
+            int i;
+            int word;
+            String symbol = null;
+            if (instr.isAInstruction()) {
+                i = instr.lineNumber() - 1 - first;
+                word = instr.address();
+                if (word == Instruction.NOT_CONSTANT) {
+                    symbol = instr.symbol();
+                    word = 0;
+                }
+            } else {
+                i = instr.lineNumber() - 1 - first;
+                word = codeGen.encodeCInstruction(instr);
+            }
+            if (section.numWords == section.words.length) {
+                section.words = Arrays.copyOf(section.words, section.numWords * 2);
+                section.symbols = Arrays.copyOf(section.symbols, section.numWords * 2);
+            }
+            section.words[section.numWords] = (short) word;
+            section.symbols[section.numWords] = symbol;
+            section.numWords++;
+            lineWords[i]++;
+        }
+        for (int i = 1; i < section.numLines; i++) {
+            section.lineOffsets[i] = section.lineOffsets[i - 1] + lineWords[i - 1];
+        }
+        return section;
+    }
+
+    /** Throw an exception if a label of SECTION, which replaces the lines from FIRST up to OLDEND, is
+     *  predefined, defined twice in it, or defined on a line that is kept. */
+    private void checkLabels(Section section, int first, int oldEnd) {
+        Set<String> replaced = new HashSet<>();
+        for (int i = first; i < oldEnd; i++) {
+            if (lineLabels[i] != null) {
+                replaced.addAll(Arrays.asList(lineLabels[i]));
+            }
+        }
+        Set<String> defined = new HashSet<>();
+        for (int i = 0; i < section.numLines; i++) {
+            if (section.lineLabels[i] != null) {
+                for (String label : section.lineLabels[i]) {
+                    Symbol symbol = symbols.get(label);
+                    boolean kept = symbol != null && symbol.label >= 0 && ! replaced.contains(label);
+                    if (predefined.contains(label) || kept || ! defined.add(label)) {
+                        throw new RuntimeException("Duplicate label: " + label + " (" + fileName + ": Line "
+                                + (first + i + 1) + ")");
+                    }
+                }
+            }
+        }
+    }
+
+    /** Put the lines of SECTION in place of the lines from FIRST up to OLDEND, and move the lines after
+     *  them, and their labels, by BYTEDELTA bytes and WORDDELTA words. */
+    private void spliceLines(Section section, int first, int oldEnd, int newEnd, int byteDelta, int wordDelta) {
+        int oldCount = numLines + 1;
+        int count = oldCount + newEnd - oldEnd;
+        if (count > lineStarts.length) {
+            int capacity = Math.max(count, lineStarts.length * 2);
+            lineStarts = Arrays.copyOf(lineStarts, capacity);
+            lineAddresses = Arrays.copyOf(lineAddresses, capacity);
+            lineLabels = Arrays.copyOf(lineLabels, capacity);
+        }
+        System.arraycopy(lineStarts, oldEnd, lineStarts, newEnd, oldCount - oldEnd);
+        System.arraycopy(lineAddresses, oldEnd, lineAddresses, newEnd, oldCount - oldEnd);
+        System.arraycopy(lineLabels, oldEnd, lineLabels, newEnd, oldCount - oldEnd);
+        if (count < oldCount) {
+            Arrays.fill(lineLabels, count, oldCount, null);
+        }
+        numLines = count - 1;
+        int firstWord = lineAddresses[first];
+        for (int i = 0; i < section.numLines; i++) {
+            lineStarts[first + i] = section.lineStarts[i];
+            lineAddresses[first + i] = firstWord + section.lineOffsets[i];
+            lineLabels[first + i] = section.lineLabels[i];
+        }
+        if (byteDelta != 0) {
+            for (int i = newEnd; i <= numLines; i++) {
+                lineStarts[i] += byteDelta;
+            }
+        }
+        if (wordDelta != 0) {
+            for (int i = newEnd; i <= numLines; i++) {
+                lineAddresses[i] += wordDelta;
+                if (lineLabels[i] != null) {
+                    for (String label : lineLabels[i]) {
+                        Symbol symbol = symbols.get(label);
+                        symbol.label += wordDelta;
+                        markDirty(symbol);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Put the words of SECTION in place of the words from FIRSTWORD up to OLDENDWORD, and move the
+     *  words after them, and their uses, to start at NEWENDWORD. */
+    private void spliceWords(Section section, int firstWord, int oldEndWord, int newEndWord) {
+        int wordDelta = newEndWord - oldEndWord;
+        int count = numWords + wordDelta;
+        if (count > words.length) {
+            int capacity = Math.max(count, words.length * 2);
+            words = Arrays.copyOf(words, capacity);
+            wordSymbols = Arrays.copyOf(wordSymbols, capacity);
+        }
+        System.arraycopy(words, oldEndWord, words, newEndWord, numWords - oldEndWord);
+        System.arraycopy(wordSymbols, oldEndWord, wordSymbols, newEndWord, numWords - oldEndWord);
+        if (count < numWords) {
+            Arrays.fill(wordSymbols, count, numWords, null);
+        }
+        numWords = count;
+        if (wordDelta != 0) {
+            for (Symbol symbol : symbols.values()) {
+                symbol.moveUses(oldEndWord, wordDelta);
+            }
+        }
+        for (int i = 0; i < section.numWords; i++) {
+            int address = firstWord + i;
+            Symbol symbol = null;
+            if (section.symbols[i] != null) {
+                symbol = symbol(section.symbols[i]);
+                symbol.addUse(address);
+                markDirty(symbol);
+            }
+            words[address] = section.words[i];
+            wordSymbols[address] = symbol;
+        }
+    }
+
+    /** Take the dirty symbols out of the list of variables, and put those that are still variables
+     *  back in order of first use. The variables after the first one that moved get new addresses, and
+     *  are marked dirty. */
+    private void placeVariables() {
+        int firstMoved = variables.size();
+        int numDirty = dirty.size();
+        for (int i = 0; i < numDirty; i++) {
+            Symbol symbol = dirty.get(i);
+            if (symbol.variable >= 0) {
+                int index = symbol.variable - FIRST_VARIABLE;
+                variables.set(index, null);
+                firstMoved = Math.min(firstMoved, index);
+                symbol.variable = -1;
+            }
+        }
+        int kept = firstMoved;
+        for (int i = firstMoved; i < variables.size(); i++) {
+            if (variables.get(i) != null) {
+                variables.set(kept++, variables.get(i));
+            }
+        }
+        variables.subList(kept, variables.size()).clear();
+        for (int i = 0; i < numDirty; i++) {
+            Symbol symbol = dirty.get(i);
+            if (symbol.isVariable()) {
+                int index = variableIndex(symbol.uses[0]);
+                variables.add(index, symbol);
+                firstMoved = Math.min(firstMoved, index);
+            }
+        }
+        for (int i = firstMoved; i < variables.size(); i++) {
+            Symbol symbol = variables.get(i);
+            if (symbol.variable != FIRST_VARIABLE + i) {
+                symbol.variable = FIRST_VARIABLE + i;
+                markDirty(symbol);
+            }
+        }
+    }
+
+    /** Return the index in the list of variables of a variable first used at ADDRESS. */
+    private int variableIndex(int address) {
+        int low = 0;
+        int high = variables.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (variables.get(middle).uses[0] < address) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private Symbol symbol(String name) {
+        Symbol symbol = symbols.get(name);
+        if (symbol == null) {
+            symbol = new Symbol(name, predefined.contains(name) ? predefined.getValue(name) : -1);
+            symbols.put(name, symbol);
+        }
+        return symbol;
+    }
+
+    private void markDirty(Symbol symbol) {
+        if (! symbol.dirty) {
+            symbol.dirty = true;
+            dirty.add(symbol);
+        }
+    }
+
+    /** Return the line of the current source that holds the byte at OFFSET. */
+    private int lineOf(int offset) {
+        return firstLineFrom(offset + 1, 1) - 1;
+    }
+
+    /** Return the first line from line LOW on (up to the extra entry after the last line) that starts
+     *  at OFFSET or after it. */
+    private int firstLineFrom(int offset, int low) {
+        int high = numLines;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (lineStarts[middle] < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /** Return the number of bytes, up to MAX, that are the same at the end of the current source and
+     *  at the end of NEWSOURCE. */
+    private int commonEnd(byte[] newSource, int max) {
+        int oldLength = source.length;
+        int newLength = newSource.length;
+        int common = 0;
+        while (common < max) {
+            int block = Math.min(COMPARE_BLOCK, max - common);
+            if (! Arrays.equals(source, oldLength - common - block, oldLength - common,
+                    newSource, newLength - common - block, newLength - common)) {
+                while (source[oldLength - common - 1] == newSource[newLength - common - 1]) {
+                    common++;
+                }
+                return common;
+            }
+            common += block;
+        }
+        return common;
+    }
+}
@@ -1,76 +1,97 @@
+/** An Instruction is a single instruction of an assembly program, and the place in the source it came
+ *  from (the file name and line number), which is used in error messages.
+ *
+ *  Nothing is kept of the source text but what the assembler needs: an A instruction holds its
+ *  constant address, or the name of its symbol; an L instruction holds the name of its label; and a
+ *  C instruction holds its machine code word, encoded while it was built. A malformed address or
+ *  mnemonic is found while the instruction is built, but only reported when the address or word is
+ *  used, so the error message is kept with the instruction.
+ */
 public class Instruction {
 
     public enum InstructionType {
         C_INSTRUCTION, A_INSTRUCTION, L_INSTRUCTION
     }
+    /** Returned by address() for A instructions whose address is a symbol. */
+    public static final int NOT_CONSTANT = -1;
+
     private InstructionType type;
-    private Token label;
-    private Token address;
-    private Token dest;
-    private Token comp;
-    private Token jump;
-
-    public Instruction(InstructionType type, Token token) {
-        label = null;
-        address = null;
-        dest = null;
-        comp = null;
-        jump = null;
-        this.type =type;
-        if (type == InstructionType.A_INSTRUCTION) {
-            address = token;
-        } else if (type == InstructionType.L_INSTRUCTION) {
-            label = token;
-        } else {
-            throw new RuntimeException("Invalid parameters for constructing a C Instruction object.");
-        }
-    }
+    /** The name of a label, or the symbol of an A instruction (null if its address is a constant). */
+    private String symbol;
+    /** The constant address of an A instruction, or the machine code word of a C instruction. */
+    private int value;
+    /** The message of the exception thrown when the address or word is used, or null. */
+    private String error;
+    private String fileName;
+    private int lineNo;
 
-    public Instruction(InstructionType type, Token dest, Token comp, Token jump) {
-        if (type != InstructionType.C_INSTRUCTION) {
-            throw new RuntimeException("Invalid parameters for constructing an L or A instruction object.");
+    /** Build an instruction of TYPE from line LINENO of FILENAME. SYMBOL and VALUE are described above,
+     *  and ERROR, if it is not null, is the message of a malformed A or C instruction. */
+    public Instruction(InstructionType type, String symbol, int value, String error, String fileName, int lineNo) {
+        if (type == InstructionType.L_INSTRUCTION && symbol == null) {
+            throw new RuntimeException("Invalid parameters for constructing an L instruction object.");
+        }
+        if (type == InstructionType.C_INSTRUCTION && symbol != null) {
+            throw new RuntimeException("Invalid parameters for constructing a C instruction object.");
         }
-        label = null;
-        address = null;
         this.type = type;
-        this.dest = dest;
-        this.jump = jump;
-        this.comp = comp;
+        this.symbol = symbol;
+        this.value = value;
+        this.error = error;
+        this.fileName = fileName;
+        this.lineNo = lineNo;
     }
 
-    public Token label() {
+    public String label() {
         if (! isLInstruction()) {
             throw new RuntimeException("Attempt to get a label from a C or A instruction.");
         }
-        return label;
+        return symbol;
     }
 
-    public Token address() {
+    /** Return the constant address of an A instruction, or NOT_CONSTANT if the address is a symbol.
+     *  Throws an exception if the address is missing, is not a valid number or does not fit in an A
+     *  instruction. */
+    public int address() {
         if (! isAInstruction()) {
             throw new RuntimeException("Attempt to get an address from an L or C instruction.");
         }
-        return address;
+        if (error != null) {
+            throw new RuntimeException(error);
+        }
+        return symbol == null ? value : NOT_CONSTANT;
     }
 
-    public Token dest() {
-        if (! isCInstruction()) {
-            throw new RuntimeException("Attempt to get a dest field from an A or L instruction.");
+    /** Return the symbol of an A instruction, or null if its address is a constant. */
+    public String symbol() {
+        if (! isAInstruction()) {
+            throw new RuntimeException("Attempt to get a symbol from an L or C instruction.");
         }
-        return dest;
+        return symbol;
     }
 
-    public Token jump() {
+    /** Return the machine code word of a C instruction. Throws an exception naming the field if one of
+     *  the mnemonics is not valid. */
+    public int word() {
         if (! isCInstruction()) {
-            throw new RuntimeException("Attempt to get a jump field from an A or L instruction.");
+            throw new RuntimeException("Attempt to get a C instruction word from an A or L instruction.");
+        }
+        if (error != null) {
+            throw new RuntimeException(error);
         }
-        return jump;
+        return value;
     }
 
-    public Token comp() {
-        if (! isCInstruction()) {
-            throw new RuntimeException("Attempt to get a comp field from an A or L instruction.");
-        }
-        return comp;
+    public String dest() {
+        return Encoder.destMnemonic(word());
+    }
+
+    public String comp() {
+        return Encoder.compMnemonic(word());
+    }
+
+    public String jump() {
+        return Encoder.jumpMnemonic(word());
     }
 
     public boolean isLInstruction() {
@@ -85,24 +106,40 @@ public class Instruction {
         return type == InstructionType.A_INSTRUCTION;
     }
 
+    public String fileName() {
+        return fileName;
+    }
+
+    public int lineNumber() {
+        return lineNo;
+    }
+
+    /** Return the label of an L instruction, followed by where it was defined. */
+    public String details() {
+        return label() + " (" + fileName + ": Line " + lineNo + ")";
+    }
+
     public String toString() {
+        String details = " (" + fileName + ": " + lineNo + ")";
+        if (error != null) {
+            return error;
+        }
         if (isAInstruction()) {
-            return address.text() + " (" + address.fileName() + ": " + address.lineNumber() + ")";
+            return "@" + (symbol != null ? symbol : Integer.toString(value)) + details;
         }
         if (isCInstruction()) {
-            String details = " (" + comp.fileName() + ": " + comp.lineNumber() + ")";
             String text = "";
-            if (! dest.isNull()) {
-                text += dest.text() + "=";
+            if (! dest().equals("null")) {
+                text += dest() + "=";
             }
-            text += comp.text();
-            if (! jump.isNull()) {
-                text += ";" + jump.text();
+            text += comp();
+            if (! jump().equals("null")) {
+                text += ";" + jump();
             }
             return text + details;
         }
         if (isLInstruction()) {
-            return label.text() + " (" + label.fileName() + ": " + label.lineNumber() + ")";
+            return "(" + symbol + ")" + details;
         } else {
             return "";
         }
@@ -1,88 +1,176 @@
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 
 public class InstructionBuilder {
     /** The first character of an A instruction in the assembly code. */
     private static final char A_INSTRUCTION_FLAG = '@';
     /** The first character of an L instruction in the assembly code. */
     private static final char L_INSTRUCTION_FLAG = '(';
+    /** The last character of an L instruction in the assembly code. */
+    private static final char L_INSTRUCTION_END = ')';
     private static final String TOKENS = ";=";
-    /** The tokenizer that will be used to generate tokens from the input file
+    /** Returned by nextJump() when the jump field is missing at the end of the input. */
+    private static final int NO_JUMP = -2;
+    /** The lexer that will be used to read tokens from the input file
      *  one at a time. */
-    private Tokenizer t;
+    private Lexer t;
 
     public InstructionBuilder(String fileName) {
-        t = new Tokenizer(fileName, TOKENS);
+        t = new Lexer(fileName, TOKENS);
     }
 
-    /** Returns true if TOKEN is the beginning of an A instruction */
-    private boolean isAInstruction(String token) {
-        return token.charAt(0) == A_INSTRUCTION_FLAG;
-    }
-
-    /** Returns true if TOKEN is the beginning of an L instruction. */
-    private boolean isLInstruction(String token) {
-        return token.charAt(0) == L_INSTRUCTION_FLAG;
+    /** Build instructions from assembly code that is already in memory. See the matching Lexer
+     *  constructor. */
+    public InstructionBuilder(String fileName, ByteBuffer source, int firstLine) {
+        t = new Lexer(fileName, source, firstLine, TOKENS);
     }
 
     /** Generate the next instruction. Gets the next token, inspects it to determine if
      *  the token is the beginning of an L instruction, A instruction, C Instruction.
-     *  If the instruction is an L instruction and labelPass is true, we will just add the label
-     *  to the symbol table. Otherwise we skip the token entirely.
+     *  A and L instructions are a single token, so they can be identified by their first
+     *  character. Otherwise the token is the start of a C instruction.
+     *
+     *  Only the names of labels and symbols become Strings, and they are interned, so every
+     *  occurrence of the same name shares a single String. Constant addresses and mnemonics are
+     *  read straight from the lexer's buffer.
      */
     public Instruction buildNextInstruction() {
-        Token token = t.nextToken();
-        if (token == null) {
+        if (! t.advance()) {
             return null;
         }
-        if (isAInstruction(token.text())) {
-            return new Instruction(Instruction.InstructionType.A_INSTRUCTION, token);
-        } else if (isLInstruction(token.text())) {
-            return new Instruction(Instruction.InstructionType.L_INSTRUCTION, token);
+        char first = t.charAt(0);
+        if (first == A_INSTRUCTION_FLAG) {
+            return buildAInstruction();
+        } else if (first == L_INSTRUCTION_FLAG) {
+            if (t.length() < 3 || t.charAt(t.length() - 1) != L_INSTRUCTION_END) {
+                throw new RuntimeException("Invalid label: " + t.text() + " (" + t.fileName() + ": Line "
+                        + t.lineNumber() + ")");
+            }
+            return new Instruction(Instruction.InstructionType.L_INSTRUCTION, t.intern(1, t.length() - 1),
+                    0, null, t.fileName(), t.lineNumber());
         } else {
-            t.putTokenBack(token);
+            t.pushBack();
             return buildCInstruction();
         }
     }
 
+    /** Returns the A instruction of the current token. An address that starts with a digit is a
+     *  constant, and is parsed the same way as RomBuilder.parseAddress() does. Anything else is a
+     *  symbol. */
+    private Instruction buildAInstruction() {
+        int length = t.length();
+        String error = null;
+        String symbol = null;
+        int value = 0;
+        if (length == 1) {
+            error = "Missing address: ";
+        } else if (Character.isDigit(t.charAt(1))) {
+            for (int i = 1; i < length && error == null; i++) {
+                char c = t.charAt(i);
+                if (c < '0' || c > '9') {
+                    error = "Invalid address: ";
+                } else if (value <= RomBuilder.MAX_ADDRESS) {
+                    value = value * 10 + (c - '0');
+                }
+            }
+            if (error == null && value > RomBuilder.MAX_ADDRESS) {
+                error = "Address out of range: ";
+            }
+        } else {
+            symbol = t.intern(1, length);
+        }
+        if (error != null) {
+            error += t.text().substring(1) + " (" + t.fileName() + ": Line " + t.lineNumber() + ")";
+        }
+        return new Instruction(Instruction.InstructionType.A_INSTRUCTION, symbol, value, error, t.fileName(),
+                t.lineNumber());
+    }
+
     /** Returns a C instruction. C Instructions can come in one of the following forms:
      *  - dest=comp;jmp
      *  - dest=comp
      *  - comp;jmp
      *  - comp
      *  To determine which form the next instruction must be, we inspect tokens one at
-     *  a time, putting them back into the Tokenizer as needed. Once we have determined
-     *  the instruction form and the text used for the dest, comp and jump fields, we can
-     *  look them up in the symbol table to get their corresponding machine code values.
-     *  If this lookup fails, we assume that the assembly instruction was malformed and
-     *  print an error message that shows the filename, line number and which field was
-     *  not able to be found in the symbol table.
+     *  a time, pushing them back into the Lexer as needed. The first token is kept as its
+     *  mnemonic key until the form shows whether it is the dest or the comp field. Fields
+     *  that are left out of the instruction are encoded as "null". An invalid mnemonic is
+     *  only reported when the instruction is encoded.
      */
     public Instruction buildCInstruction() {
-        Token dest = new Token("null", null, 0);
-        Token comp = new Token("null", null, 0);
-        Token jump = new Token("null", null, 0);
-        Token token1 = t.nextToken();
-        Token op1 = t.nextToken();
-        if (op1 != null && op1.text().equals("=")) {
-            dest = token1;
-            comp = t.nextToken();
-            Token op2 = t.nextToken();
+        t.advance();
+        int firstKey = Encoder.key(t);
+        int firstLine = t.lineNumber();
+        String firstText = firstKey == Encoder.INVALID ? t.text() : null;
+        int dest = 0;
+        int comp;
+        int jump = 0;
+        int line = firstLine;
+        String destError = null;
+        String compError = null;
+        String jumpError = null;
+        if (t.advance() && t.matches('=')) {
             // instruction is of form dest=comp;jump
-            if (op2 != null && op2.text().equals(";")) {
-                jump = t.nextToken();
+            dest = Encoder.destBits(firstKey);
+            if (dest == Encoder.INVALID) {
+                destError = fieldError("dest", firstKey, firstText, firstLine);
+            }
+            if (! t.advance()) {
+                throw incomplete(firstKey, firstText, firstLine);
+            }
+            comp = Encoder.compBits(Encoder.key(t));
+            line = t.lineNumber();
+            if (comp == Encoder.INVALID) {
+                compError = fieldError("comp", Encoder.INVALID, t.text(), line);
+            }
+            if (t.advance() && t.matches(';')) {
+                jump = nextJump();
+                if (jump == Encoder.INVALID) {
+                    jumpError = fieldError("jump", Encoder.INVALID, t.text(), t.lineNumber());
+                }
             // instruction is of form dest=comp
             } else {
-                t.putTokenBack(op2);
+                t.pushBack();
             }
-        // instruction is of form comp;jump
-        } else if (op1 != null && op1.text().equals(";")) {
-            comp = token1;
-            jump = t.nextToken();
         } else {
+            comp = Encoder.compBits(firstKey);
+            if (comp == Encoder.INVALID) {
+                compError = fieldError("comp", firstKey, firstText, firstLine);
+            }
+            // instruction is of form comp;jump
+            if (t.matches(';')) {
+                jump = nextJump();
+                if (jump == Encoder.INVALID) {
+                    jumpError = fieldError("jump", Encoder.INVALID, t.text(), t.lineNumber());
+                }
             // instruction is of form comp
-            comp = token1;
-            t.putTokenBack(op1);
+            } else {
+                t.pushBack();
+            }
+        }
+        if (jump == NO_JUMP) {
+            throw incomplete(firstKey, firstText, firstLine);
+        }
+        String error = compError != null ? compError : destError != null ? destError : jumpError;
+        int word = error != null ? Encoder.INVALID : Encoder.C_INSTRUCTION_PREFIX | comp | dest | jump;
+        return new Instruction(Instruction.InstructionType.C_INSTRUCTION, null, word, error, t.fileName(), line);
+    }
+
+    /** Returns the jump bits of the next token, or NO_JUMP if there are no tokens left. */
+    private int nextJump() {
+        if (! t.advance()) {
+            return NO_JUMP;
         }
-        return new Instruction(Instruction.InstructionType.C_INSTRUCTION, dest, comp, jump);
+        return Encoder.jumpBits(Encoder.key(t));
+    }
+
+    /** Returns the message for an invalid FIELD, whose text is TEXT, or the text of KEY if TEXT is null. */
+    private String fieldError(String field, int key, String text, int line) {
+        return "Invalid " + field + " field: " + (text != null ? text : Encoder.text(key)) + " ("
+                + t.fileName() + ": Line " + line + ")";
+    }
+
+    private RuntimeException incomplete(int firstKey, String firstText, int firstLine) {
+        return new RuntimeException("Incomplete C instruction: " + (firstText != null ? firstText
+                : Encoder.text(firstKey)) + " (" + t.fileName() + ": Line " + firstLine + ")");
     }
 }
@@ -0,0 +1,198 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** The PeepholeFuzzer checks the assembler's -O against plain assembly. It writes random assembly
+ *  programs, assembles each one as written and through the PeepholeOptimizer, runs both on a HackCpu
+ *  until they halt, and compares the RAM they leave behind. It is compiled with the assembler, whose
+ *  source path holds the emulator for it:
+ *
+ *      javac -sourcepath ../../shared:../../05/HackEmulator *.java
+ *      java PeepholeFuzzer [--seed=N] [--programs=N]
+ *
+ *  By default 1000 programs are made, from seed 1. Program i is made from seed + i, and a program that
+ *  fails is printed, so it can be assembled and run on its own.
+ *
+ *  The programs follow the rules the optimizer relies on: every jump is an '@LABEL' directly followed
+ *  by the jumping instruction, and labels are only used as jump targets, since they move when code is
+ *  removed. A jump computes only on D, and the instruction after every jump and label loads A again.
+ *  Jumps only go forward, so every program halts. In between, the programs load variables, predefined
+ *  symbols and constants, and compute and store with every computation and destination, so they also
+ *  read and write memory at computed addresses. Besides the RAM, the optimized program must not run
+ *  more instructions than the program as written.
+ */
+public class PeepholeFuzzer {
+    private static final String SEED_OPTION = "--seed=";
+    private static final String PROGRAMS_OPTION = "--programs=";
+    private static final String PROGRAM_NAME = "fuzz.asm";
+    /** The most instructions a program may run before it must have halted. */
+    private static final long INSTRUCTION_LIMIT = 1_000_000;
+    private static final int RAM_SIZE = HackCpu.KBD + 1;
+    private static final int VARIABLES = 24;
+    private static final String[] PREDEFINED = {"SP", "LCL", "THIS", "R13", "R15", "SCREEN", "KBD"};
+    private static final String[] COMPUTATIONS = {
+        "0", "1", "-1", "D", "A", "!D", "!A", "-D", "-A", "D+1", "A+1", "D-1", "A-1", "D+A", "D-A", "A-D",
+        "D&A", "D|A", "M", "!M", "-M", "M+1", "M-1", "D+M", "D-M", "M-D", "D&M", "D|M"
+    };
+    private static final String[] DESTINATIONS = {"M", "D", "MD", "A", "AM", "AD", "AMD"};
+    /** The destinations and computations of a jumping instruction, which only use D, since A holds the
+     *  address of a label. */
+    private static final String[] JUMP_DESTINATIONS = {"", "", "D="};
+    private static final String[] JUMP_COMPUTATIONS = {"0", "1", "-1", "D", "!D", "-D", "D+1", "D-1"};
+    private static final String[] JUMPS = {"JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+
+    private static void usageError(String message) {
+        System.out.println("Error: " + message);
+        System.out.println("Usage: PeepholeFuzzer [--seed=N] [--programs=N]");
+        System.exit(-4);
+    }
+
+    /** Parse the number in an option of the form NAME=N, which must be at least MIN. */
+    private static long parseNumber(String arg, String name, long min) {
+        long value;
+        try {
+            value = Long.parseLong(arg.substring(name.length()));
+        } catch (NumberFormatException ex) {
+            value = min - 1;
+        }
+        if (value < min) {
+            usageError("Invalid number in '" + arg + "'");
+        }
+        return value;
+    }
+
+    public static void main(String[] args) {
+        long seed = 1;
+        long programs = 1000;
+        for (String arg : args) {
+            if (arg.startsWith(SEED_OPTION)) {
+                seed = parseNumber(arg, SEED_OPTION, Long.MIN_VALUE + 1);
+            } else if (arg.startsWith(PROGRAMS_OPTION)) {
+                programs = parseNumber(arg, PROGRAMS_OPTION, 1);
+            } else {
+                usageError("Unknown argument '" + arg + "'");
+            }
+        }
+
+        long start = System.nanoTime();
+        long wordsBefore = 0;
+        long wordsAfter = 0;
+        int failures = 0;
+        for (long i = 0; i < programs; i++) {
+            String program = program(new Random(seed + i));
+            String failure;
+            try {
+                List<Instruction> instructions = parse(program);
+                List<Instruction> optimized = new PeepholeOptimizer().optimize(instructions);
+                RomImage plain = assemble(instructions);
+                RomImage image = assemble(optimized);
+                wordsBefore += plain.size();
+                wordsAfter += image.size();
+                failure = compare(plain, image);
+            } catch (RuntimeException ex) {
+                failure = ex.getMessage();
+            }
+            if (failure != null) {
+                System.out.println("FAIL seed " + (seed + i) + ": " + failure);
+                System.out.print(program);
+                failures += 1;
+            }
+        }
+        System.out.printf("Passed %d of %d programs in %.1f ms, optimized from %d to %d words%n", programs - failures,
+                programs, (System.nanoTime() - start) / 1e6, wordsBefore, wordsAfter);
+        if (failures > 0) {
+            System.exit(-7);
+        }
+    }
+
+    private static List<Instruction> parse(String program) {
+        ByteBuffer source = ByteBuffer.wrap(program.getBytes(StandardCharsets.UTF_8));
+        InstructionBuilder builder = new InstructionBuilder(PROGRAM_NAME, source, 1);
+        List<Instruction> instructions = new ArrayList<>();
+        Instruction instr;
+        while ((instr = builder.buildNextInstruction()) != null) {
+            instructions.add(instr);
+        }
+        return instructions;
+    }
+
+    private static RomImage assemble(List<Instruction> program) {
+        Assembler assembler = new Assembler(new SymbolTable());
+        for (Instruction i : program) {
+            assembler.add(i);
+        }
+        assembler.finish();
+        return assembler.image();
+    }
+
+    /** Run the program PLAIN and its optimized version OPTIMIZED from the same RAM. Returns a description
+     *  of the first difference in the RAM they leave, or null if there is none. */
+    private static String compare(RomImage plain, RomImage optimized) {
+        HackCpu expected = new HackCpu(plain);
+        HackCpu actual = new HackCpu(optimized);
+        if (! expected.run(INSTRUCTION_LIMIT)) {
+            return "the program as written did not halt";
+        }
+        if (! actual.run(INSTRUCTION_LIMIT)) {
+            return "the optimized program did not halt";
+        }
+        for (int address = 0; address < RAM_SIZE; address++) {
+            if (actual.peek(address) != expected.peek(address)) {
+                return "RAM[" + address + "] is " + actual.peek(address) + ", expected " + expected.peek(address);
+            }
+        }
+        if (actual.instructions() > expected.instructions()) {
+            return "the optimized program ran " + actual.instructions() + " instructions, the program as written "
+                    + expected.instructions();
+        }
+        return null;
+    }
+
+    /** Return the text of a random program, made with RANDOM. */
+    private static String program(Random random) {
+        StringBuilder out = new StringBuilder();
+        int length = 20 + random.nextInt(200);
+        int labels = 1 + length / 10;
+        // labels are defined in order, L0 first, and only labels after the last one defined are jumped to
+        int defined = 0;
+        for (int n = 0; n < length; n++) {
+            int choice = random.nextInt(20);
+            if (choice < 2 && defined < labels) {
+                out.append("(L").append(defined).append(")\n");
+                defined += 1;
+                load(random, out);
+            } else if (choice < 5 && defined < labels) {
+                out.append("@L").append(defined + random.nextInt(labels - defined)).append('\n');
+                out.append(JUMP_DESTINATIONS[random.nextInt(JUMP_DESTINATIONS.length)])
+                        .append(JUMP_COMPUTATIONS[random.nextInt(JUMP_COMPUTATIONS.length)])
+                        .append(';').append(JUMPS[random.nextInt(JUMPS.length)]).append('\n');
+                load(random, out);
+            } else if (choice < 11) {
+                load(random, out);
+            } else {
+                out.append(DESTINATIONS[random.nextInt(DESTINATIONS.length)]).append('=')
+                        .append(COMPUTATIONS[random.nextInt(COMPUTATIONS.length)]).append('\n');
+            }
+        }
+        for (; defined < labels; defined++) {
+            out.append("(L").append(defined).append(")\n");
+        }
+        out.append("(END)\n@END\n0;JMP\n");
+        return out.toString();
+    }
+
+    /** Append a random A instruction to OUT: a variable, a predefined symbol or a constant. */
+    private static void load(Random random, StringBuilder out) {
+        int choice = random.nextInt(6);
+        if (choice < 3) {
+            out.append("@v").append(random.nextInt(VARIABLES)).append('\n');
+        } else if (choice < 4) {
+            out.append('@').append(PREDEFINED[random.nextInt(PREDEFINED.length)]).append('\n');
+        } else {
+            int[] constants = {0, 0, 1, 1, random.nextInt(32), random.nextInt(32768)};
+            out.append('@').append(constants[random.nextInt(constants.length)]).append('\n');
+        }
+    }
+}
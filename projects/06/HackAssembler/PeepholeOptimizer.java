@@ -0,0 +1,318 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** A PeepholeOptimizer removes redundant instructions from a program before it is assembled.
+ *
+ *  It works on the parsed instructions, while addresses are still symbols, so the labels get their
+ *  new addresses when the optimized program is assembled. Every rule looks at a short window of
+ *  instructions and only changes it when the program does the same thing afterwards:
+ *
+ *      - Unreachable code: instructions after an unconditional jump and before the next label can
+ *        never run, so they are removed.
+ *      - Jumps to the next instruction: '@L' and 'comp;jump' directly followed by '(L)' does the same
+ *        whether or not the jump is taken, so the jump is removed (the '@L' is kept, so A still
+ *        holds L afterwards).
+ *      - Redundant loads: '@X' when A already holds X is removed. A is known to hold X from an '@X'
+ *        until the next label or the next instruction that writes A.
+ *      - Dead loads: '@X' is removed if A is written again before it is read, e.g. '@X' directly
+ *        followed by '@Y'. Jumps read A, and labels end the search since other code may jump there.
+ *      - Cancelling updates: 'M=M+1' directly followed by 'M=M-1' (and the same for D, or the other
+ *        way around) is removed, and 'M=M+1' directly followed by 'AM=M-1' becomes 'A=M'. The VM
+ *        translator generates the second form whenever a push is followed by a pop.
+ *      - Small constants: '@0' or '@1' followed by 'D=A', 'D=D+A' or 'D=D-A' becomes 'D=0', 'D=1',
+ *        'D=D+1' or 'D=D-1' (or nothing, when adding zero) if A is dead afterwards.
+ *      - Address copies: 'D=comp' directly followed by 'A=D' becomes 'AD=comp'.
+ *
+ *  The rules are applied again and again until none of them changes the program, since one rewrite
+ *  often makes another possible.
+ *
+ *  Variables get their addresses in the order they are first used, so the first load of each variable
+ *  is always kept, even where it is dead or cannot be reached. Every variable keeps the address it has
+ *  in the program as written.
+ *
+ *  The rules assume that jumps only go to labels. Code that jumps to a numeric ROM address, or that
+ *  depends on the exact number of cycles it takes, should not be optimized.
+ */
+public class PeepholeOptimizer {
+    private static final String NULL_FIELD = "null";
+
+    private CodeGenerator codeGen;
+    /** The predefined symbols, which are not variables. */
+    private SymbolTable predefined;
+    /** The number of words in the program before and after the last call to optimize(). */
+    private int wordsBefore;
+    private int wordsAfter;
+
+    public PeepholeOptimizer() {
+        codeGen = new CodeGenerator();
+        predefined = new SymbolTable();
+    }
+
+    /** Return an optimized copy of PROGRAM. The program is checked first, so malformed instructions
+     *  are reported even if they would have been removed. */
+    public List<Instruction> optimize(List<Instruction> program) {
+        for (Instruction i : program) {
+            if (i.isCInstruction()) {
+                codeGen.encodeCInstruction(i);
+            } else if (i.isAInstruction()) {
+                i.address();
+            }
+        }
+        wordsBefore = countWords(program);
+        List<Instruction> current = program;
+        boolean changed = true;
+        while (changed) {
+            List<Instruction> before = current;
+            current = removeUnreachable(current);
+            current = removeJumpsToNext(current);
+            current = removeRedundantLoads(current);
+            current = removeDeadLoads(current);
+            current = cancelUpdates(current);
+            current = foldSmallConstants(current);
+            current = mergeAddressCopies(current);
+            changed = current.size() != before.size() || ! current.equals(before);
+        }
+        wordsAfter = countWords(current);
+        return current;
+    }
+
+    /** Describe the size reduction of the last call to optimize(). */
+    public String report() {
+        int saved = wordsBefore - wordsAfter;
+        double percent = wordsBefore == 0 ? 0 : 100.0 * saved / wordsBefore;
+        return String.format("%d -> %d words (%d removed, %.1f%%)", wordsBefore, wordsAfter, saved, percent);
+    }
+
+    private static int countWords(List<Instruction> program) {
+        int words = 0;
+        for (Instruction i : program) {
+            if (! i.isLInstruction()) {
+                words += 1;
+            }
+        }
+        return words;
+    }
+
+    /** Flag the instructions of PROGRAM that are the first load of a variable, which are never removed. */
+    private boolean[] firstVariableLoads(List<Instruction> program) {
+        Set<String> labels = new HashSet<>();
+        for (Instruction i : program) {
+            if (i.isLInstruction()) {
+                labels.add(i.label());
+            }
+        }
+        Set<String> seen = new HashSet<>();
+        boolean[] first = new boolean[program.size()];
+        for (int n = 0; n < program.size(); n++) {
+            Instruction i = program.get(n);
+            if (i.isAInstruction() && i.address() == Instruction.NOT_CONSTANT) {
+                String symbol = i.symbol();
+                first[n] = ! labels.contains(symbol) && ! predefined.contains(symbol) && seen.add(symbol);
+            }
+        }
+        return first;
+    }
+
+    private List<Instruction> removeUnreachable(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        boolean[] firstLoads = firstVariableLoads(program);
+        boolean reachable = true;
+        for (int n = 0; n < program.size(); n++) {
+            Instruction i = program.get(n);
+            if (i.isLInstruction()) {
+                reachable = true;
+            }
+            if (reachable || firstLoads[n]) {
+                out.add(i);
+            }
+            if (i.isCInstruction() && i.jump().equals("JMP")) {
+                reachable = false;
+            }
+        }
+        return out;
+    }
+
+    private List<Instruction> removeJumpsToNext(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        for (int n = 0; n < program.size(); n++) {
+            Instruction i = program.get(n);
+            if (n > 0 && i.isCInstruction() && ! i.jump().equals(NULL_FIELD) && i.dest().equals(NULL_FIELD)
+                    && program.get(n - 1).isAInstruction()
+                    && labelFollows(program, n + 1, program.get(n - 1).symbol())) {
+                continue;
+            }
+            out.add(i);
+        }
+        return out;
+    }
+
+    /** Returns true if the label LABEL is defined between index FROM and the next A or C instruction.
+     *  LABEL is null for a constant address, which is never a label. */
+    private static boolean labelFollows(List<Instruction> program, int from, String label) {
+        for (int n = from; n < program.size() && program.get(n).isLInstruction(); n++) {
+            if (program.get(n).label().equals(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Instruction> removeRedundantLoads(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        Instruction loaded = null;
+        for (Instruction i : program) {
+            if (i.isLInstruction()) {
+                loaded = null;
+            } else if (i.isAInstruction()) {
+                if (loaded != null && sameAddress(i, loaded)) {
+                    continue;
+                }
+                loaded = i;
+            } else if (writesA(i)) {
+                loaded = null;
+            }
+            out.add(i);
+        }
+        return out;
+    }
+
+    private List<Instruction> removeDeadLoads(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        boolean[] firstLoads = firstVariableLoads(program);
+        for (int n = 0; n < program.size(); n++) {
+            Instruction i = program.get(n);
+            if (i.isAInstruction() && ! firstLoads[n] && isADead(program, n + 1)) {
+                continue;
+            }
+            out.add(i);
+        }
+        return out;
+    }
+
+    /** Returns true if the value of A at index FROM is overwritten before anything can read it. */
+    private static boolean isADead(List<Instruction> program, int from) {
+        for (int n = from; n < program.size(); n++) {
+            Instruction i = program.get(n);
+            if (i.isAInstruction()) {
+                return true;
+            }
+            if (i.isLInstruction() || readsA(i)) {
+                return false;
+            }
+            if (writesA(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Instruction> cancelUpdates(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        for (int n = 0; n < program.size(); n++) {
+            Instruction i = program.get(n);
+            if (n + 1 < program.size() && isUpdate(i) && isUpdate(program.get(n + 1))) {
+                Instruction next = program.get(n + 1);
+                String first = i.dest() + "=" + i.comp();
+                String second = next.dest() + "=" + next.comp();
+                if (cancels(first, second)) {
+                    n += 1;
+                    continue;
+                }
+                if ((first.equals("M=M+1") && second.equals("AM=M-1"))
+                        || (first.equals("M=M-1") && second.equals("AM=M+1"))) {
+                    out.add(cInstruction("A", "M", next));
+                    n += 1;
+                    continue;
+                }
+            }
+            out.add(i);
+        }
+        return out;
+    }
+
+    /** Returns true if the C instruction FIRST followed by SECOND leaves every register as it was. */
+    private static boolean cancels(String first, String second) {
+        return (first.equals("M=M+1") && second.equals("M=M-1"))
+                || (first.equals("M=M-1") && second.equals("M=M+1"))
+                || (first.equals("D=D+1") && second.equals("D=D-1"))
+                || (first.equals("D=D-1") && second.equals("D=D+1"));
+    }
+
+    private List<Instruction> foldSmallConstants(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        for (int n = 0; n < program.size(); n++) {
+            Instruction i = program.get(n);
+            if (i.isAInstruction() && n + 1 < program.size() && isUpdate(program.get(n + 1))
+                    && program.get(n + 1).dest().equals("D") && isADead(program, n + 2)) {
+                int value = i.address();
+                Instruction next = program.get(n + 1);
+                String comp = next.comp();
+                if (value == 0 && (comp.equals("D+A") || comp.equals("D-A"))) {
+                    n += 1;
+                    continue;
+                }
+                if ((value == 0 || value == 1) && comp.equals("A")) {
+                    out.add(cInstruction("D", value == 0 ? "0" : "1", next));
+                    n += 1;
+                    continue;
+                }
+                if (value == 1 && (comp.equals("D+A") || comp.equals("D-A"))) {
+                    out.add(cInstruction("D", comp.replace('A', '1'), next));
+                    n += 1;
+                    continue;
+                }
+            }
+            out.add(i);
+        }
+        return out;
+    }
+
+    private List<Instruction> mergeAddressCopies(List<Instruction> program) {
+        List<Instruction> out = new ArrayList<>(program.size());
+        for (int n = 0; n < program.size(); n++) {
+            Instruction i = program.get(n);
+            if (n + 1 < program.size() && isUpdate(i) && i.dest().equals("D")
+                    && isUpdate(program.get(n + 1)) && program.get(n + 1).dest().equals("A")
+                    && program.get(n + 1).comp().equals("D")) {
+                out.add(cInstruction("AD", i.comp(), i));
+                n += 1;
+                continue;
+            }
+            out.add(i);
+        }
+        return out;
+    }
+
+    /** Returns true if I is a C instruction with a destination and no jump. */
+    private static boolean isUpdate(Instruction i) {
+        return i.isCInstruction() && ! i.dest().equals(NULL_FIELD) && i.jump().equals(NULL_FIELD);
+    }
+
+    /** Returns true if the C instruction I uses the value of A, as an operand, as the address of M or
+     *  as a jump target. */
+    private static boolean readsA(Instruction i) {
+        String comp = i.comp();
+        return ! i.jump().equals(NULL_FIELD) || comp.indexOf('A') >= 0 || comp.indexOf('M') >= 0
+                || i.dest().indexOf('M') >= 0;
+    }
+
+    private static boolean writesA(Instruction i) {
+        return i.dest().indexOf('A') >= 0;
+    }
+
+    /** Returns true if the A instructions I and J load the same address. */
+    private static boolean sameAddress(Instruction i, Instruction j) {
+        if (i.symbol() != null) {
+            return i.symbol().equals(j.symbol());
+        }
+        return j.symbol() == null && i.address() == j.address();
+    }
+
+    /** Build the C instruction DEST=COMP, reporting the position of the instruction SOURCE. */
+    private static Instruction cInstruction(String dest, String comp, Instruction source) {
+        return new Instruction(Instruction.InstructionType.C_INSTRUCTION, null,
+                Encoder.cInstruction(dest, comp, NULL_FIELD), null, source.fileName(), source.lineNumber());
+    }
+}
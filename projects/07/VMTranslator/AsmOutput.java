@@ -0,0 +1,48 @@
+/** An AsmOutput receives the code generated by the CodeGenerator, one Snippet, A instruction, label or
+ *  comment at a time. Labels and addresses are passed in pieces, so that they never have to be joined
+ *  into Strings when the output is text.
+ *
+ *  There are two implementations:
+ *
+ *      - AsmWriter writes the code as assembly code text.
+ *      - RomOutput encodes it straight into machine code with a RomBuilder.
+ *
+ *  and two that wrap or stand in for them: WordCounter counts the words the code takes up, and
+ *  SourceMapOutput records which VM command each word comes from.
+ */
+public interface AsmOutput {
+    /** Emit a fixed piece of code. */
+    void code(Snippet snippet);
+
+    /** Emit an A instruction loading ADDRESS, which is either a decimal number or a symbol. */
+    void address(String address);
+
+    /** Emit an A instruction loading the constant VALUE. */
+    void address(int value);
+
+    /** Emit an A instruction loading the symbol made of PREFIX followed by NUMBER, e.g. Main$JUMP3. */
+    void address(String prefix, int number);
+
+    /** Emit an A instruction loading the symbol made of SCOPE, SEPARATOR and NAME, e.g. Main.fib$END
+     *  or Main.3. */
+    void address(String scope, char separator, String name);
+
+    /** Define the label NAME. */
+    void label(String name);
+
+    /** Define the label made of PREFIX followed by NUMBER. */
+    void label(String prefix, int number);
+
+    /** Define the label made of SCOPE, SEPARATOR and NAME. */
+    void label(String scope, char separator, String name);
+
+    /** Emit a comment describing the VM command COMMAND ARG1 ARG2, read from line LINENUMBER of
+     *  FILENAME. ARG1 is null and ARG2 is negative if the command has no such argument. Outputs that
+     *  are not text ignore comments. */
+    void comment(String command, String arg1, int arg2, String fileName, int lineNumber);
+
+    /** Mark the start of the code of the VM command COMMAND (its name, such as 'push'), read from line
+     *  LINENUMBER of FILENAME, in the function FUNCTION. The code that comes from no file is marked with
+     *  a null FILENAME. Outputs that do not map code to commands ignore marks. */
+    void mark(String command, String fileName, int lineNumber, String function);
+}
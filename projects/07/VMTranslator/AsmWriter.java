@@ -0,0 +1,173 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/** An AsmWriter writes assembly code text to a channel through one reusable buffer of BUFFER_SIZE bytes.
+ *
+ *  Text is copied into the buffer one character at a time (all assembly code is ASCII), and numbers
+ *  are written digit by digit, so writing never creates any objects. The buffer is written to the
+ *  channel whenever it fills up, and when the writer is flushed or closed.
+ *
+ *  The put methods are called from deep inside the CodeGenerator, so a failure to write to the
+ *  channel is thrown as an UncheckedIOException. VMTranslator.translate() turns it back into the
+ *  IOException it wraps.
+ */
+public class AsmWriter implements AsmOutput {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private WritableByteChannel channel;
+    private byte[] buffer;
+    private ByteBuffer view;
+    private int count;
+    /** The number of bytes written to the channel so far. */
+    private long written;
+
+    public AsmWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        buffer = new byte[BUFFER_SIZE];
+        view = ByteBuffer.wrap(buffer);
+        count = 0;
+        written = 0;
+    }
+
+    public AsmWriter put(char c) {
+        if (count == buffer.length) {
+            drain();
+        }
+        buffer[count++] = (byte) c;
+        return this;
+    }
+
+    public AsmWriter put(String s) {
+        int length = s.length();
+        if (length > buffer.length - count) {
+            drain();
+            if (length > buffer.length) {
+                for (int i = 0; i < length; i++) {
+                    put(s.charAt(i));
+                }
+                return this;
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            buffer[count + i] = (byte) s.charAt(i);
+        }
+        count += length;
+        return this;
+    }
+
+    /** Write N in decimal. */
+    public AsmWriter put(int n) {
+        if (buffer.length - count < 11) {
+            drain();
+        }
+        long value = n;
+        if (value < 0) {
+            buffer[count++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value / 10; v > 0; v /= 10) {
+            digits += 1;
+        }
+        for (int i = count + digits - 1; i >= count; i--) {
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        count += digits;
+        return this;
+    }
+
+    @Override
+    public void code(Snippet snippet) {
+        put(snippet.text());
+    }
+
+    @Override
+    public void address(String address) {
+        put('@').put(address).put('\n');
+    }
+
+    @Override
+    public void address(int value) {
+        put('@').put(value).put('\n');
+    }
+
+    @Override
+    public void address(String prefix, int number) {
+        put('@').put(prefix).put(number).put('\n');
+    }
+
+    @Override
+    public void address(String scope, char separator, String name) {
+        put('@').put(scope).put(separator).put(name).put('\n');
+    }
+
+    @Override
+    public void label(String name) {
+        put('(').put(name).put(")\n");
+    }
+
+    @Override
+    public void label(String prefix, int number) {
+        put('(').put(prefix).put(number).put(")\n");
+    }
+
+    @Override
+    public void label(String scope, char separator, String name) {
+        put('(').put(scope).put(separator).put(name).put(")\n");
+    }
+
+    /** Write a comment of the form '// COMMAND ARG1 ARG2 (COMMAND (FILENAME: Line N))'. Missing
+     *  arguments are left empty. */
+    @Override
+    public void comment(String command, String arg1, int arg2, String fileName, int lineNumber) {
+        put("// ").put(command).put(' ');
+        if (arg1 != null) {
+            put(arg1);
+        }
+        put(' ');
+        if (arg2 >= 0) {
+            put(arg2);
+        }
+        put(" (").put(command).put(" (").put(fileName == null ? "null" : fileName)
+                .put(": Line ").put(lineNumber).put("))\n");
+    }
+
+    @Override
+    public void mark(String command, String fileName, int lineNumber, String function) {
+    }
+
+    /** The number of bytes written so far, including those still in the buffer. */
+    public long size() {
+        return written + count;
+    }
+
+    /** Write the contents of the buffer to the channel. */
+    public void flush() throws IOException {
+        view.clear().limit(count);
+        while (view.hasRemaining()) {
+            channel.write(view);
+        }
+        written += count;
+        count = 0;
+    }
+
+    /** Flush the buffer and close the channel. */
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void drain() {
+        try {
+            flush();
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+}
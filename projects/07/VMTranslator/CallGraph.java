@@ -0,0 +1,98 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** A CallGraph records, for every function defined in a VM program, the functions it calls. A VM
+ *  function can only be entered by a call that names it, so a function that cannot be reached by
+ *  following calls from the program's entry point is never run, and its code can be left out.
+ *
+ *  Code outside any function is run where it stands, without a call, so the functions it calls are
+ *  reached along with the entry point. Calls to functions that the program does not define are
+ *  recorded, but lead nowhere.
+ */
+public class CallGraph {
+    /** The functions called by each function, with the functions in the order they are defined. */
+    private Map<String, Set<String>> calls;
+    /** The functions called by code outside any function. */
+    private Set<String> topLevelCalls;
+
+    private CallGraph() {
+        calls = new LinkedHashMap<>();
+        topLevelCalls = new LinkedHashSet<>();
+    }
+
+    /** Parse the vm files named in FILES and return their call graph. */
+    public static CallGraph build(List<String> files) {
+        CallGraph graph = new CallGraph();
+        for (String file : files) {
+            InstructionBuilder builder = new InstructionBuilder(file);
+            VMCode function = new VMCode(file);
+            try {
+                while (builder.buildNextFunction(function)) {
+                    graph.add(function);
+                    function.truncate(0);
+                }
+            } finally {
+                builder.close();
+            }
+        }
+        return graph;
+    }
+
+    /** Add the calls made by FUNCTION, the instructions of one function, or of code outside any
+     *  function. */
+    private void add(VMCode function) {
+        if (function.opcode(0) != VMCode.FUNCTION) {
+            for (int i = 0; i < function.size(); i++) {
+                if (function.opcode(i) == VMCode.CALL) {
+                    topLevelCalls.add(function.name(i));
+                }
+            }
+            return;
+        }
+        String name = function.name(0);
+        if (calls.containsKey(name)) {
+            throw new RuntimeException("Function defined twice: " + function.details(0));
+        }
+        Set<String> callees = new LinkedHashSet<>();
+        for (int i = 1; i < function.size(); i++) {
+            if (function.opcode(i) == VMCode.CALL) {
+                callees.add(function.name(i));
+            }
+        }
+        calls.put(name, callees);
+    }
+
+    /** Return true if the program defines the function NAME. */
+    public boolean defines(String name) {
+        return calls.containsKey(name);
+    }
+
+    /** Return the names of all functions defined by the program, in the order they are defined. */
+    public List<String> functions() {
+        return new ArrayList<>(calls.keySet());
+    }
+
+    /** Return the names of the functions that can be reached from the function ROOT or from the code
+     *  outside any function, including ROOT itself if it is defined. */
+    public Set<String> reachableFrom(String root) {
+        Set<String> reached = new LinkedHashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(root);
+        pending.addAll(topLevelCalls);
+        while (! pending.isEmpty()) {
+            String name = pending.remove();
+            Set<String> callees = calls.get(name);
+            if (callees == null || ! reached.add(name)) {
+                continue;
+            }
+            pending.addAll(callees);
+        }
+        return reached;
+    }
+}
@@ -1,56 +1,215 @@
+import java.util.EnumSet;
+import java.util.Set;
+
+/** A CodeGenerator translates VM instructions into Hack code.
+ *
+ *  The code is handed to an AsmOutput: fixed pieces of code as Snippets, and the A instructions and
+ *  labels that depend on the VM program in pieces. An AsmWriter output writes the code as assembly
+ *  code text, copying every piece into its buffer, so no Strings are built for the generated code.
+ *  A RomOutput encodes it straight into machine code instead.
+ */
 public class CodeGenerator {
+    /** The ways code can be generated, besides the plain translation of each command in place.
+     *
+     *  SHARED_RUNTIME: call, return and comparison commands are translated into short stubs that jump
+     *      to the routines of the shared runtime, which the bootstrap code includes (or which follow a
+     *      program that has no bootstrap code, see generateEnd()).
+     *  STACK_CACHE: the value on the top of the stack is kept in D rather than in memory for as long
+     *      as possible. Memory is brought up to date before labels, jumps, calls and returns, so the
+     *      stack is always in memory where control flow meets, and D only carries a value from one
+     *      command to the next within a basic block.
+     */
+    public enum Option {
+        SHARED_RUNTIME, STACK_CACHE
+    }
 
-    private static final String UNCONDITIONAL_JUMP_LABEL = "0;JMP\n";
-    private static final String JUMP_IF_D_NOT_ZERO = "D;JNE\n";
-    private static final String DECREMENT_SP = "@SP\nM=M-1\nA=M\n";
-    private static final String INCREMENT_SP = "@SP\nM=M+1\n";
-    private static final String STORE_D_IN_SP = "@SP\nA=M\nM=D\n";
-    private static final String STORE_M_IN_D = "D=M\n";
-    private static final String STORE_D_IN_M = "M=D\n";
-    private static final String STORE_A_IN_D = "D=A\n";
-    private static final String STORE_SP_IN_D = "@SP\nD=M\n";
-    private static final String SUBTRACT_A_FROM_D = "D=D-A\n";
-    private static final String NEG_CODE = "M=-M\n";
-    private static final String NOT_CODE = "M=!M\n";
-    private static final String ADD_CODE = "M=M+D\n";
-    private static final String SUB_CODE = "M=M-D\n";
-    private static final String AND_CODE = "M=M&D\n";
-    private static final String OR_CODE = "M=M|D\n";
-    private static final String SET_TRUE = "@SP\nA=M\nM=-1\n";
-    private static final String SET_FALSE = "@SP\nA=M\nM=0\n";
-    private static final String POP_COPY_CODE = "@tmp\nM=D\n@SP\nM=M-1\nA=M\nD=M\n@tmp\nA=M\nM=D\n";
-    private static final String PUSH_COPY_CODE = "D=M\n@SP\nA=M\nM=D\n" + INCREMENT_SP;
-    private static final String INIT_CODE = "@256\nD=A\n@SP\nM=D\n";
-
-    private static final String[] SEGMENT_NAMES = {"local", "argument", "this", "that"};
-    private static final String[] SEGMENT_CODES = {"LCL", "ARG", "THIS", "THAT"};
+    private static final Snippet UNCONDITIONAL_JUMP = new Snippet("0;JMP\n");
+    private static final Snippet JUMP_IF_D_NOT_ZERO = new Snippet("D;JNE\n");
+    private static final Snippet DECREMENT_SP = new Snippet("@SP\nM=M-1\nA=M\n");
+    private static final Snippet INCREMENT_SP = new Snippet("@SP\nM=M+1\n");
+    private static final Snippet STORE_M_IN_D = new Snippet("D=M\n");
+    private static final Snippet STORE_A_IN_D = new Snippet("D=A\n");
+    private static final Snippet LOAD_SEGMENT_ADDRESS = new Snippet("D=M+D\nA=D\n");
+    private static final Snippet COMPARE_CODE = new Snippet("D=M-D\n");
+    private static final Snippet NEG_CODE = new Snippet("M=-M\n");
+    private static final Snippet NOT_CODE = new Snippet("M=!M\n");
+    private static final Snippet ADD_CODE = new Snippet("M=M+D\n");
+    private static final Snippet SUB_CODE = new Snippet("M=M-D\n");
+    private static final Snippet AND_CODE = new Snippet("M=M&D\n");
+    private static final Snippet OR_CODE = new Snippet("M=M|D\n");
+    private static final Snippet JEQ_CODE = new Snippet("D;JEQ\n");
+    private static final Snippet JGT_CODE = new Snippet("D;JGT\n");
+    private static final Snippet JLT_CODE = new Snippet("D;JLT\n");
+    private static final Snippet SET_TRUE = new Snippet("@SP\nA=M\nM=-1\n");
+    private static final Snippet SET_FALSE = new Snippet("@SP\nA=M\nM=0\n");
+    private static final Snippet POP_COPY_CODE = new Snippet("D=A\n@tmp\nM=D\n@SP\nM=M-1\nA=M\nD=M\n@tmp\nA=M\nM=D\n");
+    private static final Snippet BASIC_POP_CODE = new Snippet("D=D+M\n@tmp\nM=D\n@SP\nM=M-1\nA=M\nD=M\n@tmp\nA=M\nM=D\n");
+    private static final Snippet PUSH_COPY_CODE = new Snippet("D=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+    private static final Snippet PUSH_D_CODE = new Snippet("D=A\n@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+    private static final Snippet INIT_CODE = new Snippet("@256\nD=A\n@SP\nM=D\n");
+    private static final Snippet SAVE_STATE_CODE = new Snippet(
+            "@LCL\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n" +
+            "@ARG\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n" +
+            "@THIS\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n" +
+            "@THAT\nD=M\n@SP\nA=M\nM=D\n@SP\nM=M+1\n" +
+            "@SP\nD=M\n");
+    private static final Snippet REPOSITION_CODE = new Snippet(
+            "D=D-A\n@5\nD=D-A\n@ARG\nM=D\n@SP\nD=M\n@LCL\nM=D\n");
+    private static final Snippet SAVE_FRAME_CODE = new Snippet(
+            "@LCL\nD=M\n@FRAME\nM=D\n" +
+            "@5\nD=A\n@FRAME\nD=M-D\nA=D\nD=M\n@RET\nM=D\n");
+    private static final Snippet RESTORE_STATE_CODE = new Snippet(
+            "@ARG\nD=M\nD=D+1\n@SP\nM=D\n" +
+            "@1\nD=A\n@FRAME\nD=M-D\nA=D\nD=M\n@THAT\nM=D\n" +
+            "@2\nD=A\n@FRAME\nD=M-D\nA=D\nD=M\n@THIS\nM=D\n" +
+            "@3\nD=A\n@FRAME\nD=M-D\nA=D\nD=M\n@ARG\nM=D\n" +
+            "@4\nD=A\n@FRAME\nD=M-D\nA=D\nD=M\n@LCL\nM=D\n" +
+            "@RET\nA=M\n0;JMP\n");
+
+    /** The code of the shared runtime, and of the stubs that call it. The call routine is passed the
+     *  number of arguments in R13 and the address of the function in R14. Every routine is passed its
+     *  return address in D; the comparison routines keep it in R15 until they are done. */
+    private static final Snippet STORE_NUM_ARGS = new Snippet("@R13\nM=D\n");
+    private static final Snippet NO_ARGS = new Snippet("@R13\nM=0\n");
+    private static final Snippet ONE_ARG = new Snippet("@R13\nM=1\n");
+    private static final Snippet STORE_FUNCTION = new Snippet("@R14\nM=D\n");
+    private static final Snippet PUSH_D = new Snippet("@SP\nA=M\nM=D\n@SP\nM=M+1\n");
+    private static final Snippet LOAD_NUM_ARGS = new Snippet("@R13\nA=M\n");
+    private static final Snippet JUMP_TO_FUNCTION = new Snippet("@R14\nA=M\n0;JMP\n");
+    private static final Snippet SAVE_COMPARE_RETURN = new Snippet("@R15\nM=D\n");
+    private static final Snippet COMPARE_RETURN = new Snippet("@R15\nA=M\n0;JMP\n");
+
+    /** The code of the instructions that only the VMOptimizer creates. */
+    private static final Snippet LOAD_ZERO = new Snippet("D=0\n");
+    private static final Snippet LOAD_ONE = new Snippet("D=1\n");
+    private static final Snippet LOAD_M = new Snippet("D=M\n");
+    private static final Snippet LOAD_FROM_SEGMENT = new Snippet("A=M+D\nD=M\n");
+    private static final Snippet LOAD_FIRST = new Snippet("A=M\nD=M\n");
+    private static final Snippet LOAD_SECOND = new Snippet("A=M+1\nD=M\n");
+    private static final Snippet BASE_ADDRESS = new Snippet("A=M\n");
+    private static final Snippet NEXT_ADDRESS = new Snippet("A=A+1\n");
+    private static final Snippet STORE_D = new Snippet("M=D\n");
+    private static final Snippet SAVE_DESTINATION = new Snippet("D=M+D\n@R13\nM=D\n");
+    private static final Snippet STORE_D_AT_DESTINATION = new Snippet("@R13\nA=M\nM=D\n");
+    private static final Snippet TOP_OF_STACK = new Snippet("@SP\nA=M-1\n");
+    private static final Snippet INCREMENT_M = new Snippet("M=M+1\n");
+    private static final Snippet DECREMENT_M = new Snippet("M=M-1\n");
+    private static final Snippet SUBTRACT_A = new Snippet("D=D-A\n");
+    /** The jumps of the compare-and-jumps, from IF_EQ to IF_GE. */
+    private static final Snippet[] IF_COMPARE_JUMPS = {new Snippet("D;JEQ\n"), new Snippet("D;JNE\n"),
+            new Snippet("D;JGT\n"), new Snippet("D;JLE\n"), new Snippet("D;JLT\n"), new Snippet("D;JGE\n")};
+    /** The code used while the top of the stack is kept in D. */
+    private static final Snippet POP_TO_D = new Snippet("@SP\nAM=M-1\nD=M\n");
+    private static final Snippet POP_TO_A = new Snippet("@SP\nAM=M-1\n");
+    private static final Snippet ADD_TO_D = new Snippet("D=M+D\n");
+    private static final Snippet AND_TO_D = new Snippet("D=D&M\n");
+    private static final Snippet OR_TO_D = new Snippet("D=D|M\n");
+    private static final Snippet NEG_D = new Snippet("D=-D\n");
+    private static final Snippet NOT_D = new Snippet("D=!D\n");
+    private static final Snippet INCREMENT_D = new Snippet("D=D+1\n");
+    private static final Snippet DECREMENT_D = new Snippet("D=D-1\n");
+    private static final Snippet ADD_A = new Snippet("D=D+A\n");
+    private static final Snippet AND_A = new Snippet("D=D&A\n");
+    private static final Snippet OR_A = new Snippet("D=D|A\n");
+    private static final Snippet LOAD_TRUE = new Snippet("D=-1\n");
+    private static final Snippet SAVE_D = new Snippet("@R13\nM=D\n");
+    private static final Snippet SAVE_ADDRESS = new Snippet("D=M+D\n@R14\nM=D\n");
+    private static final Snippet STORE_SAVED_D = new Snippet("@R13\nD=M\n@R14\nA=M\nM=D\n");
+    /** Destinations up to this far into a segment are reached by stepping A, rather than through R13. */
+    private static final int MAX_STEPPED_INDEX = 6;
+
+    /** The symbols of the segments that are reached through a base address, by segment number. */
+    private static final String[] SEGMENT_CODES = {null, "LCL", "ARG", "THIS", "THAT", null, null, null};
     private static final String INFINITE_JUMP_LABEL = "NOEND";
-    private static final String COMMENT_DELIMITER = "// ";
     private static final String INPUT_FILE_FORMAT = ".vm";
-    private static final String FUNC_RETURN_LABEL = "FUNC_RETURN_";
+    private static final String RETURN_LABEL = "$RET";
+    private static final String JUMP_LABEL = "$JUMP";
+    /** Separates the file from the name of a label outside any function ('fileName:label'), so that
+     *  such labels cannot clash with the jump and return labels of the file, or with the runtime labels. */
+    private static final char FILE_LABEL_SEPARATOR = ':';
+    /** The scope of the labels in the bootstrap code, which belongs to no file. */
+    private static final String BOOTSTRAP_SCOPE = "BOOTSTRAP";
+    /** The labels of the shared runtime routines. */
+    private static final String RUNTIME_CALL = "RUNTIME$CALL";
+    private static final String RUNTIME_RETURN = "RUNTIME$RETURN";
+    private static final String RUNTIME_EQ = "RUNTIME$EQ";
+    private static final String RUNTIME_GT = "RUNTIME$GT";
+    private static final String RUNTIME_LT = "RUNTIME$LT";
+    private static final String SYS_INIT = "Sys.init";
+    /** The name a move has in the source map. */
+    private static final String MOVE_COMMAND = "push-pop";
     private static final int TEMP_BASE_ADDRESS = 5;
     private static final int POINTER_BASE_ADDRESS = 3;
 
+    /** Where the generated code goes. */
+    private AsmOutput out;
     /** The number of Jump labels that have been generated so far. This counter only counts
      *  jump labels that were created as part of a normal conditional command (JEQ, JGT, JLT) */
     private int numJumpNames;
     /** The number of Return labels that have been generated so far. This counter only counts
      *  return labels created while translating function code. */
     private int numReturnNames;
-    /** The name of the file that stored the instruction currently being processed */
-    private String fileName;
+    /** The prefix of the file's static symbols ('fileName.offset'), where fileName is the name of the
+     *  file being translated, without path or extension. The name is also the scope of its jump and
+     *  return labels. */
+    private String staticPrefix;
+    /** The name of the file being translated, without path, and the name of the function its code is in
+     *  before its first function, as the source map gives them. */
+    private String sourceName;
+    private String scope;
+    /** The prefixes of the jump and return labels, e.g. 'Main$JUMP' and 'Main$RET'. */
+    private String jumpPrefix;
+    private String returnPrefix;
     /** The name of the function that is currently being created, if any */
     private String currFunctionName;
+    /** Whether call, return and comparison commands jump to the shared runtime routines rather than
+     *  having their code generated in place. */
+    private boolean sharedRuntime;
+    /** Whether the top of the stack may be kept in D, and whether it is there now. While it is, SP
+     *  counts only the values in memory, one fewer than there are on the stack. */
+    private boolean stackCache;
+    private boolean topInD;
+
+    /** A CodeGenerator translates the instructions of a single vm file, named FILENAME. Every label it
+     *  makes up is scoped by the name of the file, so the files of a program can be translated
+     *  separately, in any order and on any thread, and the results joined without any clashes. */
+    public CodeGenerator(String fileName, AsmOutput out) {
+        this(fileName, out, EnumSet.noneOf(Option.class));
+    }
+
+    /** Create a CodeGenerator that generates code the ways given by OPTIONS. */
+    public CodeGenerator(String fileName, AsmOutput out, Set<Option> options) {
+        this(out, removePaths(fileName), options);
+    }
 
-    public CodeGenerator(String fileName) {
+    private CodeGenerator(AsmOutput out, String scope, Set<Option> options) {
+        this.out = out;
         numJumpNames = 0;
         numReturnNames = 0;
-        this.fileName = removePaths(fileName);
+        staticPrefix = scope + '.';
+        sourceName = scope + INPUT_FILE_FORMAT;
+        this.scope = scope;
+        jumpPrefix = scope + JUMP_LABEL;
+        returnPrefix = scope + RETURN_LABEL;
         currFunctionName = "";
+        sharedRuntime = options.contains(Option.SHARED_RUNTIME);
+        stackCache = options.contains(Option.STACK_CACHE);
+        topInD = false;
+    }
+
+    /** Return a CodeGenerator for the bootstrap code, which comes before the code of any file. */
+    public static CodeGenerator bootstrap(AsmOutput out) {
+        return bootstrap(out, EnumSet.noneOf(Option.class));
+    }
+
+    /** Return a CodeGenerator for the bootstrap code. With the SHARED_RUNTIME option, the bootstrap code
+     *  includes the shared runtime routines. */
+    public static CodeGenerator bootstrap(AsmOutput out, Set<Option> options) {
+        return new CodeGenerator(out, BOOTSTRAP_SCOPE, options);
     }
 
     /** Extract and return the name of a file from a path. */
-    private String removePaths(String file) {
+    private static String removePaths(String file) {
         int i = file.length() - 1;
         // Find the path separator, if one exists
         while (i >= 0) {
@@ -67,323 +226,762 @@ public class CodeGenerator {
     }
 
     /** For each instruction processed, include a comment listing the original vm instruction */
-    private String buildComment(Instruction i) {
-        return COMMENT_DELIMITER + i.toString() + " (" + i.command().details() + ")\n";
+    private void buildComment(VMCode code, int i) {
+        out.comment(VMCode.commandName(code.opcode(i)), code.arg1(i), code.arg2(i), code.fileName(), code.line(i));
     }
 
-    /** Return the machine code symbol for the given memory segment. The segment argument
-     *  must match the labels used in the VM code to identify a memory segment (ex. argument, local, etc)
-     */
-    private String getSegmentCode(String segment) {
-        int i = 0;
-        while (i < SEGMENT_NAMES.length) {
-            if (SEGMENT_NAMES[i].equals(segment)) {
-                return SEGMENT_CODES[i];
-            }
-            i += 1;
-        }
-        return null;
-    }
-
-    /** Return a string containing the machine code needed to affect instruction I. */
-    public String generateCode(Instruction i) {
-        // Check to see if the current instruction came from a new file.
-        if (i.command().fileName() != null && ! i.command().fileName().equals(fileName)) {
-            fileName = i.command().fileName();
-        }
-        String comment = buildComment(i);
-        // Dispatch to the appropriate method based on the command type of the instruction
-        if (i.commandType() == Instruction.CommandType.C_ARITHMETIC) {
-            return comment + generateArithmetic(i);
-        } else if (i.commandType() == Instruction.CommandType.C_PUSH) {
-            return comment + generatePush(i);
-        } else if (i.commandType() == Instruction.CommandType.C_POP) {
-            return comment + generatePop(i);
-        } else if (i.commandType() == Instruction.CommandType.C_LABEL) {
-            return comment + generateLabel(i.arg1().text());
-        } else if (i.commandType() == Instruction.CommandType.C_GOTO) {
-            return comment + generateGoto(i);
-        } else if (i.commandType() == Instruction.CommandType.C_IF) {
-            return comment + generateIf(i);
-        } else if (i.commandType() == Instruction.CommandType.C_FUNCTION) {
-            return comment + generateFunction(i);
-        } else if (i.commandType() == Instruction.CommandType.C_RETURN) {
-            return comment + generateReturn(i);
-        } else if (i.commandType() == Instruction.CommandType.C_CALL) {
-            return comment + generateCall(i);
+    /** Mark the start of the code of instruction I of CODE. A function's own code is in the function,
+     *  and a move is marked as the push and pop it stands for. */
+    private void buildMark(VMCode code, int i) {
+        int opcode = code.opcode(i);
+        String command = opcode == VMCode.MOVE ? MOVE_COMMAND : VMCode.commandName(opcode);
+        String function = opcode == VMCode.FUNCTION ? code.name(i)
+                : currFunctionName.isEmpty() ? scope : currFunctionName;
+        out.mark(command, sourceName, code.line(i), function);
+    }
+
+    /** Generate the machine code needed to affect every instruction of CODE. */
+    public void generate(VMCode code) {
+        generate(code, 0, code.size());
+    }
+
+    /** Generate the machine code needed to affect the instructions of CODE from index FROM up to index
+     *  TO (exclusive). */
+    public void generate(VMCode code, int from, int to) {
+        int i = from;
+        while (i < to) {
+            i += generateCode(code, i);
+        }
+    }
+
+    /** Generate the machine code needed to affect instruction I of CODE. Returns the number of rows the
+     *  instruction takes up, which is 2 for a move and 1 for every other instruction. */
+    private int generateCode(VMCode code, int i) {
+        int opcode = code.opcode(i);
+        buildMark(code, i);
+        buildComment(code, i);
+        if (opcode == VMCode.MOVE) {
+            buildComment(code, i + 1);
+        }
+        if (stackCache && generateCached(code, i)) {
+            return 1;
+        }
+        // Dispatch to the appropriate method based on the opcode of the instruction
+        switch (opcode) {
+            case VMCode.PUSH:
+                generatePush(code.segment(i), code.operand(i));
+                break;
+            case VMCode.POP:
+                generatePop(code.segment(i), code.operand(i));
+                break;
+            case VMCode.LABEL:
+                generateLabel(code.name(i));
+                break;
+            case VMCode.GOTO:
+                generateGoto(code.name(i));
+                break;
+            case VMCode.IF_GOTO:
+                generateIf(code.name(i));
+                break;
+            case VMCode.FUNCTION:
+                generateFunction(code.name(i), code.argument(i));
+                break;
+            case VMCode.RETURN:
+                generateReturn();
+                break;
+            case VMCode.CALL:
+                generateCall(code.name(i), code.argument(i));
+                break;
+            case VMCode.MOVE:
+                generateMove(code.segment(i), code.operand(i), code.segment(i + 1), code.operand(i + 1));
+                return 2;
+            case VMCode.IF_EQ:
+            case VMCode.IF_NE:
+            case VMCode.IF_GT:
+            case VMCode.IF_LE:
+            case VMCode.IF_LT:
+            case VMCode.IF_GE:
+                generateIfCompare(opcode, code.name(i), code.argument(i));
+                break;
+            default:
+                generateArithmetic(opcode, code.operand(i));
+        }
+        return 1;
+    }
+
+    /** Generate the machine code for a jump label. Labels are scoped by the function they appear in
+     *  ('functionName$label'), and labels outside any function by the file ('fileName:label'). */
+    private void generateLabel(String label) {
+        if (currFunctionName.isEmpty()) {
+            out.label(scope, FILE_LABEL_SEPARATOR, label);
         } else {
-            return "";
+            out.label(currFunctionName, '$', label);
         }
     }
 
-    /** Return the machine code for a jump label within a function */
-    private String generateLabel(String label) {
-        return buildJumpLabel(buildFunctionLabel(label));
+    /** Load the address of the jump label LABEL into A, scoped the way generateLabel() scopes it. */
+    private void jumpAddress(String label) {
+        if (currFunctionName.isEmpty()) {
+            out.address(scope, FILE_LABEL_SEPARATOR, label);
+        } else {
+            out.address(currFunctionName, '$', label);
+        }
+    }
+
+    /** Generate the machine code needed to affect a goto command. */
+    private void generateGoto(String label) {
+        jumpAddress(label);
+        out.code(UNCONDITIONAL_JUMP);
+    }
+
+    /** Generate the machine code needed to affect an if-goto command. */
+    private void generateIf(String label) {
+        out.code(DECREMENT_SP);
+        out.code(STORE_M_IN_D);
+        jumpAddress(label);
+        out.code(JUMP_IF_D_NOT_ZERO);
+    }
+
+    /** Generate the machine code needed to affect a compare-and-jump (if-lt LABEL, or if-lt LABEL C to
+     *  compare against the constant C). The difference of the two values is computed the same way
+     *  the comparison commands compute it, and the jump tests it directly. */
+    private void generateIfCompare(int opcode, String label, int constant) {
+        out.code(DECREMENT_SP);
+        out.code(STORE_M_IN_D);
+        if (constant == VMCode.NONE) {
+            out.code(DECREMENT_SP);
+            out.code(COMPARE_CODE);
+        } else if (constant != 0) {
+            out.address(constant);
+            out.code(SUBTRACT_A);
+        }
+        jumpAddress(label);
+        out.code(IF_COMPARE_JUMPS[opcode - VMCode.IF_EQ]);
     }
 
-    /** Return the machine code needed to affect a goto command. */
-    private String generateGoto(Instruction i) {
-        return buildAInstruction(buildFunctionLabel(i.arg1().text())) + UNCONDITIONAL_JUMP_LABEL;
+    /** Generate the machine code needed to affect a move from index SOURCEINDEX of SOURCE to index INDEX
+     *  of SEGMENT: the value is loaded into D and stored at the destination, and SP is never touched. A
+     *  destination far into a segment has its address computed first and kept in R13. */
+    private void generateMove(int source, int sourceIndex, int segment, int index) {
+        String segmentCode = SEGMENT_CODES[segment];
+        if (segmentCode != null && index > MAX_STEPPED_INDEX) {
+            out.address(index);
+            out.code(STORE_A_IN_D);
+            out.address(segmentCode);
+            out.code(SAVE_DESTINATION);
+            loadIntoD(source, sourceIndex);
+            out.code(STORE_D_AT_DESTINATION);
+            return;
+        }
+        loadIntoD(source, sourceIndex);
+        storeD(segment, index);
     }
 
-    /** Return the machine code needed to affect an if-goto command. */
-    private String generateIf(Instruction i) {
-        String label = buildFunctionLabel(i.arg1().text());
-        return DECREMENT_SP + STORE_M_IN_D + buildAInstruction(label) + JUMP_IF_D_NOT_ZERO;
+    /** Generate the machine code that stores D at INDEX of SEGMENT, the destination of a pop. A
+     *  destination far into a segment needs D to compute its address, so the value is kept in R13
+     *  meanwhile. */
+    private void storeD(int segment, int index) {
+        String segmentCode = SEGMENT_CODES[segment];
+        if (segment == VMCode.TEMP) {
+            out.address(TEMP_BASE_ADDRESS + index);
+        } else if (segment == VMCode.POINTER) {
+            out.address(POINTER_BASE_ADDRESS + index);
+        } else if (segment == VMCode.STATIC) {
+            buildStaticLabel(index);
+        } else if (segmentCode == null) {
+            throw new RuntimeException("Invalid segment name: pop " + VMCode.segmentName(segment) + " " + index);
+        } else if (index > MAX_STEPPED_INDEX) {
+            out.code(SAVE_D);
+            out.address(index);
+            out.code(STORE_A_IN_D);
+            out.address(segmentCode);
+            out.code(SAVE_ADDRESS);
+            out.code(STORE_SAVED_D);
+            return;
+        } else {
+            out.address(segmentCode);
+            out.code(BASE_ADDRESS);
+            for (int n = index; n > 0; n--) {
+                out.code(NEXT_ADDRESS);
+            }
+        }
+        out.code(STORE_D);
     }
 
-    /** Return the machine code needed for initializing the program:
+    /** Generate the machine code that loads the value at INDEX of SEGMENT into D, the value a push would
+     *  push. */
+    private void loadIntoD(int segment, int index) {
+        if (segment == VMCode.CONSTANT) {
+            if (index == 0) {
+                out.code(LOAD_ZERO);
+            } else if (index == 1) {
+                out.code(LOAD_ONE);
+            } else {
+                out.address(index);
+                out.code(STORE_A_IN_D);
+            }
+            return;
+        }
+        if (segment == VMCode.TEMP) {
+            out.address(index + TEMP_BASE_ADDRESS);
+            out.code(LOAD_M);
+            return;
+        }
+        if (segment == VMCode.POINTER) {
+            out.address(index + POINTER_BASE_ADDRESS);
+            out.code(LOAD_M);
+            return;
+        }
+        if (segment == VMCode.STATIC) {
+            buildStaticLabel(index);
+            out.code(LOAD_M);
+            return;
+        }
+        String segmentCode = SEGMENT_CODES[segment];
+        if (index == 0) {
+            out.address(segmentCode);
+            out.code(LOAD_FIRST);
+        } else if (index == 1) {
+            out.address(segmentCode);
+            out.code(LOAD_SECOND);
+        } else {
+            out.address(index);
+            out.code(STORE_A_IN_D);
+            out.address(segmentCode);
+            out.code(LOAD_FROM_SEGMENT);
+        }
+    }
+
+    /** Generate the machine code needed for initializing the program:
      *  1. set SP to 256
      *  2. call Sys.init
+     *  3. with a shared runtime, the runtime routines, which are only reached through their stubs
      */
-    public String generateInit() {
-        return INIT_CODE + generateCode(InstructionBuilder.sysInitInstruction());
+    public void generateInit() {
+        out.mark("call", null, 0, BOOTSTRAP_SCOPE);
+        out.code(INIT_CODE);
+        out.comment("call", SYS_INIT, 0, null, 0);
+        generateCall(SYS_INIT, 0);
+        if (sharedRuntime) {
+            generateRuntime();
+        }
     }
 
-    /** Generate the machine code needed to affect the function command. */
-    public String generateFunction(Instruction i) {
-        StringBuilder builder = new StringBuilder();
-        String functionLabel = generateLabel(i.arg1().text());
-        // zeroMemory will be the instruction "push constant 0"
-        Instruction zeroMemory = InstructionBuilder.zeroMemoryInstruction();
-        String zeroMemoryCode = generateCode(zeroMemory);
-        return functionLabel + String.valueOf(zeroMemoryCode).repeat(Math.max(0, Integer.parseInt(i.arg2().text())));
+    /** Generate the end of a program that has no bootstrap code. With the SHARED_RUNTIME option, that is
+     *  the shared runtime routines, behind a loop that the program runs into when its own code ends.
+     *  Without it, nothing is generated. */
+    public void generateEnd() {
+        if (sharedRuntime) {
+            out.mark("goto", null, 0, BOOTSTRAP_SCOPE);
+            infiniteLoop();
+            generateRuntime();
+        }
     }
 
-    public String generateStashingCode(String segmentCode) {
-        return buildAInstruction(segmentCode) + STORE_M_IN_D + STORE_D_IN_SP + INCREMENT_SP;
+    /** Generate the shared runtime routines: the code of the call and return commands, and of the
+     *  eq, gt and lt commands. Each is generated once, the same way as it is in place without a shared
+     *  runtime, and ends by jumping to the return address its stub passed it. */
+    private void generateRuntime() {
+        // D holds the return address, R13 the number of arguments and R14 the function
+        out.mark("call", null, 0, RUNTIME_CALL);
+        out.label(RUNTIME_CALL);
+        out.code(PUSH_D);
+        out.code(SAVE_STATE_CODE);
+        out.code(LOAD_NUM_ARGS);
+        out.code(REPOSITION_CODE);
+        out.code(JUMP_TO_FUNCTION);
+        // return already ends by jumping to the return address saved in the frame
+        out.mark("return", null, 0, RUNTIME_RETURN);
+        out.label(RUNTIME_RETURN);
+        generateInlineReturn();
+        generateCompareRoutine(RUNTIME_EQ, "eq", JEQ_CODE);
+        generateCompareRoutine(RUNTIME_GT, "gt", JGT_CODE);
+        generateCompareRoutine(RUNTIME_LT, "lt", JLT_CODE);
+    }
+
+    private void generateCompareRoutine(String name, String command, Snippet jumpCode) {
+        out.mark(command, null, 0, name);
+        out.label(name);
+        out.code(SAVE_COMPARE_RETURN);
+        out.code(DECREMENT_SP);
+        out.code(STORE_M_IN_D);
+        out.code(DECREMENT_SP);
+        buildConditional(jumpCode);
+        out.code(INCREMENT_SP);
+        out.code(COMPARE_RETURN);
+    }
+
+    /** Generate a stub that jumps to the runtime routine ROUTINE with a fresh return address in D,
+     *  followed by the label of the return address. */
+    private void callRuntime(String routine) {
+        int returnNumber = getNextReturnNumber();
+        out.address(returnPrefix, returnNumber);
+        out.code(STORE_A_IN_D);
+        out.address(routine);
+        out.code(UNCONDITIONAL_JUMP);
+        out.label(returnPrefix, returnNumber);
+    }
+
+    /** Generate the machine code needed to affect the command 'function NAME NUMLOCALS'. */
+    private void generateFunction(String name, int numLocals) {
+        currFunctionName = name;
+        out.label(currFunctionName);
+        // every local variable is set up with the instruction "push constant 0"
+        for (int n = 0; n < numLocals; n++) {
+            out.comment("push", "constant", 0, null, 0);
+            push(VMCode.CONSTANT, 0);
+        }
+        // the locals are read from memory, so the last one cannot stay in D
+        spill();
     }
 
-    /** Generate the machine code needed to affect the call command. */
-    public String generateCall(Instruction i) {
-        String returnName = getNextReturnName();
-        String n = i.arg2().text();
-        Instruction gotoF = InstructionBuilder.gotoFunctionInstruction((i.arg1().text()));
+    /** Generate the machine code needed to affect the command 'call FUNCTION NUMARGS'. */
+    private void generateCall(String function, int numArgs) {
+        if (sharedRuntime) {
+            generateCallStub(function, numArgs);
+            return;
+        }
+        int returnNumber = getNextReturnNumber();
         // push return address
-        String result = buildAInstruction(returnName) + STORE_A_IN_D + STORE_D_IN_SP + INCREMENT_SP;
-        // save state
-        result += generateStashingCode("LCL");
-        result += generateStashingCode("ARG");
-        result += generateStashingCode("THIS");
-        result += generateStashingCode("THAT");
-        // reposition ARG pointer
-        String constantNLabel = buildAInstruction(n);
-        String constant5Label = buildAInstruction("5");
-        String argLabel = buildAInstruction("ARG");
-        result += STORE_SP_IN_D + constantNLabel + SUBTRACT_A_FROM_D + constant5Label + SUBTRACT_A_FROM_D;
-        result += argLabel + STORE_D_IN_M;
-        // reposition LCL pointer
-        String lclLabel = buildAInstruction("LCL");
-        result += STORE_SP_IN_D + lclLabel + STORE_D_IN_M;
-        // execute function
-        result += generateCode(gotoF);
+        out.address(returnPrefix, returnNumber);
+        out.code(PUSH_D_CODE);
+        // save state, then reposition the ARG and LCL pointers
+        out.code(SAVE_STATE_CODE);
+        out.address(numArgs);
+        out.code(REPOSITION_CODE);
+        // execute function, commented as the goto command it stands for
+        out.comment("goto", function, VMCode.NONE, null, 0);
+        out.address(function);
+        out.code(UNCONDITIONAL_JUMP);
         // return label
-        result += buildJumpLabel(returnName);
-        return result;
+        out.label(returnPrefix, returnNumber);
+    }
+
+    /** Generate a call stub, which passes the number of arguments and the function to the runtime's
+     *  call routine. */
+    private void generateCallStub(String function, int numArgs) {
+        if (numArgs == 0) {
+            out.code(NO_ARGS);
+        } else if (numArgs == 1) {
+            out.code(ONE_ARG);
+        } else {
+            out.address(numArgs);
+            out.code(STORE_A_IN_D);
+            out.code(STORE_NUM_ARGS);
+        }
+        out.address(function);
+        out.code(STORE_A_IN_D);
+        out.code(STORE_FUNCTION);
+        out.comment("goto", function, VMCode.NONE, null, 0);
+        callRuntime(RUNTIME_CALL);
+    }
+
+    private void generateReturn() {
+        if (sharedRuntime) {
+            out.address(RUNTIME_RETURN);
+            out.code(UNCONDITIONAL_JUMP);
+        } else {
+            generateInlineReturn();
+        }
     }
 
-    public String generateReturn(Instruction i) {
-        Instruction popToArg = new Instruction(Instruction.CommandType.C_POP, new Token("pop", null, 0), new Token("argument", null, 0),
-                                               new Token("0", null, 0));
-        // Store the current value of LCL
-        String result = "@LCL\nD=M\n@FRAME\nM=D\n";
-        // store the return address
-        result += "@5\nD=A\n@FRAME\nD=M-D\nA=D\nD=M\n@RET\nM=D\n";
+    private void generateInlineReturn() {
+        // Store the current value of LCL and the return address
+        out.code(SAVE_FRAME_CODE);
         // reposition return value
-        result += generateCode(popToArg);
-        // reset SP
-        result += "@ARG\nD=M\nD=D+1\n@SP\nM=D\n";
-        // reset saved state
-        result += "@1\nD=A\n@FRAME\nD=M-D\nA=D\nD=M\n@THAT\nM=D\n";
-        result += "@2\nD=A\n@FRAME\nD=M-D\nA=D\nD=M\n@THIS\nM=D\n";
-        result += "@3\nD=A\n@FRAME\nD=M-D\nA=D\nD=M\n@ARG\nM=D\n";
-        result += "@4\nD=A\n@FRAME\nD=M-D\nA=D\nD=M\n@LCL\nM=D\n";
-        // goto return
-        return result + "@RET\nA=M\n0;JMP\n";
+        out.comment("pop", "argument", 0, null, 0);
+        pop(VMCode.ARGUMENT, 0);
+        // reset SP and the saved state, then goto return
+        out.code(RESTORE_STATE_CODE);
+    }
+
+    /** Generate the code for push SEGMENT INDEX, keeping the value in D if the stack is cached. */
+    private void push(int segment, int index) {
+        if (stackCache) {
+            spill();
+            loadIntoD(segment, index);
+            topInD = true;
+        } else {
+            generatePush(segment, index);
+        }
     }
 
+    /** Generate the code for pop SEGMENT INDEX, taking the value from D if the stack is cached. */
+    private void pop(int segment, int index) {
+        if (stackCache) {
+            loadTop();
+            storeD(segment, index);
+            topInD = false;
+        } else {
+            generatePop(segment, index);
+        }
+    }
 
     /** Generate the hack machine code needed to affect a pop operation.
-     *  Arg1 of the instruction I is the destination memory segment,
-     *  Arg2 is the offset into the memory segment where the data should be placed.
-     *  Returns a string representing the machine code.
+     *  SEGMENT is the destination memory segment,
+     *  INDEX is the offset into the memory segment where the data should be placed.
      */
-    private String generatePop(Instruction i) {
-        String segment = i.arg1().text();
-        String offset = i.arg2().text();
+    private void generatePop(int segment, int index) {
         // Handle special case where we are using the temp memory segment, this is
         // a special case because we are directly accessing a memory location rather
         // than using a built-in symbol in the Hack language
-        if (segment.equals("temp")) {
-            int address = TEMP_BASE_ADDRESS + Integer.parseInt(offset);
-            return generateDirectPop(Integer.toString(address));
+        if (segment == VMCode.TEMP) {
+            out.address(TEMP_BASE_ADDRESS + index);
+            out.code(POP_COPY_CODE);
+            return;
         }
         // Handle special case where we are using the pointer memory segment, this is
         // similar to the "temp" case
-        if (segment.equals("pointer")) {
-            int address = POINTER_BASE_ADDRESS + Integer.parseInt(offset);
-            return generateDirectPop(Integer.toString(address));
+        if (segment == VMCode.POINTER) {
+            out.address(POINTER_BASE_ADDRESS + index);
+            out.code(POP_COPY_CODE);
+            return;
         }
         // Handle special case where we are using the static memory segment. This is
         // a special case because static data gets a special label ('fileName.offset')
-        if (segment.equals("static")) {
-            String staticLabel = buildStaticLabel(offset);
-            return generateDirectPop(staticLabel);
+        if (segment == VMCode.STATIC) {
+            buildStaticLabel(index);
+            out.code(POP_COPY_CODE);
+            return;
         }
-        String segmentCode = getSegmentCode(segment);
+        String segmentCode = SEGMENT_CODES[segment];
         if (segmentCode == null) {
-            throw new RuntimeException("Invalid segment name: pop " + segment + " " + offset);
+            throw new RuntimeException("Invalid segment name: pop " + VMCode.segmentName(segment) + " " + index);
         } else {
-            return generateBasicPop(segmentCode, offset);
+            generateBasicPop(segmentCode, index);
         }
     }
 
-    /** Returns a string representing a label in the hack machine language ('@label') */
-    private String buildAInstruction(String label) {
-        return "@" + label + "\n";
+    /** Generate an A instruction loading a static symbol ('fileName.offset') */
+    private void buildStaticLabel(int index) {
+        out.address(staticPrefix, index);
     }
 
-    /** Returns a string representing a static symbol name in the hack machine language ('fileName.offset') */
-    private String buildStaticLabel(String offset) {
-        String name = removePaths(fileName);
-        return name + "." + offset;
+    /** Generate the hack machine code needed to affect a simple pop from the stack into
+     *  *(*(segmentCode)+index) = Stack[--SP]
+     */
+    private void generateBasicPop(String segmentCode, int index) {
+        out.address(index);
+        out.code(STORE_A_IN_D);
+        out.address(segmentCode);
+        out.code(BASIC_POP_CODE);
     }
 
-    /** Returns a string with the hack machine code needed to affect a simple pop from the stack into
-     *  *(*(segmentCode)+offset) = Stack[--SP]
+    /** Generate the hack machine code needed to affect a simple push onto the stack
+     *  using the data located at the given index of the given memory segment.
+     *  *(*SP++) = *(*(segmentCode)+index))
      */
-    private String generateBasicPop(String segmentCode, String offset) {
-        String offsetLabel = buildAInstruction(offset);
-        String segmentLabel = buildAInstruction(segmentCode);
-        return offsetLabel + "D=A\n" + segmentLabel + "D=D+M\n" + POP_COPY_CODE;
+    private void generatePush(int segment, int index) {
+        if (segment == VMCode.CONSTANT) {
+            out.address(index);
+            out.code(PUSH_D_CODE);
+            return;
+        }
+        if (segment == VMCode.TEMP) {
+            out.address(index + TEMP_BASE_ADDRESS);
+            out.code(PUSH_COPY_CODE);
+            return;
+        }
+        if (segment == VMCode.POINTER) {
+            out.address(index + POINTER_BASE_ADDRESS);
+            out.code(PUSH_COPY_CODE);
+            return;
+        }
+        if (segment == VMCode.STATIC) {
+            buildStaticLabel(index);
+            out.code(PUSH_COPY_CODE);
+            return;
+        }
+        generateBasicPush(SEGMENT_CODES[segment], index);
     }
 
-    /** Similar to generateBasicPop, except takes a direct address instead of a segmentCode
-     *  and offset. Used for accessing the temp and pointer memory segments
-     */
-    private String generateDirectPop(String address) {
-        String addressLabel = buildAInstruction(address);
-        return addressLabel + "D=A\n" + POP_COPY_CODE;
+    private void generateBasicPush(String segmentCode, int index) {
+        out.address(index);
+        out.code(STORE_A_IN_D);
+        out.address(segmentCode);
+        out.code(LOAD_SEGMENT_ADDRESS);
+        out.code(PUSH_COPY_CODE);
     }
 
-    /** Returns a string with the hack machine code needed to affect a simple push onto the stack
-     *  using the data located at the given offset of the given memory segment.
-     *  *(*SP++) = *(*(segmentCode)+offset))
-     */
-    private String generatePush(Instruction i) {
-        String segment = i.arg1().text();
-        String offset = i.arg2().text();
-        String offsetLabel = buildAInstruction(offset);
-        if (segment.equals("constant")) {
-            return offsetLabel + "D=A\n" + STORE_D_IN_SP + INCREMENT_SP;
+    /** Generate the code for instruction I of CODE with the top of the stack kept in D, if it is a
+     *  command that can use D that way. Otherwise, the value in D is written to memory first, and false
+     *  is returned so that the instruction is translated as usual. */
+    private boolean generateCached(VMCode code, int i) {
+        int opcode = code.opcode(i);
+        if (opcode == VMCode.PUSH) {
+            push(code.segment(i), code.operand(i));
+            return true;
+        }
+        if (opcode == VMCode.POP) {
+            pop(code.segment(i), code.operand(i));
+            return true;
         }
-        return generatePush(segment, offset);
+        if (opcode == VMCode.IF_GOTO) {
+            loadTop();
+            topInD = false;
+            jumpAddress(code.name(i));
+            out.code(JUMP_IF_D_NOT_ZERO);
+            return true;
+        }
+        if (VMCode.isIfCompare(opcode)) {
+            loadTop();
+            topInD = false;
+            int constant = code.argument(i);
+            if (constant == VMCode.NONE) {
+                out.code(POP_TO_A);
+                out.code(COMPARE_CODE);
+            } else if (constant != 0) {
+                out.address(constant);
+                out.code(SUBTRACT_A);
+            }
+            jumpAddress(code.name(i));
+            out.code(IF_COMPARE_JUMPS[opcode - VMCode.IF_EQ]);
+            return true;
+        }
+        if (VMCode.isArithmetic(opcode)) {
+            return generateCachedArithmetic(opcode, code.operand(i));
+        }
+        spill();
+        return false;
     }
 
-    /** Dispatch method for handling push operations */
-    private String generatePush(String segment, String offset) {
-        if (segment.equals("temp")) {
-            int address = Integer.parseInt(offset) + 5;
-            return generateDirectPush(Integer.toString(address));
+    /** Generate the code for the arithmetic command OPCODE, with the constant operand CONSTANT if it is
+     *  not NONE, with the top of the stack kept in D. Returns false if it is better translated as
+     *  usual. */
+    private boolean generateCachedArithmetic(int opcode, int constant) {
+        if (constant != VMCode.NONE) {
+            // a constant operand is just as cheap to apply in memory when the value is there
+            if (! topInD) {
+                return false;
+            }
+            generateCachedImmediate(opcode, constant);
+            return true;
         }
-        if (segment.equals("pointer")) {
-            int address = Integer.parseInt(offset) + 3;
-            return generateDirectPush(Integer.toString(address));
+        boolean comparison = opcode == VMCode.EQ || opcode == VMCode.GT || opcode == VMCode.LT;
+        if (comparison && sharedRuntime) {
+            spill();
+            return false;
         }
-        if (segment.equals("static")) {
-            String staticLabel = buildStaticLabel(offset);
-            return generateDirectPush(staticLabel);
+        loadTop();
+        if (opcode == VMCode.NEG) {
+            out.code(NEG_D);
+            return true;
+        } else if (opcode == VMCode.NOT) {
+            out.code(NOT_D);
+            return true;
         }
-        String segmentCode = getSegmentCode(segment);
-        if (segmentCode == null) {
-            throw new RuntimeException("Invalid segment name in push operation: push " + segment + " " + offset);
+        out.code(POP_TO_A);
+        switch (opcode) {
+            case VMCode.ADD:
+                out.code(ADD_TO_D);
+                break;
+            case VMCode.SUB:
+                out.code(COMPARE_CODE);
+                break;
+            case VMCode.AND:
+                out.code(AND_TO_D);
+                break;
+            case VMCode.OR:
+                out.code(OR_TO_D);
+                break;
+            case VMCode.EQ:
+                out.code(COMPARE_CODE);
+                buildCachedEquals();
+                break;
+            case VMCode.GT:
+                out.code(COMPARE_CODE);
+                buildCachedConditional(JGT_CODE);
+                break;
+            default:
+                out.code(COMPARE_CODE);
+                buildCachedConditional(JLT_CODE);
+        }
+        return true;
+    }
+
+    private void generateCachedImmediate(int opcode, int value) {
+        if (value == 1 && (opcode == VMCode.ADD || opcode == VMCode.SUB)) {
+            out.code(opcode == VMCode.ADD ? INCREMENT_D : DECREMENT_D);
+            return;
+        }
+        out.address(value);
+        if (opcode == VMCode.ADD) {
+            out.code(ADD_A);
+        } else if (opcode == VMCode.SUB) {
+            out.code(SUBTRACT_A);
+        } else if (opcode == VMCode.AND) {
+            out.code(AND_A);
+        } else if (opcode == VMCode.OR) {
+            out.code(OR_A);
         } else {
-            return generateBasicPush(segmentCode, offset);
+            throw new RuntimeException("Invalid arithmetic command with a constant: "
+                    + VMCode.commandName(opcode) + " " + value);
         }
     }
 
-    private String generateBasicPush(String segmentCode, String offset) {
-        String offsetLabel = buildAInstruction(offset);
-        String segmentLabel = buildAInstruction(segmentCode);
-        return offsetLabel + "D=A\n" + segmentLabel + "D=M+D\nA=D\n" + PUSH_COPY_CODE;
+    /** Turn the difference in D into the result of eq: if it is 0, the jump skips D=1, and D-1 is -1.
+     *  Otherwise D-1 is 0. */
+    private void buildCachedEquals() {
+        int jumpLabel = getNextJumpNumber();
+        out.address(jumpPrefix, jumpLabel);
+        out.code(JEQ_CODE);
+        out.code(LOAD_ONE);
+        out.label(jumpPrefix, jumpLabel);
+        out.code(DECREMENT_D);
+    }
+
+    /** Turn the difference in D into the result of a comparison that holds if JUMPCODE jumps. */
+    private void buildCachedConditional(Snippet jumpCode) {
+        int jumpLabel1 = getNextJumpNumber();
+        int jumpLabel2 = getNextJumpNumber();
+        out.address(jumpPrefix, jumpLabel1);
+        out.code(jumpCode);
+        out.code(LOAD_ZERO);
+        unconditionalJump(jumpLabel2);
+        out.label(jumpPrefix, jumpLabel1);
+        out.code(LOAD_TRUE);
+        out.label(jumpPrefix, jumpLabel2);
+    }
+
+    /** Make sure the top of the stack is in D. It is no longer in memory, and SP no longer counts it. */
+    private void loadTop() {
+        if (! topInD) {
+            out.code(POP_TO_D);
+            topInD = true;
+        }
+    }
+
+    /** Write the value kept in D, if any, to the top of the stack in memory. */
+    private void spill() {
+        if (topInD) {
+            out.code(PUSH_D);
+            topInD = false;
+        }
     }
 
-    private String generateDirectPush(String address) {
-        String addressLabel = buildAInstruction(address);
-        return addressLabel + PUSH_COPY_CODE;
+    /** Finish the code of the file: the value kept in D, if any, is written to memory, since the code
+     *  of the next file expects the stack to be there. */
+    public void finish() {
+        spill();
     }
 
-    private String getNextJumpName() {
+    private int getNextJumpNumber() {
         numJumpNames += 1;
-        return "JUMP" + numJumpNames;
+        return numJumpNames;
     }
 
-    private String generateArithmetic(Instruction i) {
+    /** Generate the machine code for the arithmetic command OPCODE, with the constant operand CONSTANT
+     *  if it is not NONE. */
+    private void generateArithmetic(int opcode, int constant) {
+        if (constant != VMCode.NONE) {
+            generateImmediateArithmetic(opcode, constant);
+            return;
+        }
+        if (sharedRuntime) {
+            String routine = opcode == VMCode.EQ ? RUNTIME_EQ
+                    : opcode == VMCode.GT ? RUNTIME_GT
+                    : opcode == VMCode.LT ? RUNTIME_LT : null;
+            if (routine != null) {
+                callRuntime(routine);
+                return;
+            }
+        }
         // We will always start an arithmetic operation by decrementing the
         // stack pointer at least one time
-        String commandText = i.command().text();
-        String result = DECREMENT_SP;
-        if (commandText.equals("neg")) {
-            return result + NEG_CODE + INCREMENT_SP;
-        } else if (commandText.equals("not")) {
-            return result + NOT_CODE + INCREMENT_SP;
+        out.code(DECREMENT_SP);
+        if (opcode == VMCode.NEG) {
+            out.code(NEG_CODE);
+            out.code(INCREMENT_SP);
+            return;
+        } else if (opcode == VMCode.NOT) {
+            out.code(NOT_CODE);
+            out.code(INCREMENT_SP);
+            return;
         }
 
         // For all the binary arithmetic operations, we know we will have to
         // store the top item on the stack in the D register
-        result = result + "D=M\n" + DECREMENT_SP;
+        out.code(STORE_M_IN_D);
+        out.code(DECREMENT_SP);
 
-        if (commandText.equals("add")) {
-            return result + ADD_CODE + INCREMENT_SP;
-        } else if (commandText.equals("sub")) {
-            return result + SUB_CODE + INCREMENT_SP;
-        } else if (commandText.equals("eq")) {
-            return result + buildConditional("JEQ") + INCREMENT_SP;
-        } else if (commandText.equals("gt")) {
-            return result + buildConditional("JGT") + INCREMENT_SP;
-        } else if (commandText.equals("lt")) {
-            return result + buildConditional("JLT") + INCREMENT_SP;
-        } else if (commandText.equals("and")) {
-            return result + AND_CODE + INCREMENT_SP;
-        } else if (commandText.equals("or")) {
-            return result + OR_CODE + INCREMENT_SP;
+        switch (opcode) {
+            case VMCode.ADD:
+                out.code(ADD_CODE);
+                break;
+            case VMCode.SUB:
+                out.code(SUB_CODE);
+                break;
+            case VMCode.EQ:
+                buildConditional(JEQ_CODE);
+                break;
+            case VMCode.GT:
+                buildConditional(JGT_CODE);
+                break;
+            case VMCode.LT:
+                buildConditional(JLT_CODE);
+                break;
+            case VMCode.AND:
+                out.code(AND_CODE);
+                break;
+            default:
+                out.code(OR_CODE);
         }
-        return "";
-    }
-
-    private String buildConditional(String jumpCode) {
-        String jumpLabel1 = getNextJumpName();
-        String jumpLabel2 = getNextJumpName();
-        String result = "D=M-D\n" + buildAInstruction(jumpLabel1);
-        result = result + "D;" + jumpCode + "\n";
-        result = result + SET_FALSE;
-        result = result + unconditionalJump(jumpLabel2);
-        result = result + buildJumpLabel(jumpLabel1);
-        result = result + SET_TRUE;
-        result = result + unconditionalJump(jumpLabel2);
-        return result + buildJumpLabel(jumpLabel2);
+        out.code(INCREMENT_SP);
     }
 
-    private String unconditionalJump(String label) {
-        return buildAInstruction(label) + UNCONDITIONAL_JUMP_LABEL;
+    /** Generate the machine code for add, sub, and or or with the constant VALUE as its second operand,
+     *  which changes the value on the top of the stack in place. */
+    private void generateImmediateArithmetic(int opcode, int value) {
+        if (value == 1 && (opcode == VMCode.ADD || opcode == VMCode.SUB)) {
+            out.code(TOP_OF_STACK);
+            out.code(opcode == VMCode.ADD ? INCREMENT_M : DECREMENT_M);
+            return;
+        }
+        out.address(value);
+        out.code(STORE_A_IN_D);
+        out.code(TOP_OF_STACK);
+        if (opcode == VMCode.ADD) {
+            out.code(ADD_CODE);
+        } else if (opcode == VMCode.SUB) {
+            out.code(SUB_CODE);
+        } else if (opcode == VMCode.AND) {
+            out.code(AND_CODE);
+        } else if (opcode == VMCode.OR) {
+            out.code(OR_CODE);
+        } else {
+            throw new RuntimeException("Invalid arithmetic command with a constant: "
+                    + VMCode.commandName(opcode) + " " + value);
+        }
     }
 
-    private String buildFunctionLabel(String label) {
-        return currFunctionName + "$" + label;
+    private void buildConditional(Snippet jumpCode) {
+        int jumpLabel1 = getNextJumpNumber();
+        int jumpLabel2 = getNextJumpNumber();
+        out.code(COMPARE_CODE);
+        out.address(jumpPrefix, jumpLabel1);
+        out.code(jumpCode);
+        out.code(SET_FALSE);
+        unconditionalJump(jumpLabel2);
+        out.label(jumpPrefix, jumpLabel1);
+        out.code(SET_TRUE);
+        unconditionalJump(jumpLabel2);
+        out.label(jumpPrefix, jumpLabel2);
     }
 
-    private String buildJumpLabel(String label) {
-        return "(" + label + ")\n";
+    private void unconditionalJump(int jumpNumber) {
+        out.address(jumpPrefix, jumpNumber);
+        out.code(UNCONDITIONAL_JUMP);
     }
 
-    public String infiniteLoop() {
-        return buildJumpLabel(INFINITE_JUMP_LABEL) + unconditionalJump(INFINITE_JUMP_LABEL);
+    public void infiniteLoop() {
+        out.label(INFINITE_JUMP_LABEL);
+        out.address(INFINITE_JUMP_LABEL);
+        out.code(UNCONDITIONAL_JUMP);
     }
 
-    private String getNextReturnName() {
+    private int getNextReturnNumber() {
         numReturnNames += 1;
-        return FUNC_RETURN_LABEL + numReturnNames;
+        return numReturnNames;
     }
 
 }
-
@@ -1,118 +1,257 @@
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
 
 public class InstructionBuilder {
-    /** The names of all the arithmetic commands in the VM language */
-    private static String[] arithmeticCommands = {"add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not"};
-    /** The tokenizer will split tokens using only whitespace by default, other delimiters can be specified
-     *  by passing a string containing them into the tokenizer's constructor. For VM instructions, we only want
+    /** The file name that stands for the standard input, and the name its commands are given. */
+    public static final String STANDARD_INPUT = "-";
+    public static final String STANDARD_INPUT_NAME = "Stdin.vm";
+    /** The size of the chunks a stream is read in. A chunk grows if a single line does not fit. */
+    private static final int CHUNK_SIZE = 1 << 16;
+    /** The lexer will split tokens using only whitespace by default, other delimiters can be specified
+     *  by passing a string containing them into the lexer's constructor. For VM instructions, we only want
      *  to split on whitespace. */
     private static final String TOKENS = "";
-    /** The tokenizer that will be used to generate tokens from the input file
+    /** The lexer that will be used to read tokens from the input file
      *  one at a time. */
-    private Tokenizer t;
+    private Lexer t;
     private String fileName;
+    /** The stream the source is read from a chunk at a time, or null if the lexer has the whole source.
+     *  Each chunk ends at the end of a line, so no token is split between two chunks. */
+    private ReadableByteChannel input;
+    private byte[] chunk;
+    /** The number of bytes of the chunk the lexer was given, and the number after those that hold the
+     *  start of the next line. */
+    private int lexed;
+    private int carried;
+    /** The line number of the first line of the next chunk. */
+    private int nextLine;
 
     public InstructionBuilder(String fileName) {
-        t = new Tokenizer(fileName, TOKENS);
+        t = new Lexer(fileName, TOKENS);
         this.fileName = fileName;
+        input = null;
+    }
+
+    /** Build instructions from the source read from INPUT, which is not closed, as the file FILENAME.
+     *  Only a chunk of the source is held in memory at a time. */
+    public InstructionBuilder(String fileName, ReadableByteChannel input) {
+        t = new Lexer(fileName, ByteBuffer.allocate(0), 1, TOKENS);
+        this.fileName = fileName;
+        this.input = input;
+        chunk = new byte[CHUNK_SIZE];
+        lexed = 0;
+        carried = 0;
+        nextLine = 1;
+    }
+
+    /** Return an InstructionBuilder for the file named FILENAME, or for the standard input if it is
+     *  STANDARD_INPUT. */
+    public static InstructionBuilder open(String fileName) {
+        if (fileName.equals(STANDARD_INPUT)) {
+            return new InstructionBuilder(STANDARD_INPUT_NAME, new FileInputStream(FileDescriptor.in).getChannel());
+        }
+        return new InstructionBuilder(fileName);
     }
 
     public void switchFile(String fileName) {
-        t.destroy();
-        t = new Tokenizer(fileName, TOKENS);
+        t.close();
+        t = new Lexer(fileName, TOKENS);
         this.fileName = fileName;
+        input = null;
     }
 
     public String fileName() {
         return fileName;
     }
 
-    public static Instruction sysInitInstruction() {
-        return new Instruction(Instruction.CommandType.C_CALL,
-                new Token("call", null, 0),
-                new Token("Sys.init", null, 0),
-                new Token("0", null, 0));
-    }
-
-    public static Instruction zeroMemoryInstruction() {
-        Token push = new Token("push",null,0);
-        Token constant = new Token("constant","",0);
-        Token zero = new Token("0", "", 0);
-        return new Instruction(Instruction.CommandType.C_PUSH, push, constant, zero);
+    /** Parse the whole vm file named FILENAME. */
+    public static VMCode parse(String fileName) {
+        InstructionBuilder builder = new InstructionBuilder(fileName);
+        VMCode code = new VMCode(fileName);
+        try {
+            boolean more = true;
+            while (more) {
+                more = builder.buildNextInstruction(code);
+            }
+        } finally {
+            builder.close();
+        }
+        return code;
     }
 
-    public static Instruction gotoFunctionInstruction(String function) {
-        Token gotoToken = new Token("goto", null, 0);
-        Token nameToken = new Token(function, null, 0);
-        return new Instruction(Instruction.CommandType.C_GOTO, gotoToken, nameToken);
+    /** Parse the instructions up to the next function command into CODE: a whole function, or the code
+     *  before the first function of the file. Returns false if there are no instructions left. */
+    public boolean buildNextFunction(VMCode code) {
+        int start = code.size();
+        while (advance()) {
+            boolean functionStart = t.matches("function");
+            t.pushBack();
+            if (functionStart && code.size() > start) {
+                return true;
+            }
+            if (! buildNextInstruction(code)) {
+                // an unknown command ends the file
+                close();
+            }
+        }
+        return code.size() > start;
     }
 
-    /** Generate the next instruction. Gets the next token, inspects it to determine if
-     *  the token is the beginning of an Arithmetic Instruction, a pop instruction or a push instruction.
+    /** Parse the next instruction and add it to CODE, which must be for the file being parsed. Returns
+     *  false if there are no instructions left. The command is compared in place in the lexer's buffer,
+     *  numbers are read straight from it, and only the names of labels and functions become Strings.
      */
-    public Instruction buildNextInstruction() {
-        Token commandToken = t.nextToken();
-        if (commandToken == null) {
-            return null;
+    public boolean buildNextInstruction(VMCode code) {
+        if (! advance()) {
+            return false;
         }
+        int line = t.lineNumber();
         // All arithmetic commands have no arguments
-        if (isArithmeticCommand(commandToken.text())) {
-            return new Instruction(Instruction.CommandType.C_ARITHMETIC, commandToken);
-        }
-        // All pop commands specify a segment (arg1) and an offset (arg2)
-        if (commandToken.text().equals("pop")) {
-            Token arg1 = t.nextToken();
-            Token arg2 = t.nextToken();
-            return new Instruction(Instruction.CommandType.C_POP, commandToken, arg1, arg2);
+        for (int opcode = VMCode.ADD; opcode <= VMCode.NOT; opcode++) {
+            if (t.matches(VMCode.commandName(opcode))) {
+                code.add(opcode, VMCode.NONE, VMCode.NONE, VMCode.NONE, line);
+                return true;
+            }
         }
-        // All push commands specify a segment (arg1) and an offset (arg2)
-        if (commandToken.text().equals("push")) {
-            Token arg1 = t.nextToken();
-            Token arg2 = t.nextToken();
-            return new Instruction(Instruction.CommandType.C_PUSH, commandToken, arg1, arg2);
+        // All push and pop commands specify a segment (arg1) and an offset (arg2)
+        if (t.matches("push") || t.matches("pop")) {
+            int opcode = t.matches("push") ? VMCode.PUSH : VMCode.POP;
+            int segment = nextSegment(opcode);
+            code.add(opcode, segment, nextNumber(opcode), VMCode.NONE, line);
+            return true;
         }
         // All program flow commands specify a single label argument
-        if (commandToken.text().equals("label")) {
-            Token arg1 = t.nextToken();
-            return new Instruction(Instruction.CommandType.C_LABEL, commandToken, arg1);
+        if (t.matches("label")) {
+            code.add(VMCode.LABEL, VMCode.NONE, nextName(code, VMCode.LABEL), VMCode.NONE, line);
+            return true;
+        }
+        if (t.matches("goto")) {
+            code.add(VMCode.GOTO, VMCode.NONE, nextName(code, VMCode.GOTO), VMCode.NONE, line);
+            return true;
+        }
+        if (t.matches("if-goto")) {
+            code.add(VMCode.IF_GOTO, VMCode.NONE, nextName(code, VMCode.IF_GOTO), VMCode.NONE, line);
+            return true;
+        }
+        if (t.matches("function") || t.matches("call")) {
+            int opcode = t.matches("function") ? VMCode.FUNCTION : VMCode.CALL;
+            int name = nextName(code, opcode);
+            code.add(opcode, VMCode.NONE, name, nextNumber(opcode), line);
+            return true;
         }
-        if (commandToken.text().equals("goto")) {
-            Token arg1 = t.nextToken();
-            return new Instruction(Instruction.CommandType.C_GOTO, commandToken, arg1);
+        if (t.matches("return")) {
+            code.add(VMCode.RETURN, VMCode.NONE, VMCode.NONE, VMCode.NONE, line);
+            return true;
         }
-        if (commandToken.text().equals("if-goto")) {
-            Token arg1 = t.nextToken();
-            return new Instruction(Instruction.CommandType.C_IF, commandToken, arg1);
+        return false;
+    }
+
+    /** Move to the argument of the command OPCODE, which must be there. */
+    private void advanceToArgument(int opcode) {
+        if (! advance()) {
+            throw new RuntimeException("Missing argument: " + VMCode.commandName(opcode) + " ("
+                    + fileName + ": Line " + t.lineNumber() + ")");
         }
-        if (commandToken.text().equals("function")) {
-            Token arg1 = t.nextToken();
-            Token arg2 = t.nextToken();
-            return new Instruction(Instruction.CommandType.C_FUNCTION, commandToken, arg1, arg2);
+    }
+
+    /** Read the segment argument of the command OPCODE. */
+    private int nextSegment(int opcode) {
+        advanceToArgument(opcode);
+        for (int segment = 0; segment < VMCode.segmentCount(); segment++) {
+            if (t.matches(VMCode.segmentName(segment))) {
+                return segment;
+            }
         }
-        if (commandToken.text().equals("call")) {
-            Token arg1 = t.nextToken();
-            Token arg2 = t.nextToken();
-            return new Instruction(Instruction.CommandType.C_CALL, commandToken, arg1, arg2);
+        throw new RuntimeException("Invalid segment name: " + VMCode.commandName(opcode) + " " + t.text()
+                + " (" + fileName + ": Line " + t.lineNumber() + ")");
+    }
+
+    /** Read the number argument of the command OPCODE. */
+    private int nextNumber(int opcode) {
+        advanceToArgument(opcode);
+        int value = t.number();
+        if (value < 0) {
+            throw new RuntimeException("Invalid number in " + VMCode.commandName(opcode) + ": " + t.text()
+                    + " (" + fileName + ": Line " + t.lineNumber() + ")");
         }
-        if (commandToken.text().equals("return")) {
-            return new Instruction(Instruction.CommandType.C_RETURN, commandToken);
+        return value;
+    }
+
+    /** Read the label or function name argument of the command OPCODE, and return its index in the
+     *  names of CODE. */
+    private int nextName(VMCode code, int opcode) {
+        advanceToArgument(opcode);
+        return code.nameIndex(t.intern());
+    }
+
+    /** Move the lexer to the next token, reading the next chunk of a stream whenever the lexer runs out.
+     *  Returns false at the end of the source. */
+    private boolean advance() {
+        while (! t.advance()) {
+            if (input == null || ! readChunk()) {
+                return false;
+            }
         }
-        return null;
+        return true;
     }
 
-    /** Return true if c is one of the arithmetic commands in the vm language.
-     *  add, sub, neg, not, or, and, gt, lt, eq
-     */
-    private boolean isArithmeticCommand(String c) {
-        for (String s : arithmeticCommands) {
-            if (c.equals(s)) {
-                return true;
+    /** Read the next whole lines of the stream into the chunk, and start a new lexer over them. The bytes
+     *  after the last line break are kept for the next chunk, unless the stream has ended. Returns false
+     *  if there is nothing left to read. */
+    private boolean readChunk() {
+        System.arraycopy(chunk, lexed, chunk, 0, carried);
+        int filled = carried;
+        boolean ended = false;
+        int end = -1;
+        try {
+            while (end < 0 && ! ended) {
+                if (filled == chunk.length) {
+                    chunk = Arrays.copyOf(chunk, chunk.length * 2);
+                }
+                int from = filled;
+                while (filled < chunk.length && ! ended) {
+                    int n = input.read(ByteBuffer.wrap(chunk, filled, chunk.length - filled));
+                    if (n < 0) {
+                        ended = true;
+                    } else {
+                        filled += n;
+                    }
+                }
+                for (int i = filled - 1; i >= from && end < 0; i--) {
+                    if (chunk[i] == '\n') {
+                        end = i + 1;
+                    }
+                }
             }
+        } catch (IOException ex) {
+            throw new RuntimeException("Error reading file '" + fileName + "'");
         }
-        return false;
+        if (ended) {
+            end = filled;
+            input = null;
+        }
+        if (end == 0) {
+            return false;
+        }
+        t = new Lexer(fileName, ByteBuffer.wrap(chunk, 0, end), nextLine, TOKENS);
+        for (int i = 0; i < end; i++) {
+            if (chunk[i] == '\n') {
+                nextLine += 1;
+            }
+        }
+        lexed = end;
+        carried = filled - end;
+        return true;
     }
 
-    /** Close the InstructionBuilder, destroying the tokenizer and closing the file stream */
+    /** Close the InstructionBuilder, releasing the lexer's input buffer. A stream is left open, but
+     *  nothing more is read from it. */
     public void close() {
-        t.destroy();
+        t.close();
+        input = null;
     }
 }
@@ -0,0 +1,84 @@
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/** An OptionSet is one way the VMTranslator can translate a program: a set of code generation options,
+ *  and whether every pass of the VMOptimizer is run first. The options are named as on the
+ *  translator's command line, without the dashes: 'shared-runtime', 'stack-cache' and 'O'.
+ *
+ *  The VMTestRunner and the VMFuzzer run their programs under every combination of the options they
+ *  are given, so that each way of generating code is checked against the same expectations.
+ */
+public class OptionSet {
+    private static final String SHARED_RUNTIME = "shared-runtime";
+    private static final String STACK_CACHE = "stack-cache";
+    private static final String OPTIMIZE = "O";
+    /** The names that can be given, in the order they are printed in. */
+    private static final String[] NAMES = {SHARED_RUNTIME, STACK_CACHE, OPTIMIZE};
+
+    private Set<CodeGenerator.Option> options;
+    private boolean optimize;
+
+    /** The plain translation, without any options. */
+    public OptionSet() {
+        options = EnumSet.noneOf(CodeGenerator.Option.class);
+        optimize = false;
+    }
+
+    /** Return every combination of the options named in the comma separated list NAMES, starting with
+     *  the plain translation and ending with all of them. Throws an IllegalArgumentException if a name
+     *  is not an option. */
+    public static List<OptionSet> combinations(String names) {
+        List<String> given = new ArrayList<>();
+        for (String name : names.split(",")) {
+            name = name.trim();
+            if (! SHARED_RUNTIME.equals(name) && ! STACK_CACHE.equals(name) && ! OPTIMIZE.equals(name)) {
+                throw new IllegalArgumentException("Unknown option '" + name + "'");
+            }
+            if (! given.contains(name)) {
+                given.add(name);
+            }
+        }
+        List<OptionSet> sets = new ArrayList<>();
+        for (int mask = 0; mask < 1 << given.size(); mask++) {
+            OptionSet set = new OptionSet();
+            for (int i = 0; i < given.size(); i++) {
+                if ((mask & 1 << i) != 0) {
+                    set.add(given.get(i));
+                }
+            }
+            sets.add(set);
+        }
+        return sets;
+    }
+
+    private void add(String name) {
+        if (name.equals(SHARED_RUNTIME)) {
+            options.add(CodeGenerator.Option.SHARED_RUNTIME);
+        } else if (name.equals(STACK_CACHE)) {
+            options.add(CodeGenerator.Option.STACK_CACHE);
+        } else {
+            optimize = true;
+        }
+    }
+
+    /** Return a translator that translates the way this set describes, on one thread. */
+    public VMTranslator translator() {
+        return new VMTranslator(1, options, optimize ? VMOptimizer.allPasses() : null);
+    }
+
+    /** Return the names of the options, e.g. 'stack-cache,O', or 'plain' if there are none. */
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (String name : NAMES) {
+            boolean set = name.equals(SHARED_RUNTIME) ? options.contains(CodeGenerator.Option.SHARED_RUNTIME)
+                    : name.equals(STACK_CACHE) ? options.contains(CodeGenerator.Option.STACK_CACHE) : optimize;
+            if (set) {
+                s.append(s.length() == 0 ? "" : ",").append(name);
+            }
+        }
+        return s.length() == 0 ? "plain" : s.toString();
+    }
+}
@@ -0,0 +1,274 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** A Pipeline translates vm files into assembly code in three stages that run at the same time, each on
+ *  its own thread:
+ *
+ *      parse:     an InstructionBuilder for each file parses it into batches of whole functions.
+ *      generate:  a CodeGenerator for each file generates the code of each batch into an AsmWriter,
+ *                 optimizing each function first if there is an optimizer.
+ *      write:     the AsmWriter's buffer is handed over whenever it fills up, and written to the output.
+ *
+ *  The stages are connected by bounded queues, and the batches and buffers are handed back to the stage
+ *  that fills them once they have been used. However large the program, the pipeline holds at most
+ *  BATCHES batches (each as large as its largest function, or BATCH_SIZE commands) and BUFFERS buffers,
+ *  so it runs in constant memory. A stage only waits when the stage after it has fallen behind, so the
+ *  time taken approaches that of the slowest stage.
+ *
+ *  The files and the functions in them are handed on in order, so the code is the same as when the files
+ *  are translated one after another.
+ */
+public class Pipeline {
+    /** The number of commands after which a batch is handed on. */
+    private static final int BATCH_SIZE = 4096;
+    private static final int BATCHES = 4;
+    /** The number and size of the buffers handed to the write stage. */
+    private static final int BUFFERS = 4;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Some of the commands of a file. The last batch of every file has endOfFile set, and END follows
+     *  the last batch of the last file. */
+    private static class Batch {
+        private VMCode code;
+        private boolean endOfFile;
+
+        private Batch() {
+            code = new VMCode(null);
+            endOfFile = false;
+        }
+    }
+
+    private static final Batch END = new Batch();
+    /** Follows the last buffer of the output. */
+    private static final ByteBuffer END_OF_OUTPUT = ByteBuffer.allocate(0);
+
+    private Set<CodeGenerator.Option> options;
+    private VMOptimizer optimizer;
+    private Set<String> keep;
+
+    private BlockingQueue<Batch> parsed;
+    private BlockingQueue<Batch> freeBatches;
+    private BlockingQueue<ByteBuffer> filled;
+    private BlockingQueue<ByteBuffer> freeBuffers;
+    /** The errors that ended the parse stage and stopped the write stage, or null. */
+    private volatile Throwable parseFailure;
+    private volatile IOException writeFailure;
+
+    /** Create a pipeline that generates code the ways given by OPTIONS, rewrites each function with
+     *  OPTIMIZER first if it is not null, and if KEEP is not null, skips the functions not named in it. */
+    public Pipeline(Set<CodeGenerator.Option> options, VMOptimizer optimizer, Set<String> keep) {
+        this.options = options;
+        this.optimizer = optimizer;
+        this.keep = keep;
+    }
+
+    /** Translate the vm files named in FILES, in order, into the bootstrap code followed by the code of
+     *  each file, and write it to OUTPUT, which is closed afterwards. A Pipeline can only be used once. */
+    public void translate(List<String> files, WritableByteChannel output) throws IOException {
+        parsed = new ArrayBlockingQueue<>(BATCHES + 1);
+        freeBatches = new ArrayBlockingQueue<>(BATCHES);
+        for (int i = 0; i < BATCHES; i++) {
+            freeBatches.add(new Batch());
+        }
+        filled = new ArrayBlockingQueue<>(BUFFERS + 1);
+        freeBuffers = new ArrayBlockingQueue<>(BUFFERS);
+        for (int i = 0; i < BUFFERS; i++) {
+            freeBuffers.add(ByteBuffer.allocate(BUFFER_SIZE));
+        }
+        ExecutorService stages = Executors.newFixedThreadPool(2);
+        Future<?> writing = null;
+        try {
+            stages.submit(() -> parseStage(files));
+            writing = stages.submit(() -> writeStage(output));
+            AsmWriter writer = new AsmWriter(new Handoff());
+            CodeGenerator.bootstrap(writer, options).generateInit();
+            generateStage(writer);
+            writer.flush();
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Translation interrupted");
+        } finally {
+            finish(writing);
+            // the parse stage may be waiting for a batch if generation failed, and is stopped
+            stages.shutdownNow();
+            output.close();
+        }
+        if (writeFailure != null) {
+            throw writeFailure;
+        }
+    }
+
+    /** Parse each of FILES into batches, and queue them for the generate stage. */
+    private void parseStage(List<String> files) {
+        try {
+            try {
+                for (String file : files) {
+                    parse(file);
+                }
+            } catch (RuntimeException | Error ex) {
+                parseFailure = ex;
+            }
+            parsed.put(END);
+        } catch (InterruptedException ex) {
+            // the pipeline has been stopped
+        }
+    }
+
+    private void parse(String file) throws InterruptedException {
+        InstructionBuilder builder = InstructionBuilder.open(file);
+        try {
+            Batch batch = nextBatch(builder.fileName());
+            while (builder.buildNextFunction(batch.code)) {
+                if (batch.code.size() >= BATCH_SIZE) {
+                    parsed.put(batch);
+                    batch = nextBatch(builder.fileName());
+                }
+            }
+            batch.endOfFile = true;
+            parsed.put(batch);
+        } finally {
+            builder.close();
+        }
+    }
+
+    /** Return an empty batch for the file named FILENAME, waiting for the generate stage to free one. */
+    private Batch nextBatch(String fileName) throws InterruptedException {
+        Batch batch = freeBatches.take();
+        batch.code.reset(fileName);
+        batch.endOfFile = false;
+        return batch;
+    }
+
+    /** Generate the code of each batch in turn into WRITER, with a new CodeGenerator for each file. */
+    private void generateStage(AsmWriter writer) throws InterruptedException {
+        CodeGenerator codeGen = null;
+        for (Batch batch = parsed.take(); batch != END; batch = parsed.take()) {
+            if (codeGen == null) {
+                codeGen = new CodeGenerator(batch.code.fileName(), writer, options);
+            }
+            generate(batch.code, codeGen);
+            if (batch.endOfFile) {
+                codeGen.finish();
+                codeGen = null;
+            }
+            freeBatches.put(batch);
+        }
+        if (parseFailure instanceof RuntimeException) {
+            throw (RuntimeException) parseFailure;
+        } else if (parseFailure instanceof Error) {
+            throw (Error) parseFailure;
+        }
+    }
+
+    /** Generate the code of the functions in CODE with CODEGEN. Every batch starts with a function, or
+     *  with the code before the first function of its file. */
+    private void generate(VMCode code, CodeGenerator codeGen) {
+        int start = 0;
+        while (start < code.size()) {
+            int end = start + 1;
+            while (end < code.size() && code.opcode(end) != VMCode.FUNCTION) {
+                end += 1;
+            }
+            boolean kept = keep == null || code.opcode(start) != VMCode.FUNCTION
+                    || keep.contains(code.name(start));
+            if (kept && optimizer == null) {
+                codeGen.generate(code, start, end);
+            } else if (kept) {
+                VMCode function = code.emptyCopy();
+                for (int i = start; i < end; i++) {
+                    function.copy(code, i);
+                }
+                codeGen.generate(optimizer.optimize(function));
+            }
+            start = end;
+        }
+    }
+
+    /** Write each filled buffer to OUTPUT, and hand it back. After a failure to write, the buffers are
+     *  still handed back, so that the generate stage never waits for one, but nothing more is written. */
+    private void writeStage(WritableByteChannel output) {
+        try {
+            for (ByteBuffer buffer = filled.take(); buffer != END_OF_OUTPUT; buffer = filled.take()) {
+                try {
+                    while (writeFailure == null && buffer.hasRemaining()) {
+                        output.write(buffer);
+                    }
+                } catch (IOException ex) {
+                    writeFailure = ex;
+                }
+                freeBuffers.put(buffer);
+            }
+        } catch (InterruptedException ex) {
+            // the pipeline has been stopped
+        }
+    }
+
+    /** Mark the end of the output, and wait for the write stage, started as WRITING, to write it all. */
+    private void finish(Future<?> writing) throws IOException {
+        if (writing == null) {
+            return;
+        }
+        try {
+            filled.put(END_OF_OUTPUT);
+            writing.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Translation interrupted");
+        } catch (ExecutionException ex) {
+            throw new IOException(ex.getCause());
+        }
+    }
+
+    /** The channel the AsmWriter writes to. It copies what is written into free buffers, and queues
+     *  them for the write stage. */
+    private class Handoff implements WritableByteChannel {
+        private boolean open = true;
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            if (writeFailure != null) {
+                throw writeFailure;
+            }
+            int count = source.remaining();
+            try {
+                while (source.hasRemaining()) {
+                    ByteBuffer buffer = freeBuffers.take();
+                    buffer.clear();
+                    int length = Math.min(buffer.remaining(), source.remaining());
+                    ByteBuffer part = source.duplicate();
+                    part.limit(part.position() + length);
+                    buffer.put(part).flip();
+                    source.position(source.position() + length);
+                    filled.put(buffer);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Translation interrupted");
+            }
+            return count;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
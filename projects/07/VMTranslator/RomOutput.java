@@ -0,0 +1,91 @@
+/** A RomOutput turns the code generated by the CodeGenerator straight into machine code, by handing
+ *  encoded words, symbols and labels to a RomBuilder. No assembly code text is produced or parsed:
+ *  Snippets arrive already encoded, and only the symbols made of several pieces (such as
+ *  Main$RET3) are joined into Strings. Comments are ignored.
+ */
+public class RomOutput implements AsmOutput {
+    private RomBuilder rom;
+    /** Reused to join the pieces of symbols and labels. */
+    private StringBuilder name;
+
+    public RomOutput(RomBuilder rom) {
+        this.rom = rom;
+        name = new StringBuilder();
+    }
+
+    @Override
+    public void code(Snippet snippet) {
+        for (int i = 0; i < snippet.size(); i++) {
+            String symbol = snippet.symbol(i);
+            if (symbol == null) {
+                rom.addWord(snippet.word(i));
+            } else {
+                rom.addSymbol(symbol);
+            }
+        }
+    }
+
+    @Override
+    public void address(String address) {
+        if (address.isEmpty() || ! Character.isDigit(address.charAt(0))) {
+            rom.addSymbol(address);
+            return;
+        }
+        int value = RomBuilder.parseAddress(address);
+        if (value < 0) {
+            throw new RuntimeException("Invalid address: " + address);
+        }
+        address(value);
+    }
+
+    @Override
+    public void address(int value) {
+        if (value < 0 || value > RomBuilder.MAX_ADDRESS) {
+            throw new RuntimeException("Address out of range: " + value);
+        }
+        rom.addWord(value);
+    }
+
+    @Override
+    public void address(String prefix, int number) {
+        name.setLength(0);
+        rom.addSymbol(name.append(prefix).append(number).toString());
+    }
+
+    @Override
+    public void address(String scope, char separator, String name) {
+        this.name.setLength(0);
+        rom.addSymbol(this.name.append(scope).append(separator).append(name).toString());
+    }
+
+    @Override
+    public void label(String name) {
+        defineLabel(name);
+    }
+
+    @Override
+    public void label(String prefix, int number) {
+        name.setLength(0);
+        defineLabel(name.append(prefix).append(number).toString());
+    }
+
+    @Override
+    public void label(String scope, char separator, String name) {
+        this.name.setLength(0);
+        defineLabel(this.name.append(scope).append(separator).append(name).toString());
+    }
+
+    @Override
+    public void comment(String command, String arg1, int arg2, String fileName, int lineNumber) {
+    }
+
+    @Override
+    public void mark(String command, String fileName, int lineNumber, String function) {
+    }
+
+    private void defineLabel(String label) {
+        if (! rom.defineLabel(label)) {
+            throw new RuntimeException("Duplicate label: " + label);
+        }
+    }
+}
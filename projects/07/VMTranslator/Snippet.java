@@ -0,0 +1,86 @@
+/** A Snippet is a fixed piece of assembly code that the CodeGenerator emits as a whole, such as the
+ *  code that decrements the stack pointer.
+ *
+ *  A Snippet keeps both its text, for writing assembly code, and its machine code, for building a
+ *  ROM image directly. The text is encoded once, when the Snippet is created, so translating a VM
+ *  program to machine code never parses any assembly code. A instructions that load a symbol (such
+ *  as @SP) are kept as the symbol's name, to be resolved by a RomBuilder.
+ *
+ *  Snippets hold only A and C instructions, one per line, each line ending with a newline.
+ */
+public class Snippet {
+    private String text;
+    /** The encoded words. Words that load a symbol are 0, and the symbol is in symbols. */
+    private int[] words;
+    private String[] symbols;
+
+    public Snippet(String text) {
+        this.text = text;
+        int numLines = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                numLines += 1;
+            }
+        }
+        words = new int[numLines];
+        symbols = new String[numLines];
+        int start = 0;
+        for (int n = 0; n < numLines; n++) {
+            int end = text.indexOf('\n', start);
+            encode(n, text.substring(start, end));
+            start = end + 1;
+        }
+    }
+
+    public String text() {
+        return text;
+    }
+
+    /** The number of machine code words in the snippet. */
+    public int size() {
+        return words.length;
+    }
+
+    /** Return the encoded word at index I, or 0 if it loads a symbol. */
+    public int word(int i) {
+        return words[i];
+    }
+
+    /** Return the symbol loaded by the word at index I, or null if the word is already encoded. */
+    public String symbol(int i) {
+        return symbols[i];
+    }
+
+    private void encode(int n, String line) {
+        if (line.startsWith("@")) {
+            String address = line.substring(1);
+            int value = RomBuilder.parseAddress(address);
+            if (value > RomBuilder.MAX_ADDRESS) {
+                throw new RuntimeException("Address out of range in snippet: " + line);
+            }
+            if (value < 0) {
+                symbols[n] = address;
+            } else {
+                words[n] = value;
+            }
+            return;
+        }
+        String dest = "null";
+        String jump = "null";
+        int equals = line.indexOf('=');
+        if (equals >= 0) {
+            dest = line.substring(0, equals);
+            line = line.substring(equals + 1);
+        }
+        int semicolon = line.indexOf(';');
+        if (semicolon >= 0) {
+            jump = line.substring(semicolon + 1);
+            line = line.substring(0, semicolon);
+        }
+        int word = Encoder.cInstruction(dest, line, jump);
+        if (word == Encoder.INVALID) {
+            throw new RuntimeException("Invalid instruction in snippet: " + line);
+        }
+        words[n] = word;
+    }
+}
@@ -0,0 +1,80 @@
+/** A SourceMapOutput passes the code generated by the CodeGenerator on to another AsmOutput, and
+ *  records in a SourceMap the ROM address at which the code of each VM command starts. Addresses are
+ *  counted the way the WordCounter counts words: labels and comments take no space.
+ *
+ *  The code of all the files of a program must go through the same SourceMapOutput, in order, from
+ *  the bootstrap code on, so that the addresses are those of the assembled program.
+ */
+public class SourceMapOutput implements AsmOutput {
+    private AsmOutput out;
+    private SourceMap map;
+    /** The address of the next word of code. */
+    private int address;
+
+    public SourceMapOutput(AsmOutput out, SourceMap map) {
+        this.out = out;
+        this.map = map;
+        address = 0;
+    }
+
+    @Override
+    public void code(Snippet snippet) {
+        out.code(snippet);
+        address += snippet.size();
+    }
+
+    @Override
+    public void address(String address) {
+        out.address(address);
+        this.address += 1;
+    }
+
+    @Override
+    public void address(int value) {
+        out.address(value);
+        address += 1;
+    }
+
+    @Override
+    public void address(String prefix, int number) {
+        out.address(prefix, number);
+        address += 1;
+    }
+
+    @Override
+    public void address(String scope, char separator, String name) {
+        out.address(scope, separator, name);
+        address += 1;
+    }
+
+    @Override
+    public void label(String name) {
+        out.label(name);
+    }
+
+    @Override
+    public void label(String prefix, int number) {
+        out.label(prefix, number);
+    }
+
+    @Override
+    public void label(String scope, char separator, String name) {
+        out.label(scope, separator, name);
+    }
+
+    @Override
+    public void comment(String command, String arg1, int arg2, String fileName, int lineNumber) {
+        out.comment(command, arg1, arg2, fileName, lineNumber);
+    }
+
+    @Override
+    public void mark(String command, String fileName, int lineNumber, String function) {
+        out.mark(command, fileName, lineNumber, function);
+        map.add(address, fileName, lineNumber, command, function);
+    }
+
+    /** End the map at the end of the code generated so far. */
+    public void finish() {
+        map.end(address);
+    }
+}
@@ -0,0 +1,124 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** A TranslationCache keeps the assembly code translated from each vm file in a directory, so that a
+ *  file that has not changed since it was last translated does not have to be translated again.
+ *
+ *  The code of a file depends only on the file: its labels are scoped by the file's name, and its
+ *  jump and return labels are numbered from 1 in every file, so the code of each file can be
+ *  translated on its own and spliced into the output in any order. It is stored under a key made of
+ *  the SHA-256 hash of everything it depends on: the version of the generated code, the settings of
+ *  the translator, the name of the file (which its comments include) and its contents.
+ *
+ *  Entries are written to a temporary file and then moved into place, so that translators running at
+ *  the same time never see a partly written entry. Entries are never removed; the directory can be
+ *  deleted at any time.
+ */
+public class TranslationCache {
+    /** Change this whenever the code generated for any vm file changes, so that old entries are no
+     *  longer used. */
+    private static final String VERSION = "1";
+    private static final String EXTENSION = ".asm";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private Path directory;
+    private AtomicInteger hits;
+    private AtomicInteger misses;
+    private AtomicInteger failures;
+
+    /** Create a cache in the directory named DIRECTORY, which is created if it does not exist. */
+    public TranslationCache(String directory) throws IOException {
+        this.directory = Files.createDirectories(Paths.get(directory));
+        hits = new AtomicInteger();
+        misses = new AtomicInteger();
+        failures = new AtomicInteger();
+    }
+
+    /** Return the key of the code translated from the file named FILE, holding CONTENTS, by a
+     *  translator with SETTINGS. */
+    public String key(String settings, String file, byte[] contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+        for (String part : new String[] {VERSION, settings, file}) {
+            digest.update(part.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+        }
+        digest.update(contents);
+        byte[] hash = digest.digest();
+        char[] key = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            key[2 * i] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+            key[2 * i + 1] = HEX_DIGITS[hash[i] & 0xF];
+        }
+        return new String(key);
+    }
+
+    /** Return the code stored under KEY, or null if there is none. An entry that cannot be read is
+     *  treated as missing. */
+    public byte[] load(String key) {
+        Path entry = directory.resolve(key + EXTENSION);
+        if (Files.isRegularFile(entry)) {
+            try {
+                byte[] code = Files.readAllBytes(entry);
+                hits.incrementAndGet();
+                return code;
+            } catch (IOException ex) {
+                // translate the file again, and replace the entry
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /** Store CODE under KEY. The translation does not depend on the cache, so an entry that cannot be
+     *  written is only counted as a failure. */
+    public void store(String key, byte[] code) {
+        Path temporary = null;
+        try {
+            temporary = Files.createTempFile(directory, key, ".tmp");
+            Files.write(temporary, code);
+            Files.move(temporary, directory.resolve(key + EXTENSION), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            failures.incrementAndGet();
+        } finally {
+            deleteQuietly(temporary);
+        }
+    }
+
+    /** The number of files whose code was found in the cache, and the number that were translated. */
+    public int hits() {
+        return hits.get();
+    }
+
+    public int misses() {
+        return misses.get();
+    }
+
+    /** The number of entries that could not be stored. */
+    public int failures() {
+        return failures.get();
+    }
+
+    private static void deleteQuietly(Path file) {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ex) {
+            // an orphaned temporary file is never read
+        }
+    }
+}
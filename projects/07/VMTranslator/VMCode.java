@@ -0,0 +1,257 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A VMCode holds the commands of a vm file as rows of parallel int arrays, rather than as one object
+ *  per command holding its text. Each command is a row of:
+ *
+ *      opcode:   one of the opcode constants below.
+ *      segment:  the segment of a push, pop or move, NONE otherwise.
+ *      operand:  the index into the segment of a push, pop or move, the name of a label or function as
+ *                an index into the pool of names, or the constant operand of an arithmetic command
+ *                (NONE if it has none).
+ *      argument: the number of locals of a function, the number of arguments of a call, or the constant
+ *                a compare-and-jump compares to (NONE if it compares two values). NONE otherwise.
+ *      line:     the line of the command in the file, for comments and error messages.
+ *
+ *  A command takes 20 bytes, plus its share of the names, which are stored once for all the commands
+ *  that use them. Commands are dispatched on their opcode with an int switch, and segment indexes and
+ *  constants are parsed only once, when the file is read.
+ *
+ *  The VMOptimizer adds opcodes that never appear in VM code:
+ *    MOVE copies the value that a push would push straight to the destination of a pop, without using
+ *      the stack. The row of a MOVE holds the push, and is always directly followed by the row of the
+ *      pop.
+ *    IF_EQ, IF_NE, IF_GT, IF_LE, IF_LT and IF_GE (if-eq, if-ne, ...) pop two values, or one value if
+ *      the argument holds a constant to compare it to, and jump to the label if the comparison holds.
+ *  An arithmetic command may also have a constant operand, which takes the place of a push constant
+ *  before it (e.g. 'add 5').
+ */
+public class VMCode {
+    public static final int NONE = -1;
+
+    /** The opcodes. The arithmetic commands come first, from ADD to NOT. */
+    public static final int ADD = 0;
+    public static final int SUB = 1;
+    public static final int NEG = 2;
+    public static final int EQ = 3;
+    public static final int GT = 4;
+    public static final int LT = 5;
+    public static final int AND = 6;
+    public static final int OR = 7;
+    public static final int NOT = 8;
+    public static final int PUSH = 9;
+    public static final int POP = 10;
+    public static final int LABEL = 11;
+    public static final int GOTO = 12;
+    public static final int IF_GOTO = 13;
+    public static final int FUNCTION = 14;
+    public static final int CALL = 15;
+    public static final int RETURN = 16;
+    public static final int MOVE = 17;
+    public static final int IF_EQ = 18;
+    public static final int IF_NE = 19;
+    public static final int IF_GT = 20;
+    public static final int IF_LE = 21;
+    public static final int IF_LT = 22;
+    public static final int IF_GE = 23;
+    /** The name of each opcode in VM code. A MOVE is named after the push it holds. */
+    private static final String[] COMMAND_NAMES = {"add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not",
+            "push", "pop", "label", "goto", "if-goto", "function", "call", "return",
+            "push", "if-eq", "if-ne", "if-gt", "if-le", "if-lt", "if-ge"};
+
+    /** The segments. */
+    public static final int CONSTANT = 0;
+    public static final int LOCAL = 1;
+    public static final int ARGUMENT = 2;
+    public static final int THIS = 3;
+    public static final int THAT = 4;
+    public static final int TEMP = 5;
+    public static final int POINTER = 6;
+    public static final int STATIC = 7;
+    private static final String[] SEGMENT_NAMES = {"constant", "local", "argument", "this", "that", "temp",
+            "pointer", "static"};
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** The name of the file the commands were read from. */
+    private String fileName;
+    private int[] opcodes;
+    private int[] segments;
+    private int[] operands;
+    private int[] arguments;
+    private int[] lines;
+    private int size;
+    /** The names of labels and functions, and the index of each in the list. Shared by the copies
+     *  made by emptyCopy(), so that rows can be copied from one to the other. */
+    private List<String> names;
+    private Map<String, Integer> nameIndexes;
+
+    /** Create an empty VMCode for the commands of the file named FILENAME. */
+    public VMCode(String fileName) {
+        this(fileName, new ArrayList<>(), new HashMap<>());
+    }
+
+    private VMCode(String fileName, List<String> names, Map<String, Integer> nameIndexes) {
+        this.fileName = fileName;
+        this.names = names;
+        this.nameIndexes = nameIndexes;
+        opcodes = new int[INITIAL_CAPACITY];
+        segments = new int[INITIAL_CAPACITY];
+        operands = new int[INITIAL_CAPACITY];
+        arguments = new int[INITIAL_CAPACITY];
+        lines = new int[INITIAL_CAPACITY];
+        size = 0;
+    }
+
+    /** Return an empty VMCode for the same file, which shares the names of this one. */
+    public VMCode emptyCopy() {
+        return new VMCode(fileName, names, nameIndexes);
+    }
+
+    public String fileName() {
+        return fileName;
+    }
+
+    /** The number of rows. */
+    public int size() {
+        return size;
+    }
+
+    public int opcode(int i) {
+        return opcodes[i];
+    }
+
+    public int segment(int i) {
+        return segments[i];
+    }
+
+    public int operand(int i) {
+        return operands[i];
+    }
+
+    public int argument(int i) {
+        return arguments[i];
+    }
+
+    public int line(int i) {
+        return lines[i];
+    }
+
+    /** Return the label or function named by row I. */
+    public String name(int i) {
+        return names.get(operands[i]);
+    }
+
+    /** Return the index of NAME in the pool of names, adding it if it is not there yet. */
+    public int nameIndex(String name) {
+        Integer index = nameIndexes.get(name);
+        if (index == null) {
+            index = names.size();
+            names.add(name);
+            nameIndexes.put(name, index);
+        }
+        return index;
+    }
+
+    /** Add a row. */
+    public void add(int opcode, int segment, int operand, int argument, int line) {
+        if (size == opcodes.length) {
+            grow();
+        }
+        opcodes[size] = opcode;
+        segments[size] = segment;
+        operands[size] = operand;
+        arguments[size] = argument;
+        lines[size] = line;
+        size += 1;
+    }
+
+    /** Add a copy of row I of FROM, which must share the names of this VMCode. */
+    public void copy(VMCode from, int i) {
+        add(from.opcodes[i], from.segments[i], from.operands[i], from.arguments[i], from.lines[i]);
+    }
+
+    /** Remove every row and name, and make this VMCode hold the commands of the file named FILENAME, so
+     *  that its arrays can be reused. The copies made by emptyCopy() must no longer be in use. */
+    public void reset(String fileName) {
+        this.fileName = fileName;
+        names.clear();
+        nameIndexes.clear();
+        size = 0;
+    }
+
+    /** Remove every row from index SIZE on. */
+    public void truncate(int size) {
+        this.size = size;
+    }
+
+    /** Return the first argument of row I as it is written in VM code, or null if it has none. */
+    public String arg1(int i) {
+        int opcode = opcodes[i];
+        if (opcode == PUSH || opcode == POP || opcode == MOVE) {
+            return SEGMENT_NAMES[segments[i]];
+        } else if (opcode >= LABEL && opcode <= CALL || opcode >= IF_EQ) {
+            return names.get(operands[i]);
+        } else if (isArithmetic(opcode) && operands[i] != NONE) {
+            return Integer.toString(operands[i]);
+        }
+        return null;
+    }
+
+    /** Return the second argument of row I, or NONE if it has none. */
+    public int arg2(int i) {
+        int opcode = opcodes[i];
+        if (opcode == PUSH || opcode == POP || opcode == MOVE) {
+            return operands[i];
+        } else if (opcode == FUNCTION || opcode == CALL || opcode >= IF_EQ) {
+            return arguments[i];
+        }
+        return NONE;
+    }
+
+    /** Return the command of row I with where it came from, e.g. 'push local 2 (Main.vm: Line 7)'. */
+    public String details(int i) {
+        StringBuilder s = new StringBuilder(COMMAND_NAMES[opcodes[i]]);
+        String arg1 = arg1(i);
+        if (arg1 != null) {
+            s.append(' ').append(arg1);
+        }
+        if (arg2(i) != NONE) {
+            s.append(' ').append(arg2(i));
+        }
+        return s.append(" (").append(fileName).append(": Line ").append(lines[i]).append(')').toString();
+    }
+
+    public static String commandName(int opcode) {
+        return COMMAND_NAMES[opcode];
+    }
+
+    public static String segmentName(int segment) {
+        return SEGMENT_NAMES[segment];
+    }
+
+    /** The number of segments, which are numbered from 0. */
+    public static int segmentCount() {
+        return SEGMENT_NAMES.length;
+    }
+
+    public static boolean isArithmetic(int opcode) {
+        return opcode >= ADD && opcode <= NOT;
+    }
+
+    public static boolean isIfCompare(int opcode) {
+        return opcode >= IF_EQ && opcode <= IF_GE;
+    }
+
+    private void grow() {
+        int capacity = opcodes.length * 2;
+        opcodes = Arrays.copyOf(opcodes, capacity);
+        segments = Arrays.copyOf(segments, capacity);
+        operands = Arrays.copyOf(operands, capacity);
+        arguments = Arrays.copyOf(arguments, capacity);
+        lines = Arrays.copyOf(lines, capacity);
+    }
+}
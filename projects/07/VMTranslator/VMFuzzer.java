@@ -0,0 +1,297 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** The VMFuzzer checks the ways the VMTranslator can generate code against each other. It writes random
+ *  VM programs, translates each one under every combination of the options given (see OptionSet), runs
+ *  every translation on a HackCpu until it halts, and compares the memory it leaves behind with that
+ *  of the plain translation. It is compiled with the translator, whose source path holds the emulator
+ *  for it:
+ *
+ *      javac -sourcepath ../../shared:../../05/HackEmulator *.java
+ *      java VMFuzzer [--seed=N] [--programs=N] [--options=shared-runtime,stack-cache,O]
+ *
+ *  By default 100 programs are made, from seed 1, and every option is used. Program i is made from
+ *  seed + i, so a failing program can be made again on its own with --seed and --programs=1.
+ *
+ *  Each program is a Sys.vm whose Sys.init, and the functions it calls, push, pop and compute on every
+ *  segment, and branch forward with goto and if-goto. Jumps only go forward and functions only call
+ *  functions defined before them, so every program halts. At the end Sys.init copies its statics and
+ *  locals to the that segment, and the registers up to R12, the this segment and the that segment are
+ *  compared. The directory of a program that fails is kept, and its path is printed.
+ */
+public class VMFuzzer {
+    private static final String SEED_OPTION = "--seed=";
+    private static final String PROGRAMS_OPTION = "--programs=";
+    private static final String OPTIONS_OPTION = "--options=";
+    private static final String ALL_OPTIONS = "shared-runtime,stack-cache,O";
+    private static final String PROGRAM_FILE = "Sys.vm";
+    /** The most instructions a translation may run before it must have halted. */
+    private static final long INSTRUCTION_LIMIT = 10_000_000;
+    /** The base addresses of the this and that segments, and the words of each that are compared. */
+    private static final int THIS_BASE = 3000;
+    private static final int THAT_BASE = 4000;
+    private static final int SEGMENT_WORDS = 32;
+    /** The registers compared: SP, LCL, ARG, THIS, THAT and temp. R13 to R15 are the translator's own. */
+    private static final int REGISTERS = 13;
+    /** The number of functions besides Sys.init, and the most arguments and locals each has. */
+    private static final int HELPERS = 3;
+    private static final int MAX_ARGUMENTS = 3;
+    private static final int MAX_LOCALS = 4;
+    private static final int STATICS = 4;
+    /** The words of the this, that and temp segments that the programs use. */
+    private static final int SEGMENT_INDEXES = 8;
+
+    private static void usageError(String message) {
+        System.out.println("Error: " + message);
+        System.out.println("Usage: VMFuzzer [--seed=N] [--programs=N] [--options=shared-runtime,stack-cache,O]");
+        System.exit(-4);
+    }
+
+    /** Parse the number in an option of the form NAME=N, which must be at least MIN. */
+    private static long parseNumber(String arg, String name, long min) {
+        long value;
+        try {
+            value = Long.parseLong(arg.substring(name.length()));
+        } catch (NumberFormatException ex) {
+            value = min - 1;
+        }
+        if (value < min) {
+            usageError("Invalid number in '" + arg + "'");
+        }
+        return value;
+    }
+
+    public static void main(String[] args) {
+        long seed = 1;
+        long programs = 100;
+        List<OptionSet> optionSets = OptionSet.combinations(ALL_OPTIONS);
+        for (String arg : args) {
+            if (arg.startsWith(SEED_OPTION)) {
+                seed = parseNumber(arg, SEED_OPTION, Long.MIN_VALUE + 1);
+            } else if (arg.startsWith(PROGRAMS_OPTION)) {
+                programs = parseNumber(arg, PROGRAMS_OPTION, 1);
+            } else if (arg.startsWith(OPTIONS_OPTION)) {
+                try {
+                    optionSets = OptionSet.combinations(arg.substring(OPTIONS_OPTION.length()));
+                } catch (IllegalArgumentException ex) {
+                    usageError(ex.getMessage() + " in '" + arg + "'");
+                }
+            } else {
+                usageError("Unknown argument '" + arg + "'");
+            }
+        }
+
+        long start = System.nanoTime();
+        int failures = 0;
+        for (long i = 0; i < programs; i++) {
+            String failure;
+            Path directory = null;
+            try {
+                directory = Files.createTempDirectory("VMFuzzer");
+                Path program = directory.resolve(PROGRAM_FILE);
+                Files.write(program, program(new Random(seed + i)).getBytes(StandardCharsets.UTF_8));
+                failure = check(program.toString(), optionSets);
+            } catch (IOException ex) {
+                failure = "Unable to write the program: " + ex.getMessage();
+            }
+            if (failure == null) {
+                deleteProgram(directory);
+            } else {
+                System.out.println("FAIL seed " + (seed + i) + ": " + failure
+                        + (directory == null ? "" : " (program kept in " + directory + ")"));
+                failures += 1;
+            }
+        }
+        System.out.printf("Passed %d of %d programs under %d sets of options in %.1f ms%n", programs - failures,
+                programs, optionSets.size(), (System.nanoTime() - start) / 1e6);
+        if (failures > 0) {
+            System.exit(-7);
+        }
+    }
+
+    private static void deleteProgram(Path directory) {
+        File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        directory.toFile().delete();
+    }
+
+    /** Translate the vm file named PROGRAM under every set of options in OPTIONSETS and run each
+     *  translation. Returns a description of the first translation whose memory differs from that of
+     *  the first set, or null if none do. */
+    private static String check(String program, List<OptionSet> optionSets) {
+        int[] expected = null;
+        for (OptionSet optionSet : optionSets) {
+            int[] memory;
+            try {
+                HackCpu cpu = new HackCpu(optionSet.translator().translateToImage(List.of(program)));
+                if (! cpu.run(INSTRUCTION_LIMIT)) {
+                    return "[" + optionSet + "] did not halt";
+                }
+                memory = memory(cpu);
+            } catch (RuntimeException ex) {
+                return "[" + optionSet + "] " + ex.getMessage();
+            }
+            if (expected == null) {
+                expected = memory;
+                continue;
+            }
+            for (int i = 0; i < memory.length; i++) {
+                if (memory[i] != expected[i]) {
+                    return "[" + optionSet + "] RAM[" + address(i) + "] is " + memory[i] + ", expected "
+                            + expected[i] + " as with [" + optionSets.get(0) + "]";
+                }
+            }
+        }
+        return null;
+    }
+
+    /** Return the words of CPU's RAM that are compared: the registers, then the this and that segments. */
+    private static int[] memory(HackCpu cpu) {
+        int[] memory = new int[REGISTERS + 2 * SEGMENT_WORDS];
+        for (int i = 0; i < memory.length; i++) {
+            memory[i] = cpu.peek(address(i));
+        }
+        return memory;
+    }
+
+    /** Return the address of word I of the memory compared. */
+    private static int address(int i) {
+        if (i < REGISTERS) {
+            return i;
+        }
+        i -= REGISTERS;
+        return i < SEGMENT_WORDS ? THIS_BASE + i : THAT_BASE + i - SEGMENT_WORDS;
+    }
+
+    /** Return the text of a random program, made with RANDOM. */
+    private static String program(Random random) {
+        StringBuilder out = new StringBuilder();
+        int[] arguments = new int[HELPERS];
+        for (int k = 0; k < HELPERS; k++) {
+            arguments[k] = 1 + random.nextInt(MAX_ARGUMENTS);
+            int locals = random.nextInt(MAX_LOCALS + 1);
+            out.append("function Sys.f").append(k).append(' ').append(locals).append('\n');
+            body(random, out, arguments[k], locals, arguments, k);
+            out.append("push ").append(randomSource(random, arguments[k], locals)).append('\n');
+            out.append("return\n");
+        }
+        out.append("function Sys.init ").append(MAX_LOCALS).append('\n');
+        out.append("push constant ").append(THIS_BASE).append("\npop pointer 0\n");
+        out.append("push constant ").append(THAT_BASE).append("\npop pointer 1\n");
+        body(random, out, 0, MAX_LOCALS, arguments, HELPERS);
+        // the statics and locals are kept where they are compared
+        for (int i = 0; i < STATICS; i++) {
+            out.append("push static ").append(i).append("\npop that ").append(SEGMENT_INDEXES + i).append('\n');
+        }
+        for (int i = 0; i < MAX_LOCALS; i++) {
+            out.append("push local ").append(i).append("\npop that ").append(SEGMENT_INDEXES + STATICS + i)
+                    .append('\n');
+        }
+        out.append("label END\ngoto END\n");
+        return out.toString();
+    }
+
+    /** Append the random body of a function with ARGUMENTS arguments and LOCALS locals to OUT. It may
+     *  call the first CALLABLE functions Sys.f0, Sys.f1, ..., which take the numbers of arguments in
+     *  HELPERARGUMENTS. The stack is empty at every label, and when the body ends. */
+    private static void body(Random random, StringBuilder out, int arguments, int locals, int[] helperArguments,
+                             int callable) {
+        int depth = 0;
+        List<String> pending = new ArrayList<>();
+        int labels = 0;
+        int length = 10 + random.nextInt(80);
+        for (int n = 0; n < length; n++) {
+            double c = random.nextDouble();
+            if (depth == 0 && ! pending.isEmpty() && random.nextDouble() < 0.3) {
+                out.append("label ").append(pending.remove(random.nextInt(pending.size()))).append('\n');
+            } else if (depth == 0 && random.nextDouble() < 0.05) {
+                labels += 1;
+                pending.add("L" + labels);
+                out.append("goto L").append(labels).append('\n');
+            } else if (c < 0.3 || depth == 0) {
+                out.append("push ").append(randomSource(random, arguments, locals)).append('\n');
+                depth += 1;
+            } else if (c < 0.42) {
+                out.append("pop ").append(randomDestination(random, arguments, locals)).append('\n');
+                depth -= 1;
+            } else if (c < 0.7 && depth >= 2) {
+                String[] binary = {"add", "sub", "and", "or", "eq", "gt", "lt"};
+                out.append(binary[random.nextInt(binary.length)]).append('\n');
+                depth -= 1;
+            } else if (c < 0.78) {
+                out.append(random.nextBoolean() ? "neg\n" : "not\n");
+            } else if (c < 0.86 && callable > 0) {
+                int k = random.nextInt(callable);
+                for (; depth < helperArguments[k]; depth++) {
+                    out.append("push ").append(randomSource(random, arguments, locals)).append('\n');
+                }
+                out.append("call Sys.f").append(k).append(' ').append(helperArguments[k]).append('\n');
+                depth -= helperArguments[k] - 1;
+            } else if (depth == 1) {
+                labels += 1;
+                pending.add("L" + labels);
+                out.append("if-goto L").append(labels).append('\n');
+                depth = 0;
+            } else {
+                out.append("pop ").append(randomDestination(random, arguments, locals)).append('\n');
+                depth -= 1;
+            }
+        }
+        for (; depth > 0; depth--) {
+            out.append("pop temp ").append(random.nextInt(SEGMENT_INDEXES)).append('\n');
+        }
+        for (String label : pending) {
+            out.append("label ").append(label).append('\n');
+        }
+    }
+
+    /** Return a random segment and index to push from, or a constant. */
+    private static String randomSource(Random random, int arguments, int locals) {
+        int choice = random.nextInt(10);
+        if (choice < 4) {
+            int[] constants = {0, 1, 2, random.nextInt(20), random.nextInt(32768), 32767};
+            return "constant " + constants[random.nextInt(constants.length)];
+        }
+        if (choice == 4) {
+            return "pointer " + random.nextInt(2);
+        }
+        return randomDestination(random, arguments, locals);
+    }
+
+    /** Return a random segment and index to pop to. The pointer segment is left out, so the this and
+     *  that segments stay where they are compared. */
+    private static String randomDestination(Random random, int arguments, int locals) {
+        while (true) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    if (arguments > 0) {
+                        return "argument " + random.nextInt(arguments);
+                    }
+                    break;
+                case 1:
+                    if (locals > 0) {
+                        return "local " + random.nextInt(locals);
+                    }
+                    break;
+                case 2:
+                    return "this " + random.nextInt(SEGMENT_INDEXES);
+                case 3:
+                    return "that " + random.nextInt(SEGMENT_INDEXES);
+                case 4:
+                    return "temp " + random.nextInt(SEGMENT_INDEXES);
+                default:
+                    return "static " + random.nextInt(STATICS);
+            }
+        }
+    }
+}
@@ -0,0 +1,275 @@
+import java.util.EnumSet;
+import java.util.Set;
+
+/** A VMOptimizer rewrites the instructions of a VM function before code is generated for them, so
+ *  that common patterns cost fewer Hack instructions. It works on one function at a time, and each
+ *  of its passes can be switched on or off:
+ *
+ *      - fold: arithmetic on constants is done at translation time, e.g. 'push constant 2,
+ *        push constant 3, add' becomes 'push constant 5'. Results are computed the way the generated
+ *        code computes them, as 16 bit values, with comparisons done by subtraction. Negative
+ *        results become 'push constant ~N, not'.
+ *      - immediate: 'push constant C' directly followed by add, sub, and or becomes a single
+ *        arithmetic instruction with C as its operand, which works on the top of the stack in place.
+ *        Adding or subtracting 0, and or-ing with 0, is removed.
+ *      - branch: a comparison (eq, gt, lt), optionally followed by not, and then by if-goto becomes a
+ *        single compare-and-jump (if-eq, if-ne, ...), which jumps on the difference of the two values
+ *        without building a boolean. If the second value is a constant, it is compared against
+ *        directly.
+ *      - move: a push directly followed by a pop becomes a move, which copies the value from one
+ *        place to the other without touching the stack. A push and pop of the same place is removed.
+ *
+ *  Rewrites only apply to instructions that are directly next to each other, so they never span a
+ *  label, and code that jumps into the middle of a pattern still sees the unoptimized behaviour
+ *  at the label. The passes are applied in turn until none of them changes the function, since one
+ *  rewrite often makes another possible.
+ *
+ *  A VMOptimizer holds no state besides its passes, so one can be shared by several threads.
+ */
+public class VMOptimizer {
+    /** The passes, named on the command line in lower case. */
+    public enum Pass {
+        FOLD, IMMEDIATE, BRANCH, MOVE
+    }
+
+    private static final int MAX_CONSTANT = 32767;
+    /** The compare-and-jumps that replace eq, gt and lt followed by if-goto, and by not and if-goto. */
+    private static final int[] BRANCHES = {VMCode.IF_EQ, VMCode.IF_GT, VMCode.IF_LT};
+    private static final int[] INVERTED_BRANCHES = {VMCode.IF_NE, VMCode.IF_LE, VMCode.IF_GE};
+
+    private Set<Pass> passes;
+
+    public VMOptimizer(Set<Pass> passes) {
+        this.passes = EnumSet.copyOf(passes);
+    }
+
+    /** Return the passes this optimizer applies. */
+    public Set<Pass> passes() {
+        return EnumSet.copyOf(passes);
+    }
+
+    /** Return an optimizer that applies every pass. */
+    public static VMOptimizer allPasses() {
+        return new VMOptimizer(EnumSet.allOf(Pass.class));
+    }
+
+    /** Return the passes named in the comma separated list NAMES, e.g. 'fold,move'. Throws an
+     *  IllegalArgumentException if a name is not a pass. */
+    public static Set<Pass> parsePasses(String names) {
+        Set<Pass> passes = EnumSet.noneOf(Pass.class);
+        for (String name : names.split(",")) {
+            passes.add(Pass.valueOf(name.trim().toUpperCase()));
+        }
+        return passes;
+    }
+
+    /** Return an optimized copy of FUNCTION, the instructions of a function from its function command
+     *  up to the next one (or of the code before the first function of a file), which is left
+     *  unchanged. Each pass copies the rows from one VMCode into another, and the two are swapped when
+     *  the pass changes anything. */
+    public VMCode optimize(VMCode function) {
+        VMCode current = function;
+        VMCode next = function.emptyCopy();
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Pass pass : passes) {
+                next.truncate(0);
+                if (apply(pass, current, next)) {
+                    changed = true;
+                    VMCode previous = current;
+                    current = next;
+                    next = previous == function ? function.emptyCopy() : previous;
+                }
+            }
+        }
+        return current;
+    }
+
+    /** Copy IN to OUT, applying PASS. Returns true if anything changed. */
+    private boolean apply(Pass pass, VMCode in, VMCode out) {
+        switch (pass) {
+            case FOLD:      return fold(in, out);
+            case IMMEDIATE: return useImmediates(in, out);
+            case BRANCH:    return fuseBranches(in, out);
+            default:        return fuseMoves(in, out);
+        }
+    }
+
+    /** Copy IN to OUT, folding arithmetic on constants. Returns true if anything changed. */
+    private boolean fold(VMCode in, VMCode out) {
+        boolean changed = false;
+        for (int i = 0; i < in.size(); i++) {
+            int opcode = in.opcode(i);
+            if (isBinaryOperation(in, i)) {
+                int lengthB = constantLength(out, out.size());
+                int lengthA = lengthB == 0 ? 0 : constantLength(out, out.size() - lengthB);
+                if (lengthA > 0) {
+                    int b = constantValue(out, out.size(), lengthB);
+                    int a = constantValue(out, out.size() - lengthB, lengthA);
+                    out.truncate(out.size() - lengthA - lengthB);
+                    addConstant(out, compute(opcode, a, b), in.line(i));
+                    changed = true;
+                    continue;
+                }
+            } else if (isUnaryOperation(in, i)) {
+                int length = constantLength(out, out.size());
+                if (length > 0) {
+                    int value = constantValue(out, out.size(), length);
+                    out.truncate(out.size() - length);
+                    int folded = opcode == VMCode.NEG ? (short) -value : (short) ~value;
+                    changed = addConstant(out, folded, in.line(i)) != length + 1 || changed;
+                    continue;
+                }
+            }
+            out.copy(in, i);
+        }
+        return changed;
+    }
+
+    /** Copy IN to OUT, giving add, sub, and and or a constant operand where they can have one.
+     *  Returns true if anything changed. */
+    private boolean useImmediates(VMCode in, VMCode out) {
+        boolean changed = false;
+        for (int i = 0; i < in.size(); i++) {
+            int opcode = in.opcode(i);
+            boolean takesImmediate = isArithmetic(in, i) && (opcode == VMCode.ADD || opcode == VMCode.SUB
+                    || opcode == VMCode.AND || opcode == VMCode.OR);
+            if (takesImmediate && constantLength(out, out.size()) == 1) {
+                int constant = out.operand(out.size() - 1);
+                out.truncate(out.size() - 1);
+                changed = true;
+                if (constant == 0 && opcode != VMCode.AND) {
+                    continue;
+                }
+                out.add(opcode, VMCode.NONE, constant, VMCode.NONE, in.line(i));
+                continue;
+            }
+            out.copy(in, i);
+        }
+        return changed;
+    }
+
+    /** Copy IN to OUT, fusing comparisons with the if-goto that follows them. Returns true if anything
+     *  changed. */
+    private boolean fuseBranches(VMCode in, VMCode out) {
+        boolean changed = false;
+        for (int i = 0; i < in.size(); i++) {
+            if (in.opcode(i) == VMCode.IF_GOTO) {
+                int end = out.size();
+                boolean inverted = end > 0 && isArithmetic(out, end - 1) && out.opcode(end - 1) == VMCode.NOT;
+                if (inverted) {
+                    end -= 1;
+                }
+                int comparison = end > 0 && isArithmetic(out, end - 1) ? out.opcode(end - 1) : VMCode.NONE;
+                if (comparison == VMCode.EQ || comparison == VMCode.GT || comparison == VMCode.LT) {
+                    int constant = VMCode.NONE;
+                    int start = end - 1;
+                    if (constantLength(out, start) == 1) {
+                        constant = out.operand(start - 1);
+                        start -= 1;
+                    }
+                    out.truncate(start);
+                    int n = comparison - VMCode.EQ;
+                    int branch = inverted ? INVERTED_BRANCHES[n] : BRANCHES[n];
+                    out.add(branch, VMCode.NONE, in.operand(i), constant, in.line(i));
+                    changed = true;
+                    continue;
+                }
+            }
+            out.copy(in, i);
+        }
+        return changed;
+    }
+
+    /** Copy IN to OUT, fusing every push directly followed by a pop into a move. Returns true if
+     *  anything changed. */
+    private boolean fuseMoves(VMCode in, VMCode out) {
+        boolean changed = false;
+        for (int i = 0; i < in.size(); i++) {
+            int last = out.size() - 1;
+            if (in.opcode(i) == VMCode.POP && last >= 0 && out.opcode(last) == VMCode.PUSH) {
+                changed = true;
+                int segment = out.segment(last);
+                int index = out.operand(last);
+                int line = out.line(last);
+                out.truncate(last);
+                if (segment != in.segment(i) || index != in.operand(i)) {
+                    // the move holds the push, and is followed by the pop
+                    out.add(VMCode.MOVE, segment, index, VMCode.NONE, line);
+                    out.copy(in, i);
+                }
+                continue;
+            }
+            out.copy(in, i);
+        }
+        return changed;
+    }
+
+    /** Compute the arithmetic command OPCODE on A and B as the generated code would. */
+    private static int compute(int opcode, int a, int b) {
+        int difference = (short) (a - b);
+        switch (opcode) {
+            case VMCode.ADD: return (short) (a + b);
+            case VMCode.SUB: return difference;
+            case VMCode.AND: return (short) (a & b);
+            case VMCode.OR:  return (short) (a | b);
+            case VMCode.EQ:  return difference == 0 ? -1 : 0;
+            case VMCode.GT:  return difference > 0 ? -1 : 0;
+            default:         return difference < 0 ? -1 : 0;
+        }
+    }
+
+    /** Add the instructions pushing VALUE to OUT, from line LINE. Returns the number of instructions
+     *  added. */
+    private static int addConstant(VMCode out, int value, int line) {
+        boolean negative = value < 0;
+        out.add(VMCode.PUSH, VMCode.CONSTANT, negative ? ~value : value, VMCode.NONE, line);
+        if (! negative) {
+            return 1;
+        }
+        out.add(VMCode.NOT, VMCode.NONE, VMCode.NONE, VMCode.NONE, line);
+        return 2;
+    }
+
+    /** Return the number of instructions (1 or 2) of the constant that ends just before index END of
+     *  CODE: a push constant, optionally followed by neg or not. Returns 0 if there is none. */
+    private static int constantLength(VMCode code, int end) {
+        if (isConstant(code, end - 1)) {
+            return 1;
+        }
+        if (end >= 2 && isUnaryOperation(code, end - 1) && isConstant(code, end - 2)) {
+            return 2;
+        }
+        return 0;
+    }
+
+    /** Return the value of the constant of LENGTH instructions ending just before index END. */
+    private static int constantValue(VMCode code, int end, int length) {
+        int value = code.operand(end - length);
+        if (length == 2) {
+            value = code.opcode(end - 1) == VMCode.NEG ? (short) -value : (short) ~value;
+        }
+        return value;
+    }
+
+    /** Return true if the instruction at INDEX of CODE pushes a valid constant. */
+    private static boolean isConstant(VMCode code, int index) {
+        return index >= 0 && index < code.size() && code.opcode(index) == VMCode.PUSH
+                && code.segment(index) == VMCode.CONSTANT && code.operand(index) <= MAX_CONSTANT;
+    }
+
+    /** Return true if instruction I of CODE is an arithmetic instruction without a constant operand. */
+    private static boolean isArithmetic(VMCode code, int i) {
+        return VMCode.isArithmetic(code.opcode(i)) && code.operand(i) == VMCode.NONE;
+    }
+
+    private static boolean isUnaryOperation(VMCode code, int i) {
+        int opcode = code.opcode(i);
+        return isArithmetic(code, i) && (opcode == VMCode.NEG || opcode == VMCode.NOT);
+    }
+
+    private static boolean isBinaryOperation(VMCode code, int i) {
+        return isArithmetic(code, i) && ! isUnaryOperation(code, i);
+    }
+}
@@ -1,19 +1,77 @@
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class VMTranslator {
 
     private static final String VM_FILE_EXTENSION = ".vm";
+    private static final String EMIT_OPTION = "--emit=";
+    private static final String HEADER_OPTION = "--header";
+    private static final String JOBS_OPTION = "--jobs";
+    private static final String SHARED_RUNTIME_OPTION = "--shared-runtime";
+    private static final String STACK_CACHE_OPTION = "--stack-cache";
+    private static final String OPTIMIZE_OPTION = "-O";
+    private static final String PASSES_OPTION = "--passes=";
+    private static final String PRUNE_OPTION = "--prune";
+    private static final String CACHE_OPTION = "--cache=";
+    private static final String PIPELINE_OPTION = "--pipeline";
+    private static final String MAP_OPTION = "--map=";
+    /** The output file name that stands for the standard output. */
+    private static final String STANDARD_OUTPUT = "-";
+    /** The function the bootstrap code calls, from which the functions kept by --prune are reached. */
+    private static final String ENTRY_FUNCTION = "Sys.init";
+    /** The output formats, which are also the extensions of the default output file names. */
+    private static final String EMIT_ASM = "asm";
+    private static final String EMIT_HACK = "hack";
+    private static final String EMIT_BINARY = "bin";
+
+    private int jobs;
+    private Set<CodeGenerator.Option> options;
+    /** Rewrites each function before its code is generated, or null. */
+    private VMOptimizer optimizer;
+    /** The functions to translate, or null to translate them all. */
+    private Set<String> functions;
+    /** Where the code of each file is kept between runs, or null. */
+    private TranslationCache cache;
+    /** Whether assembly code is translated by a Pipeline. */
+    private boolean pipelined;
+    /** Where the ROM address of the code of each command is recorded, or null. */
+    private SourceMap map;
 
     private static ArrayList<String> buildFileList(File file) {
         ArrayList<String> files = new ArrayList<>();
-        if (file.isFile()) {
+        if (file.getPath().equals(InstructionBuilder.STANDARD_INPUT)) {
+            files.add(InstructionBuilder.STANDARD_INPUT);
+        } else if (file.isFile()) {
             files.add(file.getAbsolutePath());
         } else if (file.isDirectory()) {
-            for (String name : file.list()) {
+            // Sort the names so that the files, and so the output, come in the same order on every system
+            String[] names = file.list();
+            Arrays.sort(names);
+            for (String name : names) {
                 if (name.substring(name.length() - VM_FILE_EXTENSION.length()).equals(VM_FILE_EXTENSION)) {
                     files.add(file.getAbsolutePath() + "/" + name);
                 }
@@ -22,75 +80,435 @@ public class VMTranslator {
         return files;
     }
 
-    private static String getOutputFilename(File file) {
-        if (file.isFile()) {
+    /** Return the name of the output file for INPUTFILE when none is given, ending with EXTENSION. */
+    private static String getOutputFilename(File file, String extension) {
+        if (file.getPath().equals(InstructionBuilder.STANDARD_INPUT)) {
+            return STANDARD_OUTPUT;
+        } else if (file.isFile()) {
             String name = file.getAbsolutePath();
-            return name.substring(0, name.length() - VM_FILE_EXTENSION.length()) + ".asm";
+            return name.substring(0, name.length() - VM_FILE_EXTENSION.length()) + extension;
         } else {
             String name = file.getName();
-            return file.getAbsolutePath() + "/" + name + ".asm";
+            return file.getAbsolutePath() + "/" + name + extension;
+        }
+    }
+
+    private static void usageError(String message) {
+        System.out.println("Error: " + message);
+        System.out.println("Usage: VMTranslator [--emit=asm|hack|bin] [--header] [--jobs=N] [--shared-runtime] [--stack-cache]\n" +
+                "                    [-O | --passes=fold,immediate,branch,move] [--prune] [--cache=DIR] [--pipeline]\n" +
+                "                    [--map=FILE] (file.vm | directory | -) [output | -]");
+        System.exit(-4);
+    }
+
+    /** Parse an option of the form --jobs=N. */
+    private static int parseJobs(String arg) {
+        int jobs;
+        try {
+            jobs = Integer.parseInt(arg.substring(JOBS_OPTION.length() + 1));
+        } catch (NumberFormatException ex) {
+            jobs = 0;
+        }
+        if (jobs < 1) {
+            usageError("Invalid thread count in '" + arg + "'");
         }
+        return jobs;
     }
 
     public static void main(String[] args) {
+        /* Separate the options from the input and output arguments. */
+        String emit = EMIT_ASM;
+        boolean header = false;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        Set<CodeGenerator.Option> options = EnumSet.noneOf(CodeGenerator.Option.class);
+        VMOptimizer optimizer = null;
+        boolean prune = false;
+        String cacheDirectory = null;
+        boolean pipelined = false;
+        String mapFile = null;
+        List<String> names = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith(EMIT_OPTION)) {
+                emit = arg.substring(EMIT_OPTION.length());
+                if (! emit.equals(EMIT_ASM) && ! emit.equals(EMIT_HACK) && ! emit.equals(EMIT_BINARY)) {
+                    usageError("Unknown output format '" + emit + "'");
+                }
+            } else if (arg.equals(HEADER_OPTION)) {
+                header = true;
+            } else if (arg.startsWith(JOBS_OPTION + "=")) {
+                jobs = parseJobs(arg);
+            } else if (arg.equals(SHARED_RUNTIME_OPTION)) {
+                options.add(CodeGenerator.Option.SHARED_RUNTIME);
+            } else if (arg.equals(STACK_CACHE_OPTION)) {
+                options.add(CodeGenerator.Option.STACK_CACHE);
+            } else if (arg.equals(OPTIMIZE_OPTION)) {
+                optimizer = VMOptimizer.allPasses();
+            } else if (arg.startsWith(PASSES_OPTION)) {
+                try {
+                    optimizer = new VMOptimizer(VMOptimizer.parsePasses(arg.substring(PASSES_OPTION.length())));
+                } catch (IllegalArgumentException ex) {
+                    usageError("Unknown pass in '" + arg + "'");
+                }
+            } else if (arg.equals(PRUNE_OPTION)) {
+                prune = true;
+            } else if (arg.startsWith(CACHE_OPTION)) {
+                cacheDirectory = arg.substring(CACHE_OPTION.length());
+            } else if (arg.equals(PIPELINE_OPTION)) {
+                pipelined = true;
+            } else if (arg.startsWith(MAP_OPTION)) {
+                mapFile = arg.substring(MAP_OPTION.length());
+            } else if (arg.startsWith("--")) {
+                usageError("Unknown option '" + arg + "'");
+            } else {
+                names.add(arg);
+            }
+        }
+        if (header && ! emit.equals(EMIT_BINARY)) {
+            usageError("--header can only be used with --emit=bin");
+        }
+        if (cacheDirectory != null && ! emit.equals(EMIT_ASM)) {
+            usageError("--cache can only be used with --emit=asm");
+        }
+        if (pipelined && ! emit.equals(EMIT_ASM)) {
+            usageError("--pipeline can only be used with --emit=asm");
+        }
+        if (pipelined && cacheDirectory != null) {
+            usageError("--cache cannot be used with --pipeline");
+        }
+        /* The map needs the code of every file to go through one output, in order. */
+        if (mapFile != null && (pipelined || cacheDirectory != null)) {
+            usageError("--map cannot be used with --pipeline or --cache");
+        }
         /* Check inputs and determine what the output file should be named. */
-        if (args.length < 1) {
+        if (names.size() < 1) {
             System.out.println("Error: Input file argument required");
             System.out.println();
             System.exit(-4);
         }
-        String fileName = args[0];
+        String fileName = names.get(0);
         File inputFile = new File(fileName);
         String output;
         ArrayList<String> files = buildFileList(inputFile);
-        if (args.length > 1) {
-            output = args[1]; 
+        if (names.size() > 1) {
+            output = names.get(1);
         } else {
-            output = getOutputFilename(inputFile);
+            output = getOutputFilename(inputFile, "." + emit);
+        }
+        /* The standard input can only be read once, so it cannot be searched for calls or hashed first. */
+        if (fileName.equals(InstructionBuilder.STANDARD_INPUT) && (prune || cacheDirectory != null)) {
+            usageError("--prune and --cache cannot be used with the standard input");
         }
-        System.out.println("Saving translation to: " + output);
-        /* Create an instruction builder to parse the code and generate a list of
-           VM instructions
+        if (output.equals(STANDARD_OUTPUT) && ! emit.equals(EMIT_ASM)) {
+            usageError("Only assembly code can be written to the standard output");
+        }
+        /* Messages go to the standard error when the code goes to the standard output. */
+        PrintStream messages = output.equals(STANDARD_OUTPUT) ? System.err : System.out;
+        if (! output.equals(STANDARD_OUTPUT)) {
+            messages.println("Saving translation to: " + output);
+        }
+        /* Attempt to translate and write to the output file. If writing fails, print an error message and
+         * exit with -6, as for the other files written. Machine code is built in memory without any assembly code text,
+         * so errors that the assembler would report, such as duplicate labels, end the translation.
          */
-        InstructionBuilder builder = new InstructionBuilder(files.get(0));
-        ArrayList<Instruction> instructions = new ArrayList<>();
-        for (String currFile : files) {
-            if (! currFile.equals(builder.fileName())) {
-                builder.switchFile(currFile);
+        VMTranslator translator = new VMTranslator(jobs, options, optimizer);
+        TranslationCache cache = null;
+        if (cacheDirectory != null) {
+            try {
+                cache = new TranslationCache(cacheDirectory);
+            } catch (IOException ex) {
+                messages.println("Failed to create cache directory '" + cacheDirectory + "'");
+                System.exit(-6);
             }
-            Instruction instr;
-            do {
-                instr = builder.buildNextInstruction();
-                if (instr != null) {
-                    instructions.add(instr);
+            translator.useCache(cache);
+        }
+        if (pipelined) {
+            translator.usePipeline();
+        }
+        SourceMap map = null;
+        if (mapFile != null) {
+            map = new SourceMap();
+            translator.mapTo(map);
+        }
+        try {
+            if (prune) {
+                prune(translator, files, messages);
+            }
+            if (emit.equals(EMIT_ASM)) {
+                translator.translateToFile(files, output);
+                if (cache != null) {
+                    reportCache(cache, files.size(), messages);
                 }
+            } else {
+                RomImage.Format format = emit.equals(EMIT_BINARY) ? RomImage.Format.BINARY : RomImage.Format.TEXT;
+                translator.translateToImage(files).write(output, format, header);
             }
-            while (instr != null);
-        }
-        builder.close();
-        /* Feed all the instructions into a CodeGenerator and append the output for each instruction
-           to a StringBuilder
-         */
-        StringBuilder outputBuilder = new StringBuilder();
-        CodeGenerator codeGen = new CodeGenerator(fileName);
-        outputBuilder.append(codeGen.generateInit());
-        for (Instruction i : instructions) {
-            if (i == null) {
-                break;
+            if (map != null) {
+                writeMap(map, mapFile, messages);
             }
-            String generated = codeGen.generateCode(i);
-            outputBuilder.append(generated);
+        } catch (RuntimeException ex) {
+            messages.println(ex.getMessage());
+            System.exit(-7);
+        } catch (IOException ex) {
+            messages.println("Failed to write to '" + output + "'");
+            System.exit(-6);
+        }
+    }
+
+
+    /** Make TRANSLATOR translate only the functions of FILES that can be reached from Sys.init or from code
+     *  outside any function, and print the functions that are left out and the number of words of ROM
+     *  that saves. Without Sys.init, there is no bootstrap code to call into the program, so nothing is
+     *  left out. Messages are printed to MESSAGES. */
+    private static void prune(VMTranslator translator, List<String> files, PrintStream messages) {
+        CallGraph graph = CallGraph.build(files);
+        if (! graph.defines(ENTRY_FUNCTION)) {
+            messages.println("Warning: " + ENTRY_FUNCTION + " is not defined, so no functions were removed");
+            return;
+        }
+        Set<String> reachable = graph.reachableFrom(ENTRY_FUNCTION);
+        Set<String> unreachable = new LinkedHashSet<>(graph.functions());
+        unreachable.removeAll(reachable);
+        Map<String, Integer> words = translator.measure(files, unreachable);
+        int saved = 0;
+        for (int count : words.values()) {
+            saved += count;
         }
+        messages.println("Removed " + unreachable.size() + " of " + graph.functions().size()
+                + " functions, saving " + saved + " words:");
+        for (String name : unreachable) {
+            messages.println("    " + name + " (" + words.getOrDefault(name, 0) + " words)");
+        }
+        translator.keepOnly(reachable);
+    }
 
-        /* Attempt to write to the output file. If this fails, just print an error message and allow the
-         *  program to end.
+    private static void writeMap(SourceMap map, String mapFile, PrintStream messages) {
+        messages.println("Saving source map to: " + mapFile);
+        try {
+            map.write(mapFile);
+        } catch (IOException ex) {
+            messages.println("Failed to write to '" + mapFile + "'");
+            System.exit(-6);
+        }
+    }
+
+    private static void reportCache(TranslationCache cache, int files, PrintStream messages) {
+        messages.println("Reused " + cache.hits() + " of " + files + " files from the cache");
+        if (cache.failures() > 0) {
+            messages.println("Warning: " + cache.failures() + " files could not be stored in the cache");
+        }
+    }
+
+    /** Translate the vm files named in FILES, in order, into a single assembly file named OUTPUT. */
+    public static void translate(List<String> files, String output) throws IOException {
+        new VMTranslator(1, EnumSet.noneOf(CodeGenerator.Option.class), null).translateToFile(files, output);
+    }
+
+    /** Translate the vm files named in FILES, in order, straight into machine code. The generated code
+     *  goes to a RomBuilder, the assembler's engine, as encoded words and symbols, so no assembly code
+     *  text is written or parsed. */
+    public static RomImage translateToRom(List<String> files) {
+        return new VMTranslator(1, EnumSet.noneOf(CodeGenerator.Option.class), null).translateToImage(files);
+    }
+
+    /** Create a translator that uses up to JOBS threads, generates code the ways given by OPTIONS, and
+     *  if OPTIMIZER is not null, rewrites each function with it before its code is generated. */
+    public VMTranslator(int jobs, Set<CodeGenerator.Option> options, VMOptimizer optimizer) {
+        this.jobs = jobs;
+        this.options = EnumSet.noneOf(CodeGenerator.Option.class);
+        this.options.addAll(options);
+        this.optimizer = optimizer;
+        functions = null;
+    }
+
+    /** Translate only the functions named in FUNCTIONS, and the code outside any function. */
+    public void keepOnly(Set<String> functions) {
+        this.functions = functions;
+    }
+
+    /** Keep the code of each file in CACHE, and reuse the code kept there for files that have not
+     *  changed. The cache is only used for assembly code output. */
+    public void useCache(TranslationCache cache) {
+        this.cache = cache;
+    }
+
+    /** Translate with a Pipeline, whose parse, generate and write stages run at the same time in constant
+     *  memory. Only used for assembly code output, without a cache. */
+    public void usePipeline() {
+        pipelined = true;
+    }
+
+    /** Record in MAP the ROM address at which the code of each command starts (see SourceMap). The files
+     *  are then translated one after the other on one thread, and neither the cache nor a Pipeline can
+     *  be used. */
+    public void mapTo(SourceMap map) {
+        this.map = map;
+    }
+
+    /** Translate the vm files named in FILES into a single assembly file named OUTPUT, or to the standard
+     *  output if OUTPUT is STANDARD_OUTPUT. The output is the
+     *  same for any number of threads: the bootstrap code, followed by the code of each file in the
+     *  order of FILES. */
+    public void translateToFile(List<String> files, String output) throws IOException {
+        /* Every file gets its own CodeGenerator, whose labels are scoped by the file's name. With one
+           thread, the files are parsed one instruction at a time and each instruction is fed straight
+           into its CodeGenerator, which writes its code into the buffer of an AsmWriter. The buffer is
+           written to the output file whenever it fills up. With more threads, each file is translated
+           into memory on a worker, and the results are written out in order as they are needed.
          */
+        WritableByteChannel channel;
+        if (output.equals(STANDARD_OUTPUT)) {
+            channel = new FileOutputStream(FileDescriptor.out).getChannel();
+        } else {
+            channel = FileChannel.open(Paths.get(output), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+        }
+        if (pipelined && map == null) {
+            new Pipeline(options, optimizer, functions).translate(files, channel);
+            return;
+        }
+        AsmWriter writer = new AsmWriter(channel);
+        SourceMapOutput mapper = map == null ? null : new SourceMapOutput(writer, map);
+        AsmOutput out = mapper == null ? writer : mapper;
         try {
-            BufferedWriter writer = new BufferedWriter(new FileWriter(output));
-            writer.write(outputBuilder.toString());
+            CodeGenerator.bootstrap(out, options).generateInit();
+            if (mapper != null || (cache == null && (jobs <= 1 || files.size() <= 1))) {
+                for (String file : files) {
+                    generate(file, out, functions);
+                }
+            } else {
+                writer.flush();
+                writeInOrder(files, Math.max(1, Math.min(jobs, files.size())), Channels.newOutputStream(channel));
+            }
+        } catch (UncheckedIOException ex) {
+            throw ex.getCause();
+        } finally {
             writer.close();
-        } catch (Exception ex) {
-            System.out.println("Failed to write to '" + output + "'");
         }
+        if (mapper != null) {
+            mapper.finish();
+        }
+    }
+
+    /** Translate each of FILES into memory on a pool of THREADS threads, and write the code of each file
+     *  to OUT in the order of FILES. An error in any file ends the translation. */
+    private void writeInOrder(List<String> files, int threads, OutputStream out) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            String settings = cache == null ? null : settings();
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (String file : files) {
+                results.add(executor.submit(() -> cache == null ? translateToMemory(file) : reuseOrTranslate(file, settings)));
+            }
+            for (Future<byte[]> result : results) {
+                out.write(result.get());
+            }
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Translation interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Translate the vm file named FILE into assembly code text held in memory. */
+    private byte[] translateToMemory(String file) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AsmWriter writer = new AsmWriter(Channels.newChannel(bytes));
+        generate(file, writer, functions);
+        writer.flush();
+        return bytes.toByteArray();
+    }
+
+    /** Return the code of the vm file named FILE from the cache, translating the file and storing its
+     *  code if it is not there. SETTINGS describes everything besides the file that the code depends
+     *  on. */
+    private byte[] reuseOrTranslate(String file, String settings) throws IOException {
+        String key = cache.key(settings, file, Files.readAllBytes(Paths.get(file)));
+        byte[] code = cache.load(key);
+        if (code == null) {
+            code = translateToMemory(file);
+            cache.store(key, code);
+        }
+        return code;
+    }
+
+    /** Describe the settings that the code of a file depends on: the options, the optimizer's passes and
+     *  the functions that are kept. */
+    private String settings() {
+        StringBuilder s = new StringBuilder();
+        s.append("options=").append(options);
+        s.append(" passes=").append(optimizer == null ? "none" : optimizer.passes());
+        if (functions != null) {
+            List<String> kept = new ArrayList<>(functions);
+            Collections.sort(kept);
+            s.append(" functions=").append(kept);
+        }
+        return s.toString();
+    }
+
+    /** Translate the vm files named in FILES straight into machine code. */
+    public RomImage translateToImage(List<String> files) {
+        return translateToImage(files, true);
+    }
+
+    /** Translate the vm files named in FILES straight into machine code, starting with the bootstrap
+     *  code if BOOTSTRAP is true. Without it, the program starts with the code of the first file, as
+     *  the test scripts of project 07 expect, and with the SHARED_RUNTIME option the shared runtime
+     *  follows the code of the last file. */
+    public RomImage translateToImage(List<String> files, boolean bootstrap) {
+        RomBuilder rom = new RomBuilder(new SymbolTable());
+        SourceMapOutput mapper = map == null ? null : new SourceMapOutput(new RomOutput(rom), map);
+        AsmOutput out = mapper == null ? new RomOutput(rom) : mapper;
+        if (bootstrap) {
+            CodeGenerator.bootstrap(out, options).generateInit();
+        }
+        for (String file : files) {
+            generate(file, out, functions);
+        }
+        if (! bootstrap) {
+            CodeGenerator.bootstrap(out, options).generateEnd();
+        }
+        rom.finish();
+        if (mapper != null) {
+            mapper.finish();
+        }
+        return rom.image();
+    }
+
+    /** Return the number of words of machine code that each of the functions named in NAMES, defined in
+     *  the vm files named in FILES, takes up when translated by this translator. */
+    public Map<String, Integer> measure(List<String> files, Set<String> names) {
+        WordCounter counter = new WordCounter();
+        for (String file : files) {
+            generate(file, counter, names);
+        }
+        return counter.words();
+    }
+
+    /** Parse FILE one function at a time, feeding the instructions of each function to a CodeGenerator
+     *  writing to OUT, optimized first if there is an optimizer. If KEEP is not null, functions not named
+     *  in it are skipped. Only one function is held in memory at a time. */
+    private void generate(String file, AsmOutput out, Set<String> keep) {
+        InstructionBuilder builder = InstructionBuilder.open(file);
+        CodeGenerator codeGen = new CodeGenerator(builder.fileName(), out, options);
+        VMCode function = new VMCode(builder.fileName());
+        while (builder.buildNextFunction(function)) {
+            boolean skipped = keep != null && function.opcode(0) == VMCode.FUNCTION
+                    && ! keep.contains(function.name(0));
+            if (! skipped) {
+                codeGen.generate(optimizer == null ? function : optimizer.optimize(function));
+            }
+            function.truncate(0);
+        }
+        codeGen.finish();
+        builder.close();
     }
 }
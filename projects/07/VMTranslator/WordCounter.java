@@ -0,0 +1,84 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** A WordCounter counts the words of machine code that the CodeGenerator's output would take up in
+ *  ROM, without producing any code. Labels take no space.
+ *
+ *  Words are counted for the function whose label was defined last. The CodeGenerator defines each
+ *  function's label with label(String), and its other labels with the other label methods, so the
+ *  words of each function are counted under its name. Words before the first function are not
+ *  counted.
+ */
+public class WordCounter implements AsmOutput {
+    /** The number of words of each function, in the order the functions were generated. */
+    private Map<String, Integer> words;
+    private String function;
+    private int count;
+
+    public WordCounter() {
+        words = new LinkedHashMap<>();
+        function = null;
+        count = 0;
+    }
+
+    @Override
+    public void code(Snippet snippet) {
+        count += snippet.size();
+    }
+
+    @Override
+    public void address(String address) {
+        count += 1;
+    }
+
+    @Override
+    public void address(int value) {
+        count += 1;
+    }
+
+    @Override
+    public void address(String prefix, int number) {
+        count += 1;
+    }
+
+    @Override
+    public void address(String scope, char separator, String name) {
+        count += 1;
+    }
+
+    @Override
+    public void label(String name) {
+        record();
+        function = name;
+    }
+
+    @Override
+    public void label(String prefix, int number) {
+    }
+
+    @Override
+    public void label(String scope, char separator, String name) {
+    }
+
+    @Override
+    public void comment(String command, String arg1, int arg2, String fileName, int lineNumber) {
+    }
+
+    @Override
+    public void mark(String command, String fileName, int lineNumber, String function) {
+    }
+
+    /** Return the number of words of each function counted so far. */
+    public Map<String, Integer> words() {
+        record();
+        function = null;
+        return words;
+    }
+
+    private void record() {
+        if (function != null) {
+            words.merge(function, count, Integer::sum);
+        }
+        count = 0;
+    }
+}
@@ -0,0 +1,387 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/** A TestScript is a test script for the CPU emulator (a .tst file), which sets some of RAM, runs the
+ *  program for a number of cycles, and outputs the values of RAM and the registers in the layout of
+ *  its compare file (.cmp). Only the commands used by the tests of the VM translator are supported:
+ *
+ *      load NAME, output-file NAME, compare-to NAME   name the files of the test.
+ *      output-list COLUMN ...                         sets the columns to output, and outputs their
+ *                                                     names. A column is RAM[n], A, D or PC, with a
+ *                                                     format such as %D2.6.2: D for decimal, B for
+ *                                                     binary or X for hexadecimal, then the spaces to
+ *                                                     the left, the width of the value, and the spaces
+ *                                                     to the right. The default is %D1.6.1.
+ *      set RAM[n] VALUE                               sets a word of RAM.
+ *      repeat N { COMMANDS }                          runs the commands N times.
+ *      ticktock                                       runs one instruction.
+ *      output                                         outputs the values of the columns.
+ *
+ *  Commands end with ',' or ';', and comments are written as in Java. Errors in the script are thrown
+ *  as RuntimeExceptions when it is read. Nothing is written to the output file: run() returns the
+ *  output, to be compared with the compare file.
+ */
+public class TestScript {
+    private static final String DEFAULT_FORMAT = "%D1.6.1";
+    private static final String RAM_PREFIX = "RAM[";
+
+    /** The commands. */
+    private static final int LOAD = 0;
+    private static final int OUTPUT_FILE = 1;
+    private static final int COMPARE_TO = 2;
+    private static final int OUTPUT_LIST = 3;
+    private static final int SET = 4;
+    private static final int REPEAT = 5;
+    private static final int TICKTOCK = 6;
+    private static final int OUTPUT = 7;
+    private static final String[] COMMANDS = {"load", "output-file", "compare-to", "output-list", "set", "repeat",
+            "ticktock", "output"};
+
+    /** The registers a column can show, besides RAM. */
+    private static final int REGISTER_A = -1;
+    private static final int REGISTER_D = -2;
+    private static final int REGISTER_PC = -3;
+    private static final int NOT_AN_ADDRESS = -4;
+
+    private static class Command {
+        private int kind;
+        /** The file name of load, output-file and compare-to. */
+        private String name;
+        /** The address and value of set. The value is also the count of repeat. */
+        private int address;
+        private int value;
+        private List<Column> columns;
+        private List<Command> body;
+
+        private Command(int kind) {
+            this.kind = kind;
+        }
+    }
+
+    private static class Column {
+        private String name;
+        /** The address in RAM, or one of the registers. */
+        private int address;
+        private char format;
+        private int left;
+        private int width;
+        private int right;
+    }
+
+    private String fileName;
+    private List<Command> commands;
+    /** The tokens of the script while it is read, and the line of each one. */
+    private List<String> tokens;
+    private List<Integer> lines;
+    private int position;
+
+    /** Read the test script in the file named FILENAME. */
+    public TestScript(String fileName) throws IOException {
+        this.fileName = fileName;
+        String text = new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.UTF_8);
+        tokenize(text);
+        position = 0;
+        commands = parseCommands(false);
+        tokens = null;
+        lines = null;
+    }
+
+    /** The name given by the script's load command, or null if there is none. */
+    public String loadName() {
+        return fileName(LOAD);
+    }
+
+    /** The name given by the script's compare-to command, or null if there is none. */
+    public String compareName() {
+        return fileName(COMPARE_TO);
+    }
+
+    private String fileName(int kind) {
+        for (Command command : commands) {
+            if (command.kind == kind) {
+                return command.name;
+            }
+        }
+        return null;
+    }
+
+    /** Run the script on CPU, which holds the program loaded, and return its output. */
+    public String run(HackCpu cpu) {
+        StringBuilder output = new StringBuilder();
+        run(commands, cpu, new ArrayList<>(), output);
+        return output.toString();
+    }
+
+    /** Run COMMANDS on CPU, appending what they output with the columns in COLUMNS to OUTPUT. */
+    private static void run(List<Command> commands, HackCpu cpu, List<Column> columns, StringBuilder output) {
+        for (Command command : commands) {
+            switch (command.kind) {
+                case OUTPUT_LIST:
+                    columns.clear();
+                    columns.addAll(command.columns);
+                    output.append('|');
+                    for (Column column : columns) {
+                        output.append(center(column.name, column.left + column.width + column.right)).append('|');
+                    }
+                    output.append('\n');
+                    break;
+                case SET:
+                    cpu.poke(command.address, command.value);
+                    break;
+                case REPEAT:
+                    if (command.body.size() == 1 && command.body.get(0).kind == TICKTOCK) {
+                        cpu.run(command.value);
+                    } else {
+                        for (int i = 0; i < command.value; i++) {
+                            run(command.body, cpu, columns, output);
+                        }
+                    }
+                    break;
+                case TICKTOCK:
+                    cpu.run(1);
+                    break;
+                case OUTPUT:
+                    output.append('|');
+                    for (Column column : columns) {
+                        output.append(" ".repeat(column.left)).append(format(column, value(column, cpu)))
+                                .append(" ".repeat(column.right)).append('|');
+                    }
+                    output.append('\n');
+                    break;
+                default:
+                    // the file names are only read by the runner
+                    break;
+            }
+        }
+    }
+
+    private static int value(Column column, HackCpu cpu) {
+        switch (column.address) {
+            case REGISTER_A:  return cpu.a();
+            case REGISTER_D:  return cpu.d();
+            case REGISTER_PC: return cpu.pc();
+            default:          return cpu.peek(column.address);
+        }
+    }
+
+    /** Return VALUE in the format of COLUMN, right aligned in its width. Values too wide for it keep their
+     *  rightmost characters. */
+    private static String format(Column column, int value) {
+        String text;
+        if (column.format == 'B') {
+            text = Integer.toBinaryString(value & 0xFFFF | 0x10000).substring(1);
+        } else if (column.format == 'X') {
+            text = Integer.toHexString(value & 0xFFFF | 0x10000).substring(1).toUpperCase();
+        } else {
+            text = Integer.toString(value);
+        }
+        if (text.length() > column.width) {
+            return text.substring(text.length() - column.width);
+        }
+        return " ".repeat(column.width - text.length()) + text;
+    }
+
+    /** Return NAME centered in WIDTH characters, or cut to WIDTH if it is wider. */
+    private static String center(String name, int width) {
+        if (name.length() >= width) {
+            return name.substring(0, width);
+        }
+        int left = (width - name.length()) / 2;
+        return " ".repeat(left) + name + " ".repeat(width - name.length() - left);
+    }
+
+    /** Split TEXT into words and the punctuation ',', ';', '{' and '}', leaving out comments. */
+    private void tokenize(String text) {
+        tokens = new ArrayList<>();
+        lines = new ArrayList<>();
+        int line = 1;
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                line += 1;
+                i += 1;
+            } else if (Character.isWhitespace(c)) {
+                i += 1;
+            } else if (text.startsWith("//", i)) {
+                while (i < text.length() && text.charAt(i) != '\n') {
+                    i += 1;
+                }
+            } else if (text.startsWith("/*", i)) {
+                int end = text.indexOf("*/", i + 2);
+                if (end < 0) {
+                    throw error(line, "Unterminated comment");
+                }
+                for (; i < end + 2; i++) {
+                    line += text.charAt(i) == '\n' ? 1 : 0;
+                }
+            } else if (isPunctuation(c)) {
+                tokens.add(String.valueOf(c));
+                lines.add(line);
+                i += 1;
+            } else {
+                int start = i;
+                while (i < text.length() && ! Character.isWhitespace(text.charAt(i))
+                        && ! isPunctuation(text.charAt(i)) && ! text.startsWith("//", i)) {
+                    i += 1;
+                }
+                tokens.add(text.substring(start, i));
+                lines.add(line);
+            }
+        }
+    }
+
+    private static boolean isPunctuation(char c) {
+        return c == ',' || c == ';' || c == '{' || c == '}';
+    }
+
+    /** Parse the commands up to the end of the script, or if NESTED is true, up to the '}' that ends the
+     *  body of a repeat. */
+    private List<Command> parseCommands(boolean nested) {
+        List<Command> commands = new ArrayList<>();
+        while (position < tokens.size()) {
+            String token = tokens.get(position);
+            position += 1;
+            if (token.equals("}")) {
+                if (! nested) {
+                    throw error(lineOf(position - 1), "Unexpected '}'");
+                }
+                return commands;
+            } else if (token.equals(",") || token.equals(";")) {
+                continue;
+            }
+            int kind = -1;
+            for (int i = 0; i < COMMANDS.length; i++) {
+                if (COMMANDS[i].equals(token)) {
+                    kind = i;
+                }
+            }
+            if (kind < 0) {
+                throw error(lineOf(position - 1), "Unsupported command '" + token + "'");
+            }
+            commands.add(parseCommand(kind));
+        }
+        if (nested) {
+            throw error(lineOf(tokens.size() - 1), "Missing '}'");
+        }
+        return commands;
+    }
+
+    /** Parse the rest of a command of KIND, whose name has been read. */
+    private Command parseCommand(int kind) {
+        Command command = new Command(kind);
+        switch (kind) {
+            case LOAD:
+            case OUTPUT_FILE:
+            case COMPARE_TO:
+                command.name = nextWord();
+                break;
+            case OUTPUT_LIST:
+                command.columns = new ArrayList<>();
+                while (position < tokens.size() && ! isPunctuation(tokens.get(position).charAt(0))) {
+                    command.columns.add(parseColumn(nextWord()));
+                }
+                break;
+            case SET:
+                String target = nextWord();
+                command.address = parseAddress(target);
+                if (command.address < 0) {
+                    throw error(lineOf(position - 1), "Only RAM can be set, not '" + target + "'");
+                }
+                command.value = parseNumber(nextWord());
+                break;
+            case REPEAT:
+                command.value = parseNumber(nextWord());
+                if (position >= tokens.size() || ! tokens.get(position).equals("{")) {
+                    throw error(lineOf(position - 1), "Missing '{' after repeat");
+                }
+                position += 1;
+                command.body = parseCommands(true);
+                return command;
+            default:
+                break;
+        }
+        if (position < tokens.size() && ! tokens.get(position).equals("}")) {
+            String end = tokens.get(position);
+            if (! end.equals(",") && ! end.equals(";")) {
+                throw error(lineOf(position), "Expected ',' or ';' after " + COMMANDS[kind] + ", found '" + end + "'");
+            }
+            position += 1;
+        }
+        return command;
+    }
+
+    private String nextWord() {
+        if (position >= tokens.size() || isPunctuation(tokens.get(position).charAt(0))) {
+            throw error(lineOf(position), "Missing argument");
+        }
+        position += 1;
+        return tokens.get(position - 1);
+    }
+
+    /** Parse a column of output-list, such as RAM[256]%D2.6.2. */
+    private Column parseColumn(String word) {
+        int percent = word.indexOf('%');
+        Column column = new Column();
+        column.name = percent < 0 ? word : word.substring(0, percent);
+        column.address = parseAddress(column.name);
+        if (column.address == NOT_AN_ADDRESS) {
+            throw error(lineOf(position - 1), "Unknown column '" + column.name + "'");
+        }
+        String format = percent < 0 ? DEFAULT_FORMAT : word.substring(percent);
+        String[] sizes = format.substring(Math.min(2, format.length())).split("\\.");
+        if (format.length() < 2 || "DBX".indexOf(format.charAt(1)) < 0 || sizes.length != 3) {
+            throw error(lineOf(position - 1), "Invalid format '" + format + "'");
+        }
+        column.format = format.charAt(1);
+        column.left = parseNumber(sizes[0]);
+        column.width = parseNumber(sizes[1]);
+        column.right = parseNumber(sizes[2]);
+        if (column.left < 0 || column.width < 1 || column.right < 0) {
+            throw error(lineOf(position - 1), "Invalid format '" + format + "'");
+        }
+        return column;
+    }
+
+    /** Return the address of NAME, RAM[n] or a register. Returns NOT_AN_ADDRESS for any other name. */
+    private int parseAddress(String name) {
+        switch (name) {
+            case "A":  return REGISTER_A;
+            case "D":  return REGISTER_D;
+            case "PC": return REGISTER_PC;
+            default:   break;
+        }
+        if (! name.startsWith(RAM_PREFIX) || ! name.endsWith("]")) {
+            if (name.startsWith(RAM_PREFIX)) {
+                throw error(lineOf(position - 1), "Invalid address '" + name + "'");
+            }
+            return NOT_AN_ADDRESS;
+        }
+        int address = parseNumber(name.substring(RAM_PREFIX.length(), name.length() - 1));
+        if (address < 0 || address > HackCpu.KBD) {
+            throw error(lineOf(position - 1), "Invalid address '" + name + "'");
+        }
+        return address;
+    }
+
+    private int parseNumber(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException ex) {
+            throw error(lineOf(position - 1), "Invalid number '" + text + "'");
+        }
+    }
+
+    /** Return the line of the token numbered TOKEN, or of the last token if it is past the end. */
+    private int lineOf(int token) {
+        return lines.isEmpty() ? 1 : lines.get(Math.max(0, Math.min(token, lines.size() - 1)));
+    }
+
+    private RuntimeException error(int line, String message) {
+        return new RuntimeException(fileName + ", line " + line + ": " + message);
+    }
+}
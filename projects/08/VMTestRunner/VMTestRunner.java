@@ -0,0 +1,217 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** The VMTestRunner runs the test scripts of the VM translator (projects 07 and 08) without the CPU
+ *  emulator. It is compiled with the translator and the emulator on the source path:
+ *
+ *      javac -sourcepath ../../shared:../../07/VMTranslator:../../05/HackEmulator *.java
+ *      java VMTestRunner [--jobs=N] [--options=shared-runtime,stack-cache,O] (test.tst | directory)...
+ *
+ *  Directories are searched for test scripts, leaving out those for the VM emulator (*VME.tst). For
+ *  each test, the vm files in the directory of its script are translated straight into machine code,
+ *  with the bootstrap code only if one of them is Sys.vm, as the tests expect. The program is run on a
+ *  HackCpu by the TestScript, and its output is compared with the script's compare file. The tests
+ *  run on a pool of N threads (by default one per core), and the result and time of each one are
+ *  printed in the order the tests were found.
+ *
+ *  With --options, every test is run once for each combination of the options listed (see
+ *  OptionSet), from the plain translation up to all of them, and the options of each run are printed
+ *  with its result.
+ */
+public class VMTestRunner {
+
+    private static final String JOBS_OPTION = "--jobs";
+    private static final String OPTIONS_OPTION = "--options=";
+    private static final String TEST_EXTENSION = ".tst";
+    private static final String VM_EMULATOR_SUFFIX = "VME.tst";
+    private static final String VM_FILE_EXTENSION = ".vm";
+    /** The file whose presence means that the program starts with the bootstrap code. */
+    private static final String SYS_FILE = "Sys.vm";
+
+    /** The result of a test: a failure message, or null if it passed, and the time it took. */
+    private static class Result {
+        private String failure;
+        private long translateNanos;
+        private long runNanos;
+    }
+
+    private static void usageError(String message) {
+        System.out.println("Error: " + message);
+        System.out.println("Usage: VMTestRunner [--jobs=N] [--options=shared-runtime,stack-cache,O]\n" +
+                "                    (test.tst | directory)...");
+        System.exit(-4);
+    }
+
+    /** Parse an option of the form --jobs=N. */
+    private static int parseJobs(String arg) {
+        int jobs;
+        try {
+            jobs = Integer.parseInt(arg.substring(JOBS_OPTION.length() + 1));
+        } catch (NumberFormatException ex) {
+            jobs = 0;
+        }
+        if (jobs < 1) {
+            usageError("Invalid thread count in '" + arg + "'");
+        }
+        return jobs;
+    }
+
+    /** Add the test scripts named in INPUTS, or found in the directories named in it, to TESTS. The
+     *  contents of each directory are searched in name order. */
+    private static void findTests(List<File> inputs, List<File> tests) {
+        for (File input : inputs) {
+            if (input.isDirectory()) {
+                File[] files = input.listFiles();
+                Arrays.sort(files);
+                List<File> contents = new ArrayList<>();
+                for (File file : files) {
+                    boolean isTest = file.getName().endsWith(TEST_EXTENSION)
+                            && ! file.getName().endsWith(VM_EMULATOR_SUFFIX);
+                    if (file.isDirectory() || isTest) {
+                        contents.add(file);
+                    }
+                }
+                findTests(contents, tests);
+            } else {
+                tests.add(input);
+            }
+        }
+    }
+
+    public static void main(String[] args) {
+        int jobs = Runtime.getRuntime().availableProcessors();
+        List<OptionSet> optionSets = null;
+        List<File> inputs = new ArrayList<>();
+        for (String arg : args) {
+            if (arg.startsWith(JOBS_OPTION + "=")) {
+                jobs = parseJobs(arg);
+            } else if (arg.startsWith(OPTIONS_OPTION)) {
+                try {
+                    optionSets = OptionSet.combinations(arg.substring(OPTIONS_OPTION.length()));
+                } catch (IllegalArgumentException ex) {
+                    usageError(ex.getMessage() + " in '" + arg + "'");
+                }
+            } else if (arg.startsWith("--")) {
+                usageError("Unknown option '" + arg + "'");
+            } else if (! new File(arg).exists()) {
+                usageError("No such file or directory '" + arg + "'");
+            } else {
+                inputs.add(new File(arg));
+            }
+        }
+        if (inputs.isEmpty()) {
+            usageError("Test script or directory argument required");
+        }
+        List<File> found = new ArrayList<>();
+        findTests(inputs, found);
+        boolean matrix = optionSets != null;
+        if (! matrix) {
+            optionSets = List.of(new OptionSet());
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        // every test under every set of options, in the order they are printed
+        List<String> names = new ArrayList<>();
+        List<Future<Result>> results = new ArrayList<>();
+        for (File test : found) {
+            for (OptionSet optionSet : optionSets) {
+                names.add(matrix ? test.getPath() + " [" + optionSet + "]" : test.getPath());
+                results.add(executor.submit(() -> runTest(test, optionSet)));
+            }
+        }
+        int failures = 0;
+        for (int i = 0; i < names.size(); i++) {
+            Result result;
+            try {
+                result = results.get(i).get();
+            } catch (ExecutionException ex) {
+                result = new Result();
+                result.failure = String.valueOf(ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                result = new Result();
+                result.failure = "Interrupted";
+            }
+            // a test that failed before it was run has no times
+            String times = result.translateNanos == 0 ? ""
+                    : String.format(" (translated in %.1f ms, ran in %.1f ms)", result.translateNanos / 1e6,
+                            result.runNanos / 1e6);
+            if (result.failure == null) {
+                System.out.println("PASS " + names.get(i) + times);
+            } else {
+                System.out.println("FAIL " + names.get(i) + times + ": " + result.failure);
+                failures += 1;
+            }
+        }
+        executor.shutdown();
+        System.out.printf("Passed %d of %d tests in %.1f ms%n", names.size() - failures, names.size(),
+                (System.nanoTime() - start) / 1e6);
+        if (failures > 0) {
+            System.exit(-7);
+        }
+    }
+
+    /** Translate the vm files beside the test script TEST the way OPTIONSET describes, run the script on
+     *  the program, and compare its output with the compare file. */
+    private static Result runTest(File test, OptionSet optionSet) {
+        Result result = new Result();
+        File directory = test.getAbsoluteFile().getParentFile();
+        try {
+            TestScript script = new TestScript(test.getPath());
+            if (script.compareName() == null) {
+                throw new RuntimeException("The script has no compare-to command");
+            }
+            String[] names = directory.list();
+            Arrays.sort(names);
+            List<String> files = new ArrayList<>();
+            for (String name : names) {
+                if (name.endsWith(VM_FILE_EXTENSION)) {
+                    files.add(new File(directory, name).getPath());
+                }
+            }
+            if (files.isEmpty()) {
+                throw new RuntimeException("No vm files in '" + directory + "'");
+            }
+            long start = System.nanoTime();
+            VMTranslator translator = optionSet.translator();
+            HackCpu cpu = new HackCpu(translator.translateToImage(files, Arrays.asList(names).contains(SYS_FILE)));
+            long translated = System.nanoTime();
+            String output = script.run(cpu);
+            result.translateNanos = translated - start;
+            result.runNanos = System.nanoTime() - translated;
+            File compareFile = new File(directory, script.compareName());
+            result.failure = compare(output, compareFile);
+        } catch (IOException ex) {
+            result.failure = "Unable to read file: " + ex.getMessage();
+        } catch (RuntimeException ex) {
+            result.failure = ex.getMessage();
+        }
+        return result;
+    }
+
+    /** Compare OUTPUT with the contents of COMPAREFILE, line by line. Returns a description of the first
+     *  line that differs, or null if none do. */
+    private static String compare(String output, File compareFile) throws IOException {
+        String expected = new String(Files.readAllBytes(compareFile.toPath()), StandardCharsets.UTF_8);
+        String[] outputLines = output.split("\n");
+        String[] expectedLines = expected.replace("\r", "").split("\n");
+        for (int i = 0; i < Math.max(outputLines.length, expectedLines.length); i++) {
+            String actual = i < outputLines.length ? outputLines[i] : "";
+            String wanted = i < expectedLines.length ? expectedLines[i] : "";
+            if (! actual.trim().equals(wanted.trim())) {
+                return "line " + (i + 1) + " of the output is '" + actual + "', expected '" + wanted + "'";
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,86 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import benchmarks.AssemblerStages;
+
+/** Runs the stages of the HackAssembler for the benchmarks in the benchmarks package. */
+public class HackAssemblerStages implements AssemblerStages {
+    private static final String TOKENS = ";=";
+
+    private List<Instruction> instructions;
+    private RomImage image;
+    private CodeGenerator codeGen;
+
+    @Override
+    public void prepare(String input) {
+        InstructionBuilder builder = new InstructionBuilder(input);
+        instructions = new ArrayList<>();
+        Instruction instr;
+        while ((instr = builder.buildNextInstruction()) != null) {
+            instructions.add(instr);
+        }
+        codeGen = new CodeGenerator();
+        resolve();
+    }
+
+    @Override
+    public int lex(String input) {
+        Lexer lexer = new Lexer(input, TOKENS);
+        int length = 0;
+        while (lexer.advance()) {
+            length += lexer.length();
+        }
+        lexer.close();
+        return length;
+    }
+
+    @Override
+    public void parse(String input, Blackhole bh) {
+        InstructionBuilder builder = new InstructionBuilder(input);
+        Instruction instr;
+        while ((instr = builder.buildNextInstruction()) != null) {
+            bh.consume(instr);
+        }
+    }
+
+    @Override
+    public int resolve() {
+        Assembler assembler = new Assembler(new SymbolTable());
+        for (Instruction instr : instructions) {
+            assembler.add(instr);
+        }
+        assembler.finish();
+        image = assembler.image();
+        return image.size();
+    }
+
+    @Override
+    public int encode() {
+        int sum = 0;
+        for (Instruction instr : instructions) {
+            if (instr.isCInstruction()) {
+                sum += codeGen.encodeCInstruction(instr);
+            }
+        }
+        return sum;
+    }
+
+    @Override
+    public void write(String output, boolean binary) throws IOException {
+        if (binary) {
+            image.write(output, RomImage.Format.BINARY, true);
+        } else {
+            image.write(output, RomImage.Format.TEXT, false);
+        }
+    }
+
+    @Override
+    public void assemble(String input, String output) throws IOException {
+        Assembler assembler = new Assembler(new SymbolTable());
+        assembler.assemble(new InstructionBuilder(input));
+        assembler.image().write(output, RomImage.Format.TEXT, false);
+    }
+}
@@ -0,0 +1,106 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Benchmarks each stage of the HackAssembler on one input file:
+ *
+ *      lex         - splitting the file into tokens with the Lexer
+ *      parse       - building Instructions with the InstructionBuilder
+ *      resolve     - label resolution and encoding of parsed instructions by the Assembler
+ *      encode      - reading the words of the C instructions, which parse already encodes
+ *      writeText   - writing an assembled program as a .hack file
+ *      writeBinary - writing an assembled program as a binary image
+ *      assemble    - the whole pipeline, from the .asm file to the .hack file
+ *
+ *  Every benchmark reports throughput and sampled latency (including p0.99) per file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class AssemblerBenchmark {
+
+    @Param({"06/add/Add.asm", "06/max/Max.asm", "06/rect/Rect.asm", "06/pong/Pong.asm", "synthetic:1000000"})
+    public String input;
+
+    private AssemblerStages stages;
+    private String fileName;
+    private Path synthetic;
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (Corpus.isSynthetic(input)) {
+            synthetic = Corpus.syntheticAsm(Corpus.syntheticLines(input));
+            fileName = synthetic.toString();
+        } else {
+            fileName = Corpus.checkedIn(input).toString();
+        }
+        output = Files.createTempFile("benchmark", ".hack");
+        stages = (AssemblerStages) Class.forName(AssemblerStages.IMPLEMENTATION).getDeclaredConstructor().newInstance();
+        stages.prepare(fileName);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Corpus.delete(output);
+        if (synthetic != null) {
+            Corpus.delete(synthetic);
+        }
+    }
+
+    @Benchmark
+    public int lex() {
+        return stages.lex(fileName);
+    }
+
+    @Benchmark
+    public void parse(Blackhole bh) {
+        stages.parse(fileName, bh);
+    }
+
+    @Benchmark
+    public int resolve() {
+        return stages.resolve();
+    }
+
+    @Benchmark
+    public int encode() {
+        return stages.encode();
+    }
+
+    @Benchmark
+    public void writeText() throws IOException {
+        stages.write(output.toString(), false);
+    }
+
+    @Benchmark
+    public void writeBinary() throws IOException {
+        stages.write(output.toString(), true);
+    }
+
+    @Benchmark
+    public void assemble() throws IOException {
+        stages.assemble(fileName, output.toString());
+    }
+}
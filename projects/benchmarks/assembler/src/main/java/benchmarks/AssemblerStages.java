@@ -0,0 +1,33 @@
+package benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/** The stages of the HackAssembler, as seen by the benchmarks. The assembler lives in the default
+ *  package, which named packages cannot refer to, so it is driven through this interface and an
+ *  implementation in the default package (HackAssemblerStages) loaded by name. */
+public interface AssemblerStages {
+    String IMPLEMENTATION = "HackAssemblerStages";
+
+    /** Parse INPUT ahead of time for the later stages. */
+    void prepare(String input);
+
+    /** Split INPUT into tokens. Returns the total length of the tokens. */
+    int lex(String input);
+
+    /** Build every Instruction in INPUT. */
+    void parse(String input, Blackhole bh);
+
+    /** Resolve labels and encode the prepared instructions. Returns the program size. */
+    int resolve();
+
+    /** Get the words of the prepared C instructions. Returns the sum of the words. */
+    int encode();
+
+    /** Write the prepared program to OUTPUT. */
+    void write(String output, boolean binary) throws IOException;
+
+    /** Assemble INPUT into OUTPUT. */
+    void assemble(String input, String output) throws IOException;
+}
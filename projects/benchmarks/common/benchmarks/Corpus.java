@@ -0,0 +1,189 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/** Locates the benchmark inputs. An input is either the path of a checked-in file or directory,
+ *  relative to the repository root (e.g. "06/pong/Pong.asm", "tools/OS"), or a synthetic program
+ *  named "synthetic:N", which is generated once per JVM with N lines of code.
+ *
+ *  The repository root is taken from the nand2tetris.root system property, or found by walking up
+ *  from the working directory.
+ */
+public class Corpus {
+    private static final String SYNTHETIC_PREFIX = "synthetic:";
+    /** The seed for synthetic programs, so every run benchmarks the same code. */
+    private static final long SEED = 6502;
+
+    private Corpus() {
+    }
+
+    public static Path root() {
+        String property = System.getProperty("nand2tetris.root");
+        if (property != null) {
+            return Paths.get(property).toAbsolutePath();
+        }
+        Path dir = Paths.get("").toAbsolutePath();
+        while (dir != null) {
+            if (Files.isDirectory(dir.resolve("projects/06/HackAssembler"))) {
+                return dir;
+            }
+            dir = dir.getParent();
+        }
+        throw new IllegalStateException("Cannot find the repository root, set -Dnand2tetris.root");
+    }
+
+    /** Resolve a checked-in input. Names starting with "tools/" are relative to the repository root,
+     *  all others are relative to the projects directory. */
+    public static Path checkedIn(String name) {
+        if (name.startsWith("tools/")) {
+            return root().resolve(name);
+        }
+        return root().resolve("projects").resolve(name);
+    }
+
+    public static boolean isSynthetic(String name) {
+        return name.startsWith(SYNTHETIC_PREFIX);
+    }
+
+    public static int syntheticLines(String name) {
+        return Integer.parseInt(name.substring(SYNTHETIC_PREFIX.length()));
+    }
+
+    /** Return the .vm files of a VM input, which is a single file or a directory of files, in the
+     *  same order the VMTranslator lists them. */
+    public static List<String> vmFiles(Path input) {
+        List<String> files = new ArrayList<>();
+        if (Files.isDirectory(input)) {
+            for (String name : input.toFile().list()) {
+                if (name.endsWith(".vm")) {
+                    files.add(input.resolve(name).toString());
+                }
+            }
+        } else {
+            files.add(input.toString());
+        }
+        return files;
+    }
+
+    /** Write a random but well formed assembly program of LINES lines to a temporary file. About 5% of
+     *  the lines are labels, a third of the A instructions refer to labels (mostly forward references)
+     *  and a third to variables. */
+    public static Path syntheticAsm(int lines) {
+        String[] comps = {"0", "1", "-1", "D", "A", "!D", "-A", "D+1", "A-1", "D+A", "D-A", "A-D", "D&A",
+                          "D|A", "M", "!M", "M+1", "M-1", "D+M", "D-M", "M-D", "D&M", "D|M"};
+        String[] dests = {"", "M=", "D=", "MD=", "A=", "AM=", "AD=", "AMD="};
+        String[] jumps = {"", ";JGT", ";JEQ", ";JGE", ";JLT", ";JNE", ";JLE", ";JMP"};
+        Random random = new Random(SEED);
+        int numLabels = Math.max(1, lines / 20);
+        int nextLabel = 0;
+        try {
+            Path file = Files.createTempFile("synthetic", ".asm");
+            file.toFile().deleteOnExit();
+            try (Writer out = Files.newBufferedWriter(file)) {
+                out.write("// Synthetic benchmark program\n");
+                for (int i = 1; i < lines; i++) {
+                    int kind = random.nextInt(100);
+                    if (kind < 5 && nextLabel < numLabels) {
+                        out.write("(L" + nextLabel++ + ")\n");
+                    } else if (kind < 20) {
+                        out.write("@L" + random.nextInt(numLabels) + "\n");
+                    } else if (kind < 35) {
+                        out.write("@v" + random.nextInt(500) + "\n");
+                    } else if (kind < 45) {
+                        out.write("@" + random.nextInt(32768) + "\n");
+                    } else {
+                        out.write(dests[random.nextInt(dests.length)] + comps[random.nextInt(comps.length)]
+                                  + jumps[random.nextInt(jumps.length)] + "\n");
+                    }
+                }
+                while (nextLabel < numLabels) {
+                    out.write("(L" + nextLabel++ + ")\n");
+                }
+            }
+            return file;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    /** Write a random but well formed VM program of about LINES lines to a temporary directory holding
+     *  a single file, Synthetic.vm. The program is a series of functions made of stack arithmetic,
+     *  memory access, branches and calls. */
+    public static Path syntheticVm(int lines) {
+        String[] arithmetic = {"add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not"};
+        String[] pushSegments = {"constant", "local", "argument", "this", "that", "temp", "pointer", "static"};
+        String[] popSegments = {"local", "argument", "this", "that", "temp", "pointer", "static"};
+        Random random = new Random(SEED);
+        try {
+            Path dir = Files.createTempDirectory("Synthetic");
+            Path file = dir.resolve("Synthetic.vm");
+            file.toFile().deleteOnExit();
+            dir.toFile().deleteOnExit();
+            try (Writer out = Files.newBufferedWriter(file)) {
+                int written = 0;
+                int function = 0;
+                while (written < lines) {
+                    out.write("function Synthetic.f" + function + " " + random.nextInt(4) + "\n");
+                    int body = 20 + random.nextInt(80);
+                    for (int i = 0; i < body; i++) {
+                        int kind = random.nextInt(100);
+                        if (kind < 35) {
+                            String segment = pushSegments[random.nextInt(pushSegments.length)];
+                            out.write("push " + segment + " " + segmentIndex(segment, random) + "\n");
+                        } else if (kind < 55) {
+                            String segment = popSegments[random.nextInt(popSegments.length)];
+                            out.write("pop " + segment + " " + segmentIndex(segment, random) + "\n");
+                        } else if (kind < 85) {
+                            out.write(arithmetic[random.nextInt(arithmetic.length)] + "\n");
+                        } else if (kind < 90) {
+                            out.write("label L" + i + "\n");
+                        } else if (kind < 93) {
+                            out.write("if-goto L" + i + "\n");
+                        } else if (kind < 95) {
+                            out.write("goto L" + i + "\n");
+                            out.write("label L" + i + "\n");
+                            written += 1;
+                        } else {
+                            out.write("call Synthetic.f" + random.nextInt(function + 1) + " " + random.nextInt(3) + "\n");
+                        }
+                    }
+                    out.write("return\n");
+                    written += body + 2;
+                    function += 1;
+                }
+            }
+            return dir;
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+    }
+
+    private static int segmentIndex(String segment, Random random) {
+        if (segment.equals("temp")) {
+            return random.nextInt(8);
+        } else if (segment.equals("pointer")) {
+            return random.nextInt(2);
+        } else if (segment.equals("constant")) {
+            return random.nextInt(32768);
+        }
+        return random.nextInt(16);
+    }
+
+    /** Delete a file, or a directory and everything in it, ignoring failures. */
+    public static void delete(Path path) {
+        try (Stream<Path> paths = Files.walk(path)) {
+            paths.sorted((a, b) -> b.compareTo(a)).forEach(p -> p.toFile().delete());
+        } catch (IOException ex) {
+            // Leftover temporary files are removed on exit.
+        }
+    }
+}
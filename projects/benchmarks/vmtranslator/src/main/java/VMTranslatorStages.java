@@ -0,0 +1,90 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+import benchmarks.TranslatorStages;
+
+/** Runs the stages of the VMTranslator for the benchmarks in the benchmarks package. */
+public class VMTranslatorStages implements TranslatorStages {
+    private List<String> files;
+    /** The instructions of each file, in the order of files. */
+    private List<VMCode> instructions;
+
+    @Override
+    public void prepare(List<String> files) {
+        this.files = files;
+        instructions = new ArrayList<>();
+        for (String file : files) {
+            instructions.add(InstructionBuilder.parse(file));
+        }
+    }
+
+    @Override
+    public void parse(List<String> files, Blackhole bh) {
+        InstructionBuilder builder = new InstructionBuilder(files.get(0));
+        for (String file : files) {
+            if (! file.equals(builder.fileName())) {
+                builder.switchFile(file);
+            }
+            VMCode code = new VMCode(file);
+            while (builder.buildNextInstruction(code)) {
+                bh.consume(code.size());
+            }
+        }
+        builder.close();
+    }
+
+    @Override
+    public void generate(Blackhole bh) throws IOException {
+        DiscardChannel channel = new DiscardChannel(bh);
+        AsmWriter writer = new AsmWriter(channel);
+        CodeGenerator.bootstrap(writer).generateInit();
+        for (int n = 0; n < files.size(); n++) {
+            CodeGenerator codeGen = new CodeGenerator(files.get(n), writer);
+            codeGen.generate(instructions.get(n));
+            codeGen.finish();
+        }
+        writer.close();
+    }
+
+    /** A channel that hands every buffer written to it to a Blackhole instead of a file, so that the
+     *  generate benchmark measures code generation without any I/O. */
+    private static class DiscardChannel implements WritableByteChannel {
+        private Blackhole bh;
+
+        DiscardChannel(Blackhole bh) {
+            this.bh = bh;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            bh.consume(src.get(src.limit() - 1));
+            src.position(src.limit());
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Override
+    public void translate(List<String> files, String output) throws IOException {
+        VMTranslator.translate(files, output);
+    }
+
+    @Override
+    public void translateToHack(List<String> files, String output) throws IOException {
+        VMTranslator.translateToRom(files).write(output, RomImage.Format.TEXT, false);
+    }
+}
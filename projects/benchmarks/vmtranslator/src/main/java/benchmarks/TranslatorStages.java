@@ -0,0 +1,28 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+
+import org.openjdk.jmh.infra.Blackhole;
+
+/** The stages of the VMTranslator, as seen by the benchmarks. The translator lives in the default
+ *  package, which named packages cannot refer to, so it is driven through this interface and an
+ *  implementation in the default package (VMTranslatorStages) loaded by name. */
+public interface TranslatorStages {
+    String IMPLEMENTATION = "VMTranslatorStages";
+
+    /** Parse FILES ahead of time for the later stages. */
+    void prepare(List<String> files);
+
+    /** Parse every instruction in FILES. */
+    void parse(List<String> files, Blackhole bh);
+
+    /** Generate the assembly code for the prepared instructions. */
+    void generate(Blackhole bh) throws IOException;
+
+    /** Translate FILES into OUTPUT. */
+    void translate(List<String> files, String output) throws IOException;
+
+    /** Translate FILES straight into machine code and write it to OUTPUT as a .hack file. */
+    void translateToHack(List<String> files, String output) throws IOException;
+}
@@ -0,0 +1,92 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Benchmarks each stage of the VMTranslator on one input file or directory:
+ *
+ *      parse     - parsing instructions into VMCode with the InstructionBuilder
+ *      generate  - generating assembly code for parsed instructions with the CodeGenerator
+ *      translate - the whole pipeline, from the .vm files to the .asm file
+ *      emitHack  - the whole pipeline straight to machine code, from the .vm files to a .hack file
+ *
+ *  Every benchmark reports throughput and sampled latency (including p0.99) per input.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class VMTranslatorBenchmark {
+
+    @Param({"07/StackArithmetic/SimpleAdd", "07/StackArithmetic/StackTest", "07/MemoryAccess/BasicTest",
+            "07/MemoryAccess/PointerTest", "07/MemoryAccess/StaticTest", "08/ProgramFlow/BasicLoop",
+            "08/ProgramFlow/FibonacciSeries", "08/FunctionCalls/SimpleFunction", "08/FunctionCalls/NestedCall",
+            "08/FunctionCalls/FibonacciElement", "08/FunctionCalls/StaticsTest", "tools/OS", "synthetic:1000000"})
+    public String input;
+
+    private TranslatorStages stages;
+    private List<String> files;
+    private Path synthetic;
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        if (Corpus.isSynthetic(input)) {
+            synthetic = Corpus.syntheticVm(Corpus.syntheticLines(input));
+            files = Corpus.vmFiles(synthetic);
+        } else {
+            files = Corpus.vmFiles(Corpus.checkedIn(input));
+        }
+        output = Files.createTempFile("benchmark", ".asm");
+        stages = (TranslatorStages) Class.forName(TranslatorStages.IMPLEMENTATION).getDeclaredConstructor().newInstance();
+        stages.prepare(files);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        Corpus.delete(output);
+        if (synthetic != null) {
+            Corpus.delete(synthetic);
+        }
+    }
+
+    @Benchmark
+    public void parse(Blackhole bh) {
+        stages.parse(files, bh);
+    }
+
+    @Benchmark
+    public void generate(Blackhole bh) throws IOException {
+        stages.generate(bh);
+    }
+
+    @Benchmark
+    public void translate() throws IOException {
+        stages.translate(files, output.toString());
+    }
+
+    @Benchmark
+    public void emitHack() throws IOException {
+        stages.translateToHack(files, output.toString());
+    }
+}
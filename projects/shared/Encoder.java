@@ -0,0 +1,231 @@
+import java.nio.ByteBuffer;
+
+/** The Encoder holds the encoding of the Hack machine language. It is shared by the HackAssembler and
+ *  the VMTranslator, which can both produce machine code.
+ *
+ *  The dest, comp and jump mnemonics are looked up in small hash tables that map each mnemonic
+ *  directly to its bits, already shifted into their position in the instruction. A mnemonic is
+ *  looked up by its key, its (at most 4) characters packed into an int, which can be built from the
+ *  current token of a Lexer without creating a String. The textual form of a word is copied out of
+ *  a table holding the 8 ASCII characters for every possible byte, so neither encoding nor
+ *  formatting allocate anything per instruction.
+ */
+public class Encoder {
+    /** The bits shared by the start of every C instruction (111). */
+    public static final int C_INSTRUCTION_PREFIX = 0xE000;
+    /** Returned by the mnemonic tables when a mnemonic is not valid, and by key() for text that is too
+     *  long to be a mnemonic. */
+    public static final int INVALID = -1;
+    /** The number of characters used to print a single word, including the newline. */
+    public static final int TEXT_WORD_SIZE = 17;
+    private static final byte NEWLINE = '\n';
+    /** The length of the longest mnemonic, "null". */
+    private static final int MAX_MNEMONIC_LENGTH = 4;
+
+    /** The comp mnemonics, and their bits (a c1 c2 c3 c4 c5 c6) at the same index. Where two mnemonics
+     *  have the same bits, the first one is the name compMnemonic() gives them. */
+    private static final String[] COMP_MNEMONICS = {
+        "0", "1", "-1", "D", "A", "!D", "!A", "-D", "-A", "D+1", "1+D", "A+1", "1+A", "D-1", "A-1",
+        "D+A", "A+D", "D-A", "A-D", "D&A", "A&D", "D|A", "A|D",
+        "M", "!M", "-M", "M+1", "1+M", "M-1", "D+M", "M+D", "D-M", "M-D", "D&M", "M&D", "D|M", "M|D"
+    };
+    private static final int[] COMP_CODES = {
+        0b0101010, 0b0111111, 0b0111010, 0b0001100, 0b0110000, 0b0001101, 0b0110001, 0b0001111,
+        0b0110011, 0b0011111, 0b0011111, 0b0110111, 0b0110111, 0b0001110, 0b0110010,
+        0b0000010, 0b0000010, 0b0010011, 0b0000111, 0b0000000, 0b0000000, 0b0010101, 0b0010101,
+        0b1110000, 0b1110001, 0b1110011, 0b1110111, 0b1110111, 0b1110010, 0b1000010, 0b1000010,
+        0b1010011, 0b1000111, 0b1000000, 0b1000000, 0b1010101, 0b1010101
+    };
+    /** The dest and jump mnemonics, whose bits (d1 d2 d3 and j1 j2 j3) are their index. */
+    private static final String[] DEST_MNEMONICS = {"null", "M", "D", "MD", "A", "AM", "AD", "AMD"};
+    private static final String[] JUMP_MNEMONICS = {"null", "JGT", "JEQ", "JGE", "JLT", "JNE", "JLE", "JMP"};
+    private static final int[] FIELD_CODES = {0b000, 0b001, 0b010, 0b011, 0b100, 0b101, 0b110, 0b111};
+
+    private static final MnemonicTable COMP = new MnemonicTable(COMP_MNEMONICS, COMP_CODES, 6);
+    private static final MnemonicTable DEST = new MnemonicTable(DEST_MNEMONICS, FIELD_CODES, 3);
+    private static final MnemonicTable JUMP = new MnemonicTable(JUMP_MNEMONICS, FIELD_CODES, 0);
+
+    /** The 8 ASCII characters ('0' or '1') for each possible byte value, most significant bit first. */
+    private static final byte[] BYTE_TEXT = new byte[256 * 8];
+
+    static {
+        for (int b = 0; b < 256; b++) {
+            for (int bit = 0; bit < 8; bit++) {
+                BYTE_TEXT[b * 8 + bit] = (byte) (((b >> (7 - bit)) & 1) == 0 ? '0' : '1');
+            }
+        }
+    }
+
+    /** Return the key of MNEMONIC, or INVALID if it cannot be a mnemonic. */
+    public static int key(String mnemonic) {
+        if (mnemonic.isEmpty() || mnemonic.length() > MAX_MNEMONIC_LENGTH) {
+            return INVALID;
+        }
+        int key = 0;
+        for (int i = 0; i < mnemonic.length(); i++) {
+            char c = mnemonic.charAt(i);
+            if (c == 0 || c > 0x7F) {
+                return INVALID;
+            }
+            key = (key << 8) | c;
+        }
+        return key;
+    }
+
+    /** Return the key of the current token of T, or INVALID if it cannot be a mnemonic. No String is
+     *  created. */
+    public static int key(Lexer t) {
+        if (t.length() == 0 || t.length() > MAX_MNEMONIC_LENGTH) {
+            return INVALID;
+        }
+        int key = 0;
+        for (int i = 0; i < t.length(); i++) {
+            char c = t.charAt(i);
+            if (c == 0 || c > 0x7F) {
+                return INVALID;
+            }
+            key = (key << 8) | c;
+        }
+        return key;
+    }
+
+    /** Return the text whose key is KEY. */
+    public static String text(int key) {
+        StringBuilder text = new StringBuilder(MAX_MNEMONIC_LENGTH);
+        for (int shift = 8 * (MAX_MNEMONIC_LENGTH - 1); shift >= 0; shift -= 8) {
+            int c = (key >> shift) & 0xFF;
+            if (c != 0) {
+                text.append((char) c);
+            }
+        }
+        return text.toString();
+    }
+
+    /** Return the comp bits (a c1 c2 c3 c4 c5 c6) of MNEMONIC, shifted into place, or INVALID. */
+    public static int compBits(String mnemonic) {
+        return COMP.get(key(mnemonic));
+    }
+
+    /** Return the comp bits of the mnemonic with key KEY, shifted into place, or INVALID. */
+    public static int compBits(int key) {
+        return COMP.get(key);
+    }
+
+    /** Return the dest bits (d1 d2 d3) of MNEMONIC, shifted into place, or INVALID. */
+    public static int destBits(String mnemonic) {
+        return DEST.get(key(mnemonic));
+    }
+
+    /** Return the dest bits of the mnemonic with key KEY, shifted into place, or INVALID. */
+    public static int destBits(int key) {
+        return DEST.get(key);
+    }
+
+    /** Return the jump bits (j1 j2 j3) of MNEMONIC, or INVALID. */
+    public static int jumpBits(String mnemonic) {
+        return JUMP.get(key(mnemonic));
+    }
+
+    /** Return the jump bits of the mnemonic with key KEY, or INVALID. */
+    public static int jumpBits(int key) {
+        return JUMP.get(key);
+    }
+
+    /** Return the comp mnemonic of the C instruction WORD. */
+    public static String compMnemonic(int word) {
+        return COMP.name(word);
+    }
+
+    /** Return the dest mnemonic of the C instruction WORD, "null" if it has no destination. */
+    public static String destMnemonic(int word) {
+        return DEST.name(word);
+    }
+
+    /** Return the jump mnemonic of the C instruction WORD, "null" if it does not jump. */
+    public static String jumpMnemonic(int word) {
+        return JUMP.name(word);
+    }
+
+    /** Encode the C instruction DEST=COMP;JUMP, where missing fields are "null". Returns INVALID if
+     *  one of the mnemonics is not valid. */
+    public static int cInstruction(String dest, String comp, String jump) {
+        int compBits = compBits(comp);
+        int destBits = destBits(dest);
+        int jumpBits = jumpBits(jump);
+        if (compBits == INVALID || destBits == INVALID || jumpBits == INVALID) {
+            return INVALID;
+        }
+        return C_INSTRUCTION_PREFIX | compBits | destBits | jumpBits;
+    }
+
+    /** Put the textual form of WORD (16 characters, each one a 0 or a 1, followed by a newline)
+     *  into OUT at its current position. OUT must have at least TEXT_WORD_SIZE bytes remaining.
+     */
+    public static void writeWord(short word, ByteBuffer out) {
+        out.put(BYTE_TEXT, ((word >> 8) & 0xFF) * 8, 8);
+        out.put(BYTE_TEXT, (word & 0xFF) * 8, 8);
+        out.put(NEWLINE);
+    }
+
+    /** The mnemonics of one field of a C instruction. The bits of each mnemonic are found by its key in
+     *  an open addressing table, and the name of each value of the field in an array indexed by it. */
+    private static class MnemonicTable {
+        private int[] keys;
+        private int[] bits;
+        private String[] names;
+        private int shift;
+
+        MnemonicTable(String[] mnemonics, int[] codes, int shift) {
+            this.shift = shift;
+            keys = new int[Integer.highestOneBit(mnemonics.length * 4)];
+            bits = new int[keys.length];
+            int maxCode = 0;
+            for (int code : codes) {
+                maxCode = Math.max(maxCode, code);
+            }
+            names = new String[Integer.highestOneBit(maxCode) * 2];
+            for (int i = 0; i < mnemonics.length; i++) {
+                int slot = slot(key(mnemonics[i]));
+                keys[slot] = key(mnemonics[i]);
+                bits[slot] = codes[i] << shift;
+                if (names[codes[i]] == null) {
+                    names[codes[i]] = mnemonics[i];
+                }
+            }
+        }
+
+        /** Return the bits of the mnemonic with key KEY, or INVALID. */
+        int get(int key) {
+            if (key == INVALID) {
+                return INVALID;
+            }
+            int mask = keys.length - 1;
+            for (int slot = mix(key) & mask; keys[slot] != 0; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return bits[slot];
+                }
+            }
+            return INVALID;
+        }
+
+        /** Return the name of this field of the instruction WORD. */
+        String name(int word) {
+            return names[(word >> shift) & (names.length - 1)];
+        }
+
+        /** Return the slot for KEY, which is empty or already holds it. */
+        private int slot(int key) {
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static int mix(int key) {
+            key *= 0x9E3779B9;
+            return key ^ (key >>> 16);
+        }
+    }
+}
@@ -0,0 +1,304 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/** A Lexer splits a source file into tokens. It is shared by the HackAssembler and the VMTranslator,
+ *  both of which are compiled with this directory on the source path. Their directories also hold the
+ *  fuzzers that run programs on the HackCpu, so the emulator is on the source path too:
+ *
+ *      javac -sourcepath ../../shared:../../05/HackEmulator *.java
+ *
+ *  The whole file is read into a byte buffer up front (files larger than MAP_THRESHOLD are memory
+ *  mapped instead). Tokens are never copied out of the buffer: after a call to advance(), the current
+ *  token is described by its offset, length and line number, and can be compared against mnemonics
+ *  in place. A String is only created when one is asked for. intern() hands out a single String per
+ *  distinct token text, so repeated symbol names share one String.
+ *
+ *  Tokens are separated by whitespace. Every character in the delimiter string passed to the constructor
+ *  is also a token on its own. Comments start with '//' and run until the end of the line.
+ */
+public class Lexer {
+    /** Files at least this large are memory mapped rather than read onto the heap. */
+    private static final long MAP_THRESHOLD = 1 << 20;
+    private static final int INITIAL_POOL_SIZE = 256;
+    /** The longest token number() reads, short enough that the value always fits in an int. */
+    private static final int MAX_DIGITS = 9;
+
+    /** The name of the file the tokens are read from. */
+    private String fileName;
+    private ByteBuffer source;
+    private int limit;
+    /** Flags for every byte value that is a single character token. */
+    private boolean[] delimiters;
+
+    /** The position of the next unread byte, and the line it is on. */
+    private int pos;
+    private int line;
+
+    /** The span of the current token. */
+    private int tokenStart;
+    private int tokenLength;
+    private int tokenLine;
+    /** If true, the next call to advance() returns the current token again. */
+    private boolean pushedBack;
+
+    /** The interned token texts, an open addressing table keyed by the String hash of the text. */
+    private String[] pool;
+    private int poolSize;
+
+    /** Build a lexer over the contents of the file named fileName. A RuntimeException is thrown if the
+     *  file cannot be read. */
+    public Lexer(String fileName, String delimiters) {
+        ByteBuffer contents = null;
+        Path path = Paths.get(fileName);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            } else {
+                contents = ByteBuffer.wrap(Files.readAllBytes(path));
+            }
+        } catch (NoSuchFileException ex) {
+            throw new RuntimeException("Unable to open file '" + fileName + "'");
+        } catch (IOException ex) {
+            throw new RuntimeException("Error reading file '" + fileName + "'");
+        }
+        init(fileName, contents, 1, delimiters);
+    }
+
+    /** Build a lexer over source code that is already in memory, from the position to the limit of
+     *  SOURCE. FIRSTLINE is the line number of the first byte, and fileName is only used to label the
+     *  tokens. */
+    public Lexer(String fileName, ByteBuffer source, int firstLine, String delimiters) {
+        init(fileName, source.slice(), firstLine, delimiters);
+    }
+
+    private void init(String fileName, ByteBuffer source, int firstLine, String delimiters) {
+        this.fileName = fileName;
+        this.source = source;
+        this.delimiters = new boolean[256];
+        for (int i = 0; i < delimiters.length(); i++) {
+            this.delimiters[delimiters.charAt(i) & 0xFF] = true;
+        }
+        limit = source.limit();
+        pos = 0;
+        line = firstLine;
+        tokenStart = 0;
+        tokenLength = 0;
+        tokenLine = 0;
+        pushedBack = false;
+        pool = new String[INITIAL_POOL_SIZE];
+        poolSize = 0;
+    }
+
+    public String fileName() {
+        return fileName;
+    }
+
+    /** Move to the next token. Returns false, leaving no current token, if the end of the file has
+     *  been reached. */
+    public boolean advance() {
+        if (pushedBack) {
+            pushedBack = false;
+            return true;
+        }
+        skipWhitespaceAndComments();
+        if (pos >= limit) {
+            tokenLength = 0;
+            return false;
+        }
+        tokenStart = pos;
+        tokenLine = line;
+        if (isDelimiter(source.get(pos))) {
+            pos += 1;
+        } else {
+            while (pos < limit) {
+                byte b = source.get(pos);
+                if (isWhitespace(b) || isDelimiter(b) || isCommentStart(pos)) {
+                    break;
+                }
+                pos += 1;
+            }
+        }
+        tokenLength = pos - tokenStart;
+        return true;
+    }
+
+    /** Make the next call to advance() return the current token again. */
+    public void pushBack() {
+        if (tokenLength > 0) {
+            pushedBack = true;
+        }
+    }
+
+    public int offset() {
+        return tokenStart;
+    }
+
+    public int length() {
+        return tokenLength;
+    }
+
+    public int lineNumber() {
+        return tokenLine;
+    }
+
+    /** Return the character at index I of the current token. */
+    public char charAt(int i) {
+        return (char) (source.get(tokenStart + i) & 0xFF);
+    }
+
+    /** Returns true if the current token is exactly the single character C. */
+    public boolean matches(char c) {
+        return tokenLength == 1 && charAt(0) == c;
+    }
+
+    /** Returns true if the current token has the same text as S. */
+    public boolean matches(String s) {
+        return regionMatches(tokenStart, tokenLength, s);
+    }
+
+    /** Return the value of the current token if it is a decimal number of at most MAX_DIGITS digits,
+     *  or -1 if it is not. No String is created. */
+    public int number() {
+        if (tokenLength == 0 || tokenLength > MAX_DIGITS) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < tokenLength; i++) {
+            char c = charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /** Return a new String holding the text of the current token. */
+    public String text() {
+        return substring(0, tokenLength);
+    }
+
+    /** Return the shared String holding the text of the current token. */
+    public String intern() {
+        return intern(0, tokenLength);
+    }
+
+    /** Return the shared String holding the characters from index FROM to index TO (exclusive) of the
+     *  current token. The String is only created the first time this text is seen. */
+    public String intern(int from, int to) {
+        int start = tokenStart + from;
+        int length = to - from;
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + (source.get(start + i) & 0xFF);
+        }
+        int mask = pool.length - 1;
+        int slot = mix(hash) & mask;
+        while (pool[slot] != null) {
+            String s = pool[slot];
+            if (s.hashCode() == hash && regionMatches(start, length, s)) {
+                return s;
+            }
+            slot = (slot + 1) & mask;
+        }
+        String s = substring(from, to);
+        pool[slot] = s;
+        poolSize += 1;
+        if (poolSize * 2 > pool.length) {
+            growPool();
+        }
+        return s;
+    }
+
+    /** Release the input buffer. The lexer returns no more tokens afterwards. */
+    public void close() {
+        source = ByteBuffer.allocate(0);
+        limit = 0;
+        pos = 0;
+        tokenLength = 0;
+        pushedBack = false;
+    }
+
+    private String substring(int from, int to) {
+        char[] chars = new char[to - from];
+        for (int i = from; i < to; i++) {
+            chars[i - from] = charAt(i);
+        }
+        return new String(chars);
+    }
+
+    private boolean regionMatches(int start, int length, String s) {
+        if (s.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if ((source.get(start + i) & 0xFF) != s.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void growPool() {
+        String[] old = pool;
+        pool = new String[old.length * 2];
+        int mask = pool.length - 1;
+        for (String s : old) {
+            if (s != null) {
+                int slot = mix(s.hashCode()) & mask;
+                while (pool[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                pool[slot] = s;
+            }
+        }
+    }
+
+    /** Spread the bits of a String hash so that similar names do not cluster in the pool. */
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private boolean isDelimiter(byte b) {
+        return delimiters[b & 0xFF];
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r' || b == '\f' || b == 0x0B;
+    }
+
+    private boolean isCommentStart(int p) {
+        return source.get(p) == '/' && p + 1 < limit && source.get(p + 1) == '/';
+    }
+
+    /** Move pos to the start of the next token, counting lines along the way. A single '/' that does
+     *  not start a comment is not a valid symbol, and a RuntimeException is thrown. */
+    private void skipWhitespaceAndComments() {
+        while (pos < limit) {
+            byte b = source.get(pos);
+            if (b == '\n') {
+                line += 1;
+                pos += 1;
+            } else if (isWhitespace(b)) {
+                pos += 1;
+            } else if (b == '/') {
+                if (! isCommentStart(pos)) {
+                    throw new RuntimeException("Invalid Symbol: / (" + fileName + ": Line " + line + ")");
+                }
+                while (pos < limit && source.get(pos) != '\n') {
+                    pos += 1;
+                }
+            } else {
+                break;
+            }
+        }
+    }
+}
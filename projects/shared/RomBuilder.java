@@ -0,0 +1,198 @@
+import java.util.Arrays;
+
+/** A RomBuilder builds the machine code of a program one word at a time, in a single pass. It is the
+ *  engine behind the HackAssembler, and the VMTranslator uses it to produce machine code without
+ *  going through assembly code text.
+ *
+ *  Words are stored in a growable array. When an A instruction refers to a symbol that has not been
+ *  defined yet, the word is left empty and its address is recorded in a patch list. When the matching
+ *  label is defined, or when the program is finished, every recorded use of the symbol is backpatched
+ *  with the symbol's value.
+ *
+ *  Symbols that are never defined as labels are variables. These are given memory addresses
+ *  (starting at 16) in the order in which they were first used, exactly as if the labels had
+ *  been collected in a separate pass beforehand.
+ */
+public class RomBuilder {
+    private static final int INITIAL_CAPACITY = 1024;
+    /** Marks the end of a chain of patch sites. */
+    private static final int NO_PATCH = -1;
+    /** The largest value that can be loaded by an A instruction. */
+    public static final int MAX_ADDRESS = 0x7FFF;
+
+    private SymbolTable symbols;
+
+    /** The encoded machine code words, only the first numWords entries are used. */
+    private short[] words;
+    private int numWords;
+
+    /** The patch list. Each entry holds the address of a word waiting for a symbol value and the
+     *  index of the next patch entry for the same symbol (or NO_PATCH). */
+    private int[] patchSites;
+    private int[] patchNext;
+    private int numPatches;
+
+    /** Symbols that have been used but not yet defined, mapped to their index in the pending arrays.
+     *  Pending indices are handed out in order of first use. Once a symbol is defined it is found in
+     *  the symbol table first, so its entry here is never looked up again. */
+    private SymbolMap pending;
+    private String[] pendingNames;
+    private int[] pendingHead;
+    private boolean[] pendingResolved;
+    private int numPending;
+
+    private boolean finished;
+
+    public RomBuilder(SymbolTable symbols) {
+        this.symbols = symbols;
+        words = new short[INITIAL_CAPACITY];
+        numWords = 0;
+        patchSites = new int[INITIAL_CAPACITY];
+        patchNext = new int[INITIAL_CAPACITY];
+        numPatches = 0;
+        pending = new SymbolMap();
+        pendingNames = new String[INITIAL_CAPACITY];
+        pendingHead = new int[INITIAL_CAPACITY];
+        pendingResolved = new boolean[INITIAL_CAPACITY];
+        numPending = 0;
+        finished = false;
+    }
+
+    /** Add an encoded word: a C instruction, or an A instruction loading a constant. */
+    public void addWord(int word) {
+        if (finished) {
+            throw new RuntimeException("Attempt to add a word to a finished program.");
+        }
+        if (numWords == words.length) {
+            words = Arrays.copyOf(words, numWords * 2);
+        }
+        words[numWords] = (short) word;
+        numWords++;
+    }
+
+    /** Add an A instruction loading the value of SYMBOL, which may be defined later. */
+    public void addSymbol(String symbol) {
+        if (symbols.contains(symbol)) {
+            addWord(symbols.getValue(symbol));
+        } else {
+            addPatch(symbol, numWords);
+            addWord(0);
+        }
+    }
+
+    /** Define LABEL as the address of the next word. Returns false, defining nothing, if the label
+     *  already has a value. */
+    public boolean defineLabel(String label) {
+        if (finished) {
+            throw new RuntimeException("Attempt to add a label to a finished program.");
+        }
+        if (symbols.contains(label)) {
+            return false;
+        }
+        symbols.addSymbol(label, numWords);
+        int p = pending.get(label);
+        if (p != SymbolMap.MISSING) {
+            patch(p, numWords);
+        }
+        return true;
+    }
+
+    /** Allocate addresses for every symbol that was never defined as a label, in order of first
+     *  use, and patch the words that refer to them. */
+    public void finish() {
+        if (finished) {
+            return;
+        }
+        for (int p = 0; p < numPending; p++) {
+            if (! pendingResolved[p]) {
+                patch(p, symbols.getValue(pendingNames[p]));
+            }
+        }
+        pending = null;
+        finished = true;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /** The number of machine code words in the program. */
+    public int size() {
+        return numWords;
+    }
+
+    /** Return the machine code word at ADDRESS. */
+    public short word(int address) {
+        if (address < 0 || address >= numWords) {
+            throw new IndexOutOfBoundsException("No instruction at address " + address);
+        }
+        return words[address];
+    }
+
+    /** Return the program as a ROM image. The image shares the builder's word array. */
+    public RomImage image() {
+        if (! finished) {
+            throw new RuntimeException("Attempt to build an image of an unfinished program.");
+        }
+        return new RomImage(words, numWords);
+    }
+
+    /** Parse a decimal address without creating any objects. Returns -1 if ADDRESS is not a number.
+     *  Parsing stops early once the value is known to be larger than MAX_ADDRESS, so callers only
+     *  need to check the result against MAX_ADDRESS. */
+    public static int parseAddress(String address) {
+        if (address.isEmpty()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            if (value > MAX_ADDRESS) {
+                continue;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    /** Record that the word at SITE must be filled in with the value of SYMBOL. */
+    private void addPatch(String symbol, int site) {
+        int p = pending.get(symbol);
+        if (p == SymbolMap.MISSING) {
+            p = numPending;
+            if (numPending == pendingNames.length) {
+                int capacity = numPending * 2;
+                pendingNames = Arrays.copyOf(pendingNames, capacity);
+                pendingHead = Arrays.copyOf(pendingHead, capacity);
+                pendingResolved = Arrays.copyOf(pendingResolved, capacity);
+            }
+            pendingNames[p] = symbol;
+            pendingHead[p] = NO_PATCH;
+            pendingResolved[p] = false;
+            numPending++;
+            pending.put(symbol, p);
+        }
+        if (numPatches == patchSites.length) {
+            patchSites = Arrays.copyOf(patchSites, numPatches * 2);
+            patchNext = Arrays.copyOf(patchNext, numPatches * 2);
+        }
+        patchSites[numPatches] = site;
+        patchNext[numPatches] = pendingHead[p];
+        pendingHead[p] = numPatches;
+        numPatches++;
+    }
+
+    /** Fill in every word waiting on pending symbol P with VALUE. */
+    private void patch(int p, int value) {
+        int entry = pendingHead[p];
+        while (entry != NO_PATCH) {
+            words[patchSites[entry]] = (short) value;
+            entry = patchNext[entry];
+        }
+        pendingHead[p] = NO_PATCH;
+        pendingResolved[p] = true;
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.CRC32;
+
+/** A RomImage holds an assembled program, one machine code word per ROM address, and writes it
+ *  out in one of two formats:
+ *
+ *      - text:   the .hack format, each word written as 16 '0'/'1' characters and a newline.
+ *      - binary: each word written as a raw big-endian 16 bit value.
+ *
+ *  A binary image can optionally start with a 12 byte header:
+ *
+ *      MAGIC (4 bytes, "HACK") | WORD COUNT (4 bytes) | CRC32 OF THE WORDS (4 bytes)
+ *
+ *  All header fields are big-endian. The checksum covers the encoded words only. read() loads an
+ *  image written in either format, with or without a header.
+ *
+ *  Both formats are streamed to the file through a single direct buffer of BUFFER_SIZE bytes, which
+ *  is flushed to the channel whenever it fills up, so the memory used for writing does not depend on
+ *  the size of the program.
+ *
+ *  For very large programs, writeParallel() instead maps the whole output file and formats disjoint
+ *  ranges of words into their slices of the mapping on a ForkJoinPool. Every word has a fixed size in
+ *  both formats, so the position of each word in the file is known up front and the result is byte
+ *  for byte the same as the sequential writer.
+ */
+public class RomImage {
+    public static final int MAGIC = 0x4841434B;
+    public static final int HEADER_SIZE = 12;
+    private static final int BYTES_PER_WORD = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+    /** The number of words a parallel task formats without splitting further. */
+    private static final int PARALLEL_CHUNK_SIZE = 1 << 14;
+    /** The number of words a ROM holds. */
+    private static final int ROM_SIZE = 1 << 15;
+
+    public enum Format {
+        TEXT, BINARY
+    }
+
+    /** The words of the program, only the first numWords entries are used. */
+    private short[] words;
+    private int numWords;
+
+    public RomImage(short[] words) {
+        this(words, words.length);
+    }
+
+    /** Build an image from the first NUMWORDS entries of WORDS. The array is not copied. */
+    public RomImage(short[] words, int numWords) {
+        this.words = words;
+        this.numWords = numWords;
+    }
+
+    public int size() {
+        return numWords;
+    }
+
+    public short word(int address) {
+        return words[address];
+    }
+
+    /** Read the image in the file named FILENAME. The format is told from the contents: a binary image
+     *  with a header starts with MAGIC, and a text image starts with a line of '0'/'1' characters.
+     *  Anything else is read as a binary image without a header. Throws a RuntimeException if
+     *  the file is not a valid image. */
+    public static RomImage read(String fileName) throws IOException {
+        ByteBuffer contents = ByteBuffer.wrap(Files.readAllBytes(Paths.get(fileName)));
+        RomImage image;
+        if (contents.remaining() >= HEADER_SIZE && contents.getInt(0) == MAGIC) {
+            image = readBinary(fileName, contents.position(HEADER_SIZE).slice());
+            CRC32 crc = new CRC32();
+            crc.update(contents.duplicate().position(HEADER_SIZE));
+            if (contents.getInt(4) != image.numWords || contents.getInt(8) != (int) crc.getValue()) {
+                throw new RuntimeException("Corrupt image '" + fileName + "': the header does not match the words");
+            }
+        } else if (isText(contents)) {
+            image = readText(fileName, contents);
+        } else {
+            image = readBinary(fileName, contents);
+        }
+        if (image.numWords > ROM_SIZE) {
+            throw new RuntimeException("Image '" + fileName + "' has " + image.numWords
+                    + " words, more than the ROM holds");
+        }
+        return image;
+    }
+
+    /** Return true if the first line of CONTENTS is made of '0'/'1' characters, as are the lines of a
+     *  text image. */
+    private static boolean isText(ByteBuffer contents) {
+        int length = contents.remaining();
+        int i = 0;
+        while (i < length && (contents.get(i) == '0' || contents.get(i) == '1')) {
+            i += 1;
+        }
+        return i == length || (i > 0 && (contents.get(i) == '\n' || contents.get(i) == '\r'));
+    }
+
+    /** Read a text image, one word of 16 '0'/'1' characters per line. Blank lines are skipped. */
+    private static RomImage readText(String fileName, ByteBuffer contents) {
+        int length = contents.remaining();
+        short[] words = new short[length / Encoder.TEXT_WORD_SIZE + 1];
+        int numWords = 0;
+        int line = 1;
+        int word = 0;
+        int bits = 0;
+        boolean valid = true;
+        // the end of the file ends the last line
+        for (int i = 0; i <= length; i++) {
+            byte b = i < length ? contents.get(i) : (byte) '\n';
+            if (b == '\n') {
+                if (! valid || (bits != 0 && bits != Encoder.TEXT_WORD_SIZE - 1)) {
+                    throw new RuntimeException("Invalid word on line " + line + " of '" + fileName + "'");
+                }
+                if (bits != 0) {
+                    words[numWords++] = (short) word;
+                }
+                line += 1;
+                word = 0;
+                bits = 0;
+            } else if (b == '0' || b == '1') {
+                word = (word << 1) | (b - '0');
+                bits += 1;
+            } else if (b != '\r') {
+                valid = false;
+            }
+        }
+        return new RomImage(words, numWords);
+    }
+
+    /** Read a binary image without a header, one big-endian word per two bytes. */
+    private static RomImage readBinary(String fileName, ByteBuffer contents) {
+        if (contents.remaining() % BYTES_PER_WORD != 0) {
+            throw new RuntimeException("Image '" + fileName + "' does not hold a whole number of words");
+        }
+        short[] words = new short[contents.remaining() / BYTES_PER_WORD];
+        contents.asShortBuffer().get(words);
+        return new RomImage(words);
+    }
+
+    /** Write the image to the file named FILENAME using FORMAT. The header flag is only used by
+     *  the binary format. */
+    public void write(String fileName, Format format, boolean header) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            if (format == Format.BINARY) {
+                writeBinary(channel, buffer, header);
+            } else {
+                writeText(channel, buffer);
+            }
+        }
+    }
+
+    /** Write the image to the file named FILENAME using FORMAT, formatting the words in parallel on
+     *  POOL. The output is identical to that of write(). */
+    public void writeParallel(String fileName, Format format, boolean header, ForkJoinPool pool)
+            throws IOException {
+        int wordSize = format == Format.BINARY ? BYTES_PER_WORD : Encoder.TEXT_WORD_SIZE;
+        int headerSize = format == Format.BINARY && header ? HEADER_SIZE : 0;
+        long fileSize = headerSize + (long) numWords * wordSize;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            if (fileSize == 0) {
+                return;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            ByteBuffer body = mapped.slice(headerSize, numWords * wordSize);
+            pool.invoke(new FormatTask(words, body, format, 0, numWords));
+            if (headerSize > 0) {
+                CRC32 crc = new CRC32();
+                crc.update(body.duplicate());
+                mapped.putInt(0, MAGIC);
+                mapped.putInt(4, numWords);
+                mapped.putInt(8, (int) crc.getValue());
+            }
+            mapped.force();
+        }
+    }
+
+    /** Formats WORDS from index FROM to index TO (exclusive) into their slice of BODY, splitting the
+     *  range in half until it is no larger than PARALLEL_CHUNK_SIZE. */
+    private static class FormatTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private short[] words;
+        private ByteBuffer body;
+        private Format format;
+        private int from;
+        private int to;
+
+        FormatTask(short[] words, ByteBuffer body, Format format, int from, int to) {
+            this.words = words;
+            this.body = body;
+            this.format = format;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > PARALLEL_CHUNK_SIZE) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new FormatTask(words, body, format, from, middle),
+                        new FormatTask(words, body, format, middle, to));
+                return;
+            }
+            if (format == Format.BINARY) {
+                ByteBuffer out = body.slice(from * BYTES_PER_WORD, (to - from) * BYTES_PER_WORD);
+                for (int i = from; i < to; i++) {
+                    out.putShort(words[i]);
+                }
+            } else {
+                int size = Encoder.TEXT_WORD_SIZE;
+                ByteBuffer out = body.slice(from * size, (to - from) * size);
+                for (int i = from; i < to; i++) {
+                    Encoder.writeWord(words[i], out);
+                }
+            }
+        }
+    }
+
+    private void writeText(FileChannel channel, ByteBuffer buffer) throws IOException {
+        for (int i = 0; i < numWords; i++) {
+            if (buffer.remaining() < Encoder.TEXT_WORD_SIZE) {
+                flush(channel, buffer);
+            }
+            Encoder.writeWord(words[i], buffer);
+        }
+        flush(channel, buffer);
+    }
+
+    /** Stream the words to the channel, updating the checksum one buffer at a time. The header
+     *  space is reserved first and filled in once the checksum is known. */
+    private void writeBinary(FileChannel channel, ByteBuffer buffer, boolean header) throws IOException {
+        CRC32 crc = new CRC32();
+        if (header) {
+            channel.position(HEADER_SIZE);
+        }
+        for (int i = 0; i < numWords; i++) {
+            if (buffer.remaining() < BYTES_PER_WORD) {
+                flush(channel, buffer, crc);
+            }
+            buffer.putShort(words[i]);
+        }
+        flush(channel, buffer, crc);
+        if (header) {
+            buffer.putInt(MAGIC);
+            buffer.putInt(numWords);
+            buffer.putInt((int) crc.getValue());
+            buffer.flip();
+            channel.write(buffer, 0);
+            buffer.clear();
+        }
+    }
+
+    private void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    private void flush(FileChannel channel, ByteBuffer buffer, CRC32 crc) throws IOException {
+        crc.update(buffer.duplicate().flip());
+        flush(channel, buffer);
+    }
+}
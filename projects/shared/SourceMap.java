@@ -0,0 +1,156 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+
+/** A SourceMap tells which VM command each word of a translated program comes from. The ROM is split
+ *  into ranges, one per command, each holding the file and line the command was read from, its name
+ *  (such as 'push' or 'if-goto') and the function it is in. The code that comes from no file, the
+ *  bootstrap code and the shared runtime routines, has no file and line, and is in a function named
+ *  after it, such as BOOTSTRAP or RUNTIME$CALL.
+ *
+ *  The map is written as text, one range per line:
+ *
+ *      FIRST LAST FILE LINE COMMAND FUNCTION
+ *
+ *  where FIRST and LAST are the first and last ROM address of the range, and FILE is '-' for code that
+ *  comes from no file. Commands whose code takes up no words, such as labels, have no range. Lines
+ *  starting with '//' are comments. Each range starts where the one before it ends.
+ */
+public class SourceMap {
+    private static final String COMMENT = "//";
+    private static final String NO_FILE = "-";
+    private static final String HEADER = COMMENT + " first last file line command function";
+
+    /** The ranges, in order of address. Range i ends where range i + 1 starts, and the last one at end. */
+    private int[] starts;
+    private String[] fileNames;
+    private int[] lines;
+    private String[] commands;
+    private String[] functions;
+    private int size;
+    private int end;
+
+    public SourceMap() {
+        starts = new int[64];
+        fileNames = new String[64];
+        lines = new int[64];
+        commands = new String[64];
+        functions = new String[64];
+        size = 0;
+        end = 0;
+    }
+
+    /** Start a range at ADDRESS, for the command COMMAND read from line LINE of FILENAME, in FUNCTION.
+     *  FILENAME is null for code that comes from no file. The range before it ends at ADDRESS, and is
+     *  replaced if it is empty. */
+    public void add(int address, String fileName, int line, String command, String function) {
+        if (size > 0 && starts[size - 1] == address) {
+            size -= 1;
+        }
+        if (size == starts.length) {
+            int capacity = size * 2;
+            starts = Arrays.copyOf(starts, capacity);
+            fileNames = Arrays.copyOf(fileNames, capacity);
+            lines = Arrays.copyOf(lines, capacity);
+            commands = Arrays.copyOf(commands, capacity);
+            functions = Arrays.copyOf(functions, capacity);
+        }
+        starts[size] = address;
+        fileNames[size] = fileName;
+        lines[size] = line;
+        commands[size] = command;
+        functions[size] = function;
+        size += 1;
+        end = address;
+    }
+
+    /** End the last range at ADDRESS, the size of the program. */
+    public void end(int address) {
+        if (size > 0 && starts[size - 1] == address) {
+            size -= 1;
+        }
+        end = address;
+    }
+
+    /** The number of ranges. */
+    public int size() {
+        return size;
+    }
+
+    /** The first address of range I. */
+    public int first(int i) {
+        return starts[i];
+    }
+
+    /** The last address of range I. */
+    public int last(int i) {
+        return (i + 1 < size ? starts[i + 1] : end) - 1;
+    }
+
+    /** The name of the file of range I, or null if it comes from no file. */
+    public String fileName(int i) {
+        return fileNames[i];
+    }
+
+    public int line(int i) {
+        return lines[i];
+    }
+
+    public String command(int i) {
+        return commands[i];
+    }
+
+    public String function(int i) {
+        return functions[i];
+    }
+
+    /** Write the map to the file named FILENAME. */
+    public void write(String fileName) throws IOException {
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            out.write(HEADER);
+            out.newLine();
+            for (int i = 0; i < size; i++) {
+                out.write(first(i) + " " + last(i) + " " + (fileNames[i] == null ? NO_FILE : fileNames[i]) + " "
+                        + lines[i] + " " + commands[i] + " " + functions[i]);
+                out.newLine();
+            }
+        }
+    }
+
+    /** Read a map written by write() from the file named FILENAME. */
+    public static SourceMap read(String fileName) throws IOException {
+        List<String> text = Files.readAllLines(Paths.get(fileName), StandardCharsets.UTF_8);
+        SourceMap map = new SourceMap();
+        for (int n = 0; n < text.size(); n++) {
+            String line = text.get(n).trim();
+            if (line.isEmpty() || line.startsWith(COMMENT)) {
+                continue;
+            }
+            String[] fields = line.split("\\s+");
+            int first;
+            int last;
+            int lineNumber;
+            try {
+                first = Integer.parseInt(fields[0]);
+                last = Integer.parseInt(fields[1]);
+                lineNumber = Integer.parseInt(fields[3]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException ex) {
+                first = -1;
+                last = -1;
+                lineNumber = 0;
+            }
+            // each range starts where the one before it ends
+            boolean follows = map.size == 0 ? first >= 0 : first == map.end;
+            if (fields.length != 6 || ! follows || last < first) {
+                throw new RuntimeException("Invalid source map '" + fileName + "', line " + (n + 1) + ": " + line);
+            }
+            map.add(first, fields[2].equals(NO_FILE) ? null : fields[2], lineNumber, fields[4], fields[5]);
+            map.end = last + 1;
+        }
+        return map;
+    }
+}
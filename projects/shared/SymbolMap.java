@@ -0,0 +1,112 @@
+import java.util.Arrays;
+
+/** A SymbolMap maps symbol names to non-negative int values.
+ *
+ *  The map is an open addressing hash table made of two parallel arrays, one for the names and
+ *  one for the values, so there are no per-entry objects and values are never boxed. Names are
+ *  usually interned by the Lexer, so a lookup normally finds its key by reference and only falls
+ *  back to equals() for names that were built some other way.
+ *
+ *  Entries cannot be removed.
+ */
+public class SymbolMap {
+    /** Returned by get() when a name has no value. */
+    public static final int MISSING = -1;
+    private static final int DEFAULT_CAPACITY = 64;
+
+    private String[] keys;
+    private int[] values;
+    private int size;
+
+    public SymbolMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Build a map that can hold about CAPACITY / 2 entries before it has to grow. CAPACITY is
+     *  rounded up to a power of two. */
+    public SymbolMap(int capacity) {
+        int tableSize = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        keys = new String[tableSize];
+        values = new int[tableSize];
+        size = 0;
+    }
+
+    private SymbolMap(SymbolMap other) {
+        keys = Arrays.copyOf(other.keys, other.keys.length);
+        values = Arrays.copyOf(other.values, other.values.length);
+        size = other.size;
+    }
+
+    /** Return an independent copy of this map. Copying is two array copies, no entries are rebuilt. */
+    public SymbolMap copy() {
+        return new SymbolMap(this);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Return the value of NAME, or MISSING. */
+    public int get(String name) {
+        int slot = find(name);
+        return keys[slot] == null ? MISSING : values[slot];
+    }
+
+    public boolean contains(String name) {
+        return keys[find(name)] != null;
+    }
+
+    /** Set the value of NAME to VALUE, replacing any existing value. VALUE must not be negative. */
+    public void put(String name, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value for symbol " + name + ": " + value);
+        }
+        int slot = find(name);
+        if (keys[slot] == null) {
+            keys[slot] = name;
+            size += 1;
+        }
+        values[slot] = value;
+        if (size * 2 > keys.length) {
+            grow();
+        }
+    }
+
+    /** Return the slot holding NAME, or the empty slot where it would be inserted. */
+    private int find(String name) {
+        int mask = keys.length - 1;
+        int slot = mix(name.hashCode()) & mask;
+        String key;
+        while ((key = keys[slot]) != null) {
+            if (key == name || key.equals(name)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void grow() {
+        String[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new String[oldKeys.length * 2];
+        values = new int[oldValues.length * 2];
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = mix(oldKeys[i].hashCode()) & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    /** Spread the bits of a String hash so that similar names do not cluster. */
+    private static int mix(int hash) {
+        hash *= 0x9E3779B9;
+        return hash ^ (hash >>> 16);
+    }
+}
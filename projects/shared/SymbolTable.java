@@ -0,0 +1,74 @@
+/** A SymbolTable holds the mappings between the following:
+ *      - Labels -> Instruction Addresses
+ *      - Symbols -> Data values
+ *
+ *      The label and symbol mappings are generated as an assembly code file is parsed, and start
+ *      from the predefined symbols of the Hack platform in PREDEFINED_SYMBOLS.
+ *
+ *      If a (key, value) mapping is created for a key that has an existing mapping in the table,
+ *      the original value will be overwritten with the new value. Multiple keys can point to the same
+ *      value.
+ *
+ *      Values are stored as ints in a SymbolMap. The predefined symbols are put once per JVM into a
+ *      prototype map that is never modified afterwards. Every SymbolTable starts as a copy of that
+ *      prototype, so creating a table for each program is cheap and safe to do from several threads.
+ */
+
+public class SymbolTable {
+    private static final int SYMBOL_ADDRESS_START = 16;
+    /** The predefined symbols of the Hack platform, as pairs of a name and its value. */
+    private static final String[] PREDEFINED_SYMBOLS = {
+        "SP", "0", "LCL", "1", "ARG", "2", "THIS", "3", "THAT", "4",
+        "R0", "0", "R1", "1", "R2", "2", "R3", "3", "R4", "4", "R5", "5", "R6", "6", "R7", "7",
+        "R8", "8", "R9", "9", "R10", "10", "R11", "11", "R12", "12", "R13", "13", "R14", "14", "R15", "15",
+        "SCREEN", "16384", "KBD", "24576"
+    };
+    /** The shared predefined symbols. */
+    private static final SymbolMap PROTOTYPE = predefinedSymbols();
+
+    private SymbolMap table;
+
+    /** The memory address of the next assembly code symbol to be added. These start at address 16. */
+    int nextSymbolAddress;
+
+    public SymbolTable() {
+        table = PROTOTYPE.copy();
+        nextSymbolAddress = SYMBOL_ADDRESS_START;
+    }
+
+    /** Return a new map of the predefined symbols. */
+    private static SymbolMap predefinedSymbols() {
+        SymbolMap symbols = new SymbolMap();
+        for (int i = 0; i < PREDEFINED_SYMBOLS.length; i += 2) {
+            symbols.put(PREDEFINED_SYMBOLS[i], Integer.parseInt(PREDEFINED_SYMBOLS[i + 1]));
+        }
+        return symbols;
+    }
+
+    /** Add a mapping to the symbol table. Repeated entries of a key will overwrite the value, but different keys
+     *  can have the same value.
+     */
+    public void addSymbol(String symbol, int value) {
+        table.put(symbol, value);
+    }
+
+    /** Returns true if SYMBOL already has a value in the symbol table. */
+    public boolean contains(String symbol) {
+        return table.contains(symbol);
+    }
+
+    /** If SYMBOL is a key in the symbol table, returns the corresponding value. Otherwise, we assume that
+     * SYMBOL is the name of a symbol in the Assembly code we are processing. This symbol is added to the symbol table
+     * and given a memory address. Memory addresses start at 16 and increase by one for every symbol added. This
+     * address is then returned.
+     */
+    public int getValue(String symbol) {
+        int value = table.get(symbol);
+        if (value == SymbolMap.MISSING) {
+            value = nextSymbolAddress;
+            table.put(symbol, value);
+            nextSymbolAddress++;
+        }
+        return value;
+    }
+}